@@ -0,0 +1,368 @@
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the total bandwidth of a number of downloads, and shares it between
+ * them in proportion to their weights.
+ *
+ * <p>The limit is a token bucket: tokens, one per byte, are added at the
+ * limiting rate, up to a small burst, and a download takes tokens for the
+ * bytes it reads.  When there are not enough, the downloads wait their turn.
+ * The turns are given by start-time fair queuing: each request for tokens is
+ * tagged with a virtual start time, which is the later of the current
+ * virtual time and the virtual end of the same download's last request, and
+ * the request with the smallest tag is served first.  A request for n bytes
+ * moves its download's virtual end on by n / weight, so a download with
+ * weight 2 gets twice the bytes of one with weight 1 while both are busy,
+ * and a download that has been idle gets no credit for it.  Bandwidth that
+ * one download doesn't use goes to the others.</p>
+ *
+ * <p>Downloads read through the stream returned by Transfer.wrap(), which
+ * reads at most CHUNK bytes at a time and then takes the tokens for them.  A
+ * download that is made to wait stops reading from its socket, and TCP flow
+ * control slows the sender down.</p>
+ *
+ * <p>The rate can be changed while downloads run, with setRate() or by
+ * editing a file given to watch().  Each transfer keeps a rate that decays
+ * exponentially, so getRate() shows what it is getting now rather than its
+ * average since it started.</p>
+ */
+public class BandwidthLimiter {
+
+	/**
+	 * The most bytes a transfer reads before it takes tokens for them.
+	 */
+	public final static int CHUNK = 16 * 1024;
+
+	/**
+	 * The time constant, in seconds, of the transfer rates.
+	 */
+	private final static double RATE_TIME_CONSTANT = 1.0;
+
+	/**
+	 * Milliseconds between checks of a watched file.
+	 */
+	private final static long WATCH_INTERVAL = 1000;
+
+	/**
+	 * A request waiting for tokens.
+	 */
+	private static class Request {
+		final double start;
+		final long sequence;
+		Request(double start, long sequence) {
+			this.start = start;
+			this.sequence = sequence;
+		}
+	}
+
+	private double rate;          // bytes per second, or 0 for no limit
+	private double burst;         // the most tokens that can be saved up
+	private double tokens;
+	private long lastRefill;      // System.nanoTime() of the last refill
+	private double virtualTime;   // the start tag of the last request served
+	private long nextSequence;
+	private final PriorityQueue<Request> waiting = new PriorityQueue<>(
+			Comparator.comparingDouble((Request r) -> r.start).thenComparingLong(r -> r.sequence));
+	private final List<Transfer> transfers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param bytesPerSecond The limit, or 0 or less for none.
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		lastRefill = System.nanoTime();
+		setRate(bytesPerSecond);
+		tokens = burst;
+	}
+
+	/**
+	 * Changes the limit.  Downloads that are waiting see the new rate at once.
+	 *
+	 * @param bytesPerSecond The limit, or 0 or less for none.
+	 */
+	public synchronized void setRate(long bytesPerSecond) {
+		refill();
+		rate = Math.max(bytesPerSecond, 0);
+		// About 50 ms of data, so the rate is smooth, but never less than
+		// two chunks, so a request can always be served.
+		burst = Math.max(rate / 20, 2 * CHUNK);
+		tokens = Math.min(tokens, burst);
+		notifyAll();
+	}
+
+	/**
+	 * Returns the limit in bytes per second, or 0 if there is none.
+	 */
+	public synchronized long getRate() {
+		return (long) rate;
+	}
+
+	/**
+	 * Starts a transfer that shares this limit.  It should be closed when
+	 * it is done.
+	 *
+	 * @param name   A name for the transfer, for reports.
+	 * @param weight Its share, relative to the others.  It must be positive.
+	 */
+	public Transfer open(String name, double weight) {
+		Transfer transfer = new Transfer(name, weight);
+		transfers.add(transfer);
+		return transfer;
+	}
+
+	/**
+	 * Returns the transfers that are open.
+	 */
+	public List<Transfer> getTransfers() {
+		return new ArrayList<>(transfers);
+	}
+
+	/**
+	 * Returns a report of the limit and of the rate of each open transfer,
+	 * one per line.
+	 */
+	public String describe() {
+		StringBuilder text = new StringBuilder();
+		double total = 0;
+		for (Transfer transfer : transfers) {
+			double current = transfer.getRate();
+			total += current;
+			text.append(String.format("  %-40s %8.2f MB/s  weight %.1f  %10.1f MB%n", transfer.name, current / 1e6,
+					transfer.weight, transfer.getBytes() / 1e6));
+		}
+		long limit = getRate();
+		return String.format("%d transfers, %.2f MB/s of %s%n", transfers.size(), total / 1e6,
+				limit > 0 ? String.format("%.2f MB/s", limit / 1e6) : "no limit") + text;
+	}
+
+	/**
+	 * Checks a properties file every second, and sets the rate from its
+	 * "rate" property whenever the file changes.  The rate is parsed by
+	 * parseRate().  The checks are made by a daemon thread.
+	 */
+	public void watch(Path file) {
+		Thread watcher = new Thread(() -> {
+			long lastModified = 0;
+			while (true) {
+				try {
+					long modified = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+					if (modified != lastModified) {
+						lastModified = modified;
+						Properties properties = new Properties();
+						try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+							properties.load(in);
+						}
+						String value = properties.getProperty("rate");
+						if (value != null) {
+							setRate(parseRate(value));
+							System.out.println("Bandwidth limit is now " + value.trim());
+						}
+					}
+				}
+				catch (IOException | IllegalArgumentException e) {
+					System.out.println("Can't read " + file + ": " + e.getMessage());
+				}
+				try {
+					Thread.sleep(WATCH_INTERVAL);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "Bandwidth watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Parses a rate in bytes per second, with an optional suffix K, M or G
+	 * for thousands, millions or billions, such as "500K" or "2.5M".
+	 *
+	 * @throws IllegalArgumentException If it is not a number.
+	 */
+	public static long parseRate(String value) {
+		String text = value.trim().toUpperCase();
+		double scale = 1;
+		if (text.endsWith("K"))
+			scale = 1e3;
+		else if (text.endsWith("M"))
+			scale = 1e6;
+		else if (text.endsWith("G"))
+			scale = 1e9;
+		if (scale > 1)
+			text = text.substring(0, text.length() - 1);
+		try {
+			return (long) (Double.parseDouble(text) * scale);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad rate: " + value);
+		}
+	}
+
+	/**
+	 * Adds the tokens earned since the last refill.
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate > 0)
+			tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+		lastRefill = now;
+	}
+
+	/**
+	 * Waits for a transfer's turn and for enough tokens, and takes them.
+	 */
+	private synchronized void acquire(Transfer transfer, int count) throws InterruptedException {
+		if (rate <= 0)
+			return;
+		double start = Math.max(virtualTime, transfer.virtualEnd);
+		transfer.virtualEnd = start + count / transfer.weight;
+		Request request = new Request(start, nextSequence++);
+		waiting.add(request);
+		try {
+			while (rate > 0) {
+				if (waiting.peek() != request) {
+					wait();
+					continue;
+				}
+				refill();
+				if (tokens >= count) {
+					tokens -= count;
+					break;
+				}
+				// A chunk is never more than the burst, so this ends.
+				long nanos = (long) ((Math.min(count, burst) - tokens) / rate * 1e9);
+				TimeUnit.NANOSECONDS.timedWait(this, Math.max(nanos, 100_000));
+			}
+			virtualTime = Math.max(virtualTime, start);
+		}
+		finally {
+			waiting.remove(request);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * One download that shares the limit.
+	 */
+	public class Transfer implements Closeable {
+		private final String name;
+		private volatile double weight;
+		private double virtualEnd;  // guarded by the limiter
+		private final AtomicLong bytes = new AtomicLong();
+		private double decayedRate;
+		private long rateTime = System.nanoTime();
+
+		private Transfer(String name, double weight) {
+			if (!(weight > 0))
+				throw new IllegalArgumentException("Weight must be positive: " + weight);
+			this.name = name;
+			this.weight = weight;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Changes the share of this transfer.  It must be positive.
+		 */
+		public void setWeight(double weight) {
+			if (!(weight > 0))
+				throw new IllegalArgumentException("Weight must be positive: " + weight);
+			this.weight = weight;
+		}
+
+		public double getWeight() {
+			return weight;
+		}
+
+		/**
+		 * Returns the number of bytes read so far.
+		 */
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * Returns the current rate in bytes per second, averaged over about
+		 * the last second.
+		 */
+		public synchronized double getRate() {
+			decay(System.nanoTime());
+			return decayedRate;
+		}
+
+		private void decay(long now) {
+			decayedRate *= Math.exp(-(now - rateTime) / 1e9 / RATE_TIME_CONSTANT);
+			rateTime = now;
+		}
+
+		private synchronized void count(int count) {
+			bytes.addAndGet(count);
+			decay(System.nanoTime());
+			decayedRate += count / RATE_TIME_CONSTANT;
+		}
+
+		/**
+		 * Returns a stream that reads from another one within the limit.
+		 */
+		public InputStream wrap(InputStream in) {
+			return new FilterInputStream(in) {
+				public int read() throws IOException {
+					int b = in.read();
+					if (b >= 0)
+						take(1);
+					return b;
+				}
+
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					int count = in.read(buffer, offset, Math.min(length, CHUNK));
+					if (count > 0)
+						take(count);
+					return count;
+				}
+
+				public long skip(long count) throws IOException {
+					long skipped = in.skip(Math.min(count, CHUNK));
+					if (skipped > 0)
+						take((int) skipped);
+					return skipped;
+				}
+			};
+		}
+
+		private void take(int count) throws InterruptedIOException {
+			try {
+				acquire(this, count);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+			count(count);
+		}
+
+		/**
+		 * Stops counting this transfer among the open ones.
+		 */
+		public void close() {
+			transfers.remove(this);
+		}
+	}
+}
@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads every URL in a manifest file, several at a time.  Each line of
+ * the manifest holds a URL, optionally followed by the name of the file to
+ * save it as, and optionally by weight=N; blank lines and lines starting
+ * with # are ignored.  Without a name, the last segment of the URL's path is
+ * used.
+ *
+ * <p>All downloads go through one java.net.http.HttpClient, which keeps its
+ * connections open and reuses them, and uses HTTP/2 where the server offers
+ * it, so that many requests to one host can share one connection.  The
+ * number of downloads running at once is limited overall, and separately
+ * for each host, so that a long manifest for one server doesn't open
+ * dozens of connections to it.  A download that fails with an I/O error, a
+ * 5xx status or 429 is tried again after a delay that doubles each time,
+ * with some random jitter, and at least as long as the server's Retry-After.
+ * Each file is written under its name plus ".part" and only renamed when
+ * it is complete, so a download that fails never leaves a cut-off file.
+ * When everything is done, a summary with the bytes, files, failures and
+ * throughput for each host is printed, and also written to the file named
+ * by the system property downloader.summary, if it is set.</p>
+ *
+ * <p>All the downloads share one BandwidthLimiter, so that together they
+ * leave room on the link for other traffic.  The limit is given by
+ * downloader.rate (such as "5M", in bytes per second; by default there is
+ * none), and can be changed while it runs by editing the properties file
+ * named by downloader.rateFile, if any, whose "rate" property overrides it.
+ * The bandwidth is shared between the downloads that are running in
+ * proportion to their weights (1 by default), and their current rates are
+ * printed every downloader.reportInterval milliseconds (default 5000; 0 for
+ * never).</p>
+ *
+ * <p>Usage: java BatchDownloader manifest [outputDirectory], with the system
+ * properties downloader.concurrency (default 8), downloader.perHost
+ * (default 4) and downloader.attempts (default 4).</p>
+ */
+public class BatchDownloader {
+
+	private final static long FIRST_RETRY_DELAY = 500;
+	private final static long MAX_RETRY_DELAY = 30000;
+
+	/**
+	 * One line of the manifest.
+	 */
+	private static class Job {
+		final URI uri;
+		final Path file;
+		final double weight;
+		Job(URI uri, Path file, double weight) {
+			this.uri = uri;
+			this.file = file;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * The totals for one host.  The throughput is the bytes divided by the
+	 * time from the start of its first download to the end of its last one.
+	 */
+	private static class HostStats {
+		long bytes;
+		int files;
+		int failures;
+		int retries;
+		long firstStart = Long.MAX_VALUE;
+		long lastEnd;
+	}
+
+	private final HttpClient client;
+	private final int concurrency;
+	private final int attempts;
+	private final int perHost;
+	private final Map<String,Semaphore> hostSlots = new ConcurrentHashMap<>();
+	private final Map<String,HostStats> stats = new TreeMap<>();
+	private final BandwidthLimiter limiter;
+
+	/**
+	 * @param concurrency The largest number of downloads at once.
+	 * @param perHost     The largest number of downloads at once from one host.
+	 * @param attempts    The number of times a download is tried.
+	 * @param limiter     The limit that all the downloads share.
+	 */
+	public BatchDownloader(int concurrency, int perHost, int attempts, BandwidthLimiter limiter) {
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(10))
+				.build();
+		this.concurrency = Math.max(concurrency, 1);
+		this.perHost = Math.max(perHost, 1);
+		this.attempts = Math.max(attempts, 1);
+		this.limiter = limiter;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: java BatchDownloader manifest [outputDirectory]");
+			return;
+		}
+		Path directory = Paths.get(args.length > 1 ? args[1] : ".");
+		List<Job> jobs;
+		BandwidthLimiter limiter;
+		try {
+			jobs = readManifest(Paths.get(args[0]), directory);
+		}
+		catch (IOException e) {
+			System.out.println("Can't read the manifest: " + e.getMessage());
+			return;
+		}
+		try {
+			limiter = new BandwidthLimiter(BandwidthLimiter.parseRate(System.getProperty("downloader.rate", "0")));
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		String rateFile = System.getProperty("downloader.rateFile");
+		if (rateFile != null)
+			limiter.watch(Paths.get(rateFile));
+		Files.createDirectories(directory);
+		BatchDownloader downloader = new BatchDownloader(
+				Integer.getInteger("downloader.concurrency", 8),
+				Integer.getInteger("downloader.perHost", 4),
+				Integer.getInteger("downloader.attempts", 4),
+				limiter);
+		long reportInterval = Long.getLong("downloader.reportInterval", 5000);
+		if (reportInterval > 0) {
+			Thread reporter = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(reportInterval);
+						System.out.print(limiter.describe());
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}, "Rate reporter");
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+		long start = System.nanoTime();
+		int failures = downloader.run(jobs);
+		String summary = downloader.summary((System.nanoTime() - start) / 1e9);
+		System.out.print(summary);
+		String summaryFile = System.getProperty("downloader.summary");
+		if (summaryFile != null)
+			Files.write(Paths.get(summaryFile), summary.getBytes(StandardCharsets.UTF_8));
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Reads a manifest, giving each URL the file that it will be saved in.
+	 *
+	 * @throws IOException If the file can't be read or has a bad URL in it.
+	 */
+	private static List<Job> readManifest(Path manifest, Path directory) throws IOException {
+		List<Job> jobs = new ArrayList<>();
+		Set<Path> used = new HashSet<>();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] parts = line.split("\\s+");
+			URI uri;
+			try {
+				uri = new URI(parts[0]);
+			}
+			catch (URISyntaxException e) {
+				throw new IOException(manifest + ":" + lineNumber + ": bad URL: " + parts[0]);
+			}
+			if (uri.getHost() == null || !(uri.getScheme().equals("http") || uri.getScheme().equals("https")))
+				throw new IOException(manifest + ":" + lineNumber + ": not an http or https URL: " + parts[0]);
+			String name = null;
+			double weight = 1;
+			for (int i = 1; i < parts.length; i++) {
+				if (parts[i].startsWith("weight=")) {
+					try {
+						weight = Double.parseDouble(parts[i].substring(7));
+					}
+					catch (NumberFormatException e) {
+						weight = 0;
+					}
+					if (!(weight > 0))
+						throw new IOException(manifest + ":" + lineNumber + ": bad weight: " + parts[i]);
+				}
+				else if (name == null) {
+					name = parts[i];
+				}
+				else {
+					throw new IOException(manifest + ":" + lineNumber + ": too many fields");
+				}
+			}
+			if (name == null)
+				name = fileName(uri);
+			Path file = directory.resolve(name);
+			// Two URLs that end in the same name get different files.
+			for (int i = 1; !used.add(file); i++)
+				file = directory.resolve(name + "-" + i);
+			jobs.add(new Job(uri, file, weight));
+		}
+		return jobs;
+	}
+
+	private static String fileName(URI uri) {
+		String path = uri.getPath();
+		String name = (path == null) ? "" : path.substring(path.lastIndexOf('/') + 1);
+		return name.isEmpty() ? "index.html" : name;
+	}
+
+	/**
+	 * Downloads all the jobs, and waits until they are done.  There is one
+	 * thread for each download that can run at once.  The jobs are handed
+	 * out taking one host after another, so that the threads are not all
+	 * waiting for the same busy host while other hosts have nothing to do.
+	 *
+	 * @return The number of downloads that failed.
+	 */
+	private int run(List<Job> jobs) throws InterruptedException {
+		Map<String,List<Job>> byHost = new LinkedHashMap<>();
+		for (Job job : jobs)
+			byHost.computeIfAbsent(hostOf(job.uri), h -> new ArrayList<>()).add(job);
+		List<Job> interleaved = new ArrayList<>();
+		for (int i = 0; interleaved.size() < jobs.size(); i++) {
+			for (List<Job> hostJobs : byHost.values()) {
+				if (i < hostJobs.size())
+					interleaved.add(hostJobs.get(i));
+			}
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+		int[] failures = { 0 };
+		for (Job job : interleaved) {
+			pool.execute(() -> {
+				if (!download(job)) {
+					synchronized (failures) {
+						failures[0]++;
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		return failures[0];
+	}
+
+	/**
+	 * Downloads one file, retrying as needed.
+	 *
+	 * @return true if it was downloaded.
+	 */
+	private boolean download(Job job) {
+		String host = hostOf(job.uri);
+		Semaphore hostLimit = hostSlots.computeIfAbsent(host, h -> new Semaphore(perHost));
+		String error = null;
+		int attempt;
+		for (attempt = 1; attempt <= attempts; attempt++) {
+			long retryAfter = 0;
+			try {
+				hostLimit.acquire();
+			}
+			catch (InterruptedException e) {
+				return false;
+			}
+			long start = System.nanoTime();
+			try {
+				HttpRequest request = HttpRequest.newBuilder(job.uri).timeout(Duration.ofSeconds(60)).GET().build();
+				HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+				int status = response.statusCode();
+				if (status == 200) {
+					long bytes;
+					Path part = Paths.get(job.file + ".part");
+					try (BandwidthLimiter.Transfer transfer = limiter.open(job.file.getFileName().toString(), job.weight);
+							InputStream in = transfer.wrap(response.body());
+							FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE,
+									StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+						bytes = TransferEngine.BUFFERED.transfer(in, out, 0, null);
+					}
+					catch (IOException e) {
+						Files.deleteIfExists(part);
+						throw e;
+					}
+					Files.move(part, job.file, StandardCopyOption.REPLACE_EXISTING);
+					record(host, bytes, start, false, attempt - 1);
+					System.out.println("Saved " + job.uri + " as " + job.file + " (" + bytes + " bytes)");
+					return true;
+				}
+				response.body().close();
+				error = "status " + status;
+				if (status != 429 && status < 500)
+					break;  // trying again won't help
+				retryAfter = parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+			}
+			catch (IOException e) {
+				error = e.toString();
+			}
+			catch (InterruptedException e) {
+				return false;
+			}
+			finally {
+				hostLimit.release();
+			}
+			if (attempt < attempts) {
+				long delay = Math.min(FIRST_RETRY_DELAY << (attempt - 1), MAX_RETRY_DELAY);
+				delay += ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+				try {
+					Thread.sleep(Math.max(delay, retryAfter));
+				}
+				catch (InterruptedException e) {
+					return false;
+				}
+			}
+		}
+		record(host, 0, System.nanoTime(), true, Math.min(attempt, attempts) - 1);
+		System.out.println("Failed: " + job.uri + " (" + error + ")");
+		return false;
+	}
+
+	private static String hostOf(URI uri) {
+		return uri.getHost() + (uri.getPort() < 0 ? "" : ":" + uri.getPort());
+	}
+
+	/**
+	 * Parses a Retry-After header given in seconds, returning milliseconds,
+	 * or 0 if there is none.  An HTTP date is not understood, and gives 0.
+	 */
+	private static long parseRetryAfter(String value) {
+		if (value == null)
+			return 0;
+		try {
+			return Math.min(Long.parseLong(value.trim()) * 1000, MAX_RETRY_DELAY);
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private void record(String host, long bytes, long start, boolean failed, int retries) {
+		long end = System.nanoTime();
+		synchronized (stats) {
+			HostStats s = stats.computeIfAbsent(host, h -> new HostStats());
+			if (failed) {
+				s.failures++;
+			}
+			else {
+				s.files++;
+				s.bytes += bytes;
+				s.firstStart = Math.min(s.firstStart, start);
+				s.lastEnd = Math.max(s.lastEnd, end);
+			}
+			s.retries += retries;
+		}
+	}
+
+	/**
+	 * Returns the summary table.
+	 */
+	private String summary(double seconds) {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("%-30s %8s %8s %8s %12s %10s%n", "host", "files", "failed", "retries", "MB", "MB/s"));
+		long totalBytes = 0;
+		synchronized (stats) {
+			for (Map.Entry<String,HostStats> entry : stats.entrySet()) {
+				HostStats s = entry.getValue();
+				double active = s.files > 0 ? (s.lastEnd - s.firstStart) / 1e9 : 0;
+				text.append(String.format("%-30s %8d %8d %8d %12.1f %10.1f%n", entry.getKey(), s.files, s.failures,
+						s.retries, s.bytes / 1e6, active > 0 ? s.bytes / 1e6 / active : 0));
+				totalBytes += s.bytes;
+			}
+		}
+		text.append(String.format("Total: %.1f MB in %.1f s, %.1f MB/s%n", totalBytes / 1e6, seconds,
+				seconds > 0 ? totalBytes / 1e6 / seconds : 0));
+		return text.toString();
+	}
+}
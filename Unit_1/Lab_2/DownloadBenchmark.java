@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the transfer engines that WebDownloader can use, by downloading
+ * the same data over and over from an HTTP server in this program, which
+ * serves it from memory on a local port.  The first run of each engine is
+ * not counted, to give the JIT compiler a chance to compile the code.
+ *
+ * <p>The byte loop makes a system call for every byte, so it is given only
+ * a sixteenth of the data, to keep the run short; its throughput is still
+ * comparable.</p>
+ *
+ * <p>Usage: java DownloadBenchmark [megabytes]</p>
+ */
+public class DownloadBenchmark {
+
+	private final static int RUNS = 4;
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		byte[] data = new byte[megabytes * 1024 * 1024];
+		new Random(1).nextBytes(data);
+		HttpServer server = startServer(data);
+		String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/data";
+		Path file = Files.createTempFile("download-benchmark", ".bin");
+		try {
+			System.out.printf("%-10s %10s %10s%n", "engine", "MB", "MB/s");
+			for (String name : new String[] { "byteloop", "buffered", "channel" }) {
+				TransferEngine engine = TransferEngine.forName(name);
+				long length = name.equals("byteloop") ? data.length / 16 : data.length;
+				for (int run = 0; run < RUNS; run++) {
+					long start = System.nanoTime();
+					long count = download(url + "?n=" + length, file, engine);
+					double seconds = (System.nanoTime() - start) / 1e9;
+					if (count != length)
+						throw new IOException("Downloaded " + count + " bytes instead of " + length);
+					if (run > 0)
+						System.out.printf("%-10s %10.1f %10.1f%n", name, count / 1e6, count / 1e6 / seconds);
+				}
+			}
+		}
+		finally {
+			Files.delete(file);
+			server.stop(0);
+		}
+	}
+
+	private static long download(String url, Path file, TransferEngine engine) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) new URI(url).toURL().openConnection();
+		try (InputStream in = connection.getInputStream();
+				FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			return engine.transfer(in, out, 0, null);
+		}
+	}
+
+	/**
+	 * Starts an HTTP server on a free local port that answers /data?n=N with
+	 * the first N bytes of the data.
+	 */
+	private static HttpServer startServer(byte[] data) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+		server.setExecutor(Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task);
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.createContext("/data", exchange -> {
+			String query = exchange.getRequestURI().getQuery();
+			int length = data.length;
+			if (query != null && query.startsWith("n="))
+				length = (int) Math.min(Long.parseLong(query.substring(2)), data.length);
+			exchange.sendResponseHeaders(200, length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(data, 0, length);
+			}
+		});
+		server.start();
+		return server;
+	}
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * A local cache of downloaded files, so that a file that has not changed is
+ * not downloaded again.  The cache is a directory with two parts:
+ *
+ * <pre>
+ * blobs/3f/3fa2...e1     the contents of a file, named by their SHA-256
+ * index/9c04...7b        what is known about a URL, named by the SHA-256 of the URL
+ * </pre>
+ *
+ * <p>An index entry is a small properties file holding the URL, the ETag and
+ * Last-Modified that the server sent with it, and the SHA-256 and length of
+ * the blob.  When a URL is in the index, the request is made conditional,
+ * with If-None-Match and If-Modified-Since, and a 304 Not Modified answer
+ * means the blob can be used as it is: the download costs one small
+ * request.  Since blobs are named by their contents, two URLs that serve the
+ * same bytes share one blob.</p>
+ *
+ * <p>The blob is put at the output path as a hard link when the cache and
+ * the output are on the same file system, and copied otherwise.  (Java has
+ * no way to ask for a copy-on-write clone.)  A hard link is the same file as
+ * the blob, so blobs are made read-only, which keeps the output from being
+ * changed in place by mistake and the cache from being corrupted with it.</p>
+ */
+public class DownloadCache {
+
+	/**
+	 * What happened when a file was fetched through the cache.
+	 */
+	public enum Result {
+		/** The server said the cached copy is still current. */
+		NOT_MODIFIED,
+		/** The file was downloaded, and its contents were already in the cache. */
+		DOWNLOADED_DUPLICATE,
+		/** The file was downloaded, and its contents were new. */
+		DOWNLOADED
+	}
+
+	private final Path blobs;
+	private final Path index;
+	private final TransferEngine engine;
+
+	/**
+	 * @param directory The cache directory.  It is created if needed.
+	 * @param engine    The engine used to save downloads.
+	 */
+	public DownloadCache(Path directory, TransferEngine engine) throws IOException {
+		this.blobs = Files.createDirectories(directory.resolve("blobs"));
+		this.index = Files.createDirectories(directory.resolve("index"));
+		this.engine = engine;
+	}
+
+	/**
+	 * Gets a file through the cache, and puts it at the output path.
+	 *
+	 * @param url      The URL of the file.
+	 * @param target   Where to put the file.  Anything there is replaced.
+	 * @param progress Told about the bytes downloaded, or null.
+	 * @return What was done.
+	 * @throws IOException If the download fails, or the server answers with
+	 *                     an error status.
+	 */
+	public Result fetch(String url, Path target, ProgressReporter progress) throws IOException {
+		Path entryFile = index.resolve(sha256(url.getBytes(StandardCharsets.UTF_8)));
+		Properties entry = readEntry(entryFile, url);
+		Path cached = entry == null ? null : blobPath(entry.getProperty("sha256"));
+
+		URLConnection connection;
+		try {
+			connection = new URI(url).toURL().openConnection();
+		}
+		catch (URISyntaxException e) {
+			throw new MalformedURLException(e.getMessage());
+		}
+		if (cached != null) {
+			if (entry.getProperty("etag") != null)
+				connection.setRequestProperty("If-None-Match", entry.getProperty("etag"));
+			if (entry.getProperty("lastModified") != null)
+				connection.setRequestProperty("If-Modified-Since", entry.getProperty("lastModified"));
+		}
+		connection.connect();
+		if (connection instanceof HttpURLConnection) {
+			int status = ((HttpURLConnection) connection).getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				((HttpURLConnection) connection).disconnect();
+				place(cached, target);
+				return Result.NOT_MODIFIED;
+			}
+			if (status != HttpURLConnection.HTTP_OK)
+				throw new IOException("The server answered " + status + " for " + url);
+		}
+		if (progress != null)
+			progress.setTotal(connection.getContentLengthLong());
+
+		// Download into a temporary file in the cache, finding the SHA-256 on
+		// the way, and then give it its name.
+		Path temp = Files.createTempFile(blobs, "download-", ".tmp");
+		String hash;
+		long length;
+		try {
+			MessageDigest digest = newDigest();
+			try (InputStream in = new DigestInputStream(connection.getInputStream(), digest);
+					FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				length = engine.transfer(in, out, 0, progress);
+			}
+			hash = TransferPipeline.hex(digest.digest());
+		}
+		catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Path blob = blobPath(hash);
+		Result result;
+		if (Files.exists(blob)) {
+			Files.delete(temp);
+			result = Result.DOWNLOADED_DUPLICATE;
+		}
+		else {
+			Files.createDirectories(blob.getParent());
+			temp.toFile().setReadOnly();
+			Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+			result = Result.DOWNLOADED;
+		}
+
+		Properties newEntry = new Properties();
+		newEntry.setProperty("url", url);
+		newEntry.setProperty("sha256", hash);
+		newEntry.setProperty("length", String.valueOf(length));
+		String eTag = connection.getHeaderField("ETag");
+		if (eTag != null)
+			newEntry.setProperty("etag", eTag);
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (lastModified != null)
+			newEntry.setProperty("lastModified", lastModified);
+		writeEntry(entryFile, newEntry);
+		place(blob, target);
+		return result;
+	}
+
+	/**
+	 * Reads the index entry for a URL.
+	 *
+	 * @return The entry, or null if there is none, it can't be read, it is
+	 *         for a different URL (which would take a SHA-256 collision), or
+	 *         its blob is missing or has the wrong length.
+	 */
+	private Properties readEntry(Path entryFile, String url) {
+		if (!Files.exists(entryFile))
+			return null;
+		Properties entry = new Properties();
+		try (Reader in = Files.newBufferedReader(entryFile, StandardCharsets.UTF_8)) {
+			entry.load(in);
+			String hash = entry.getProperty("sha256");
+			if (!url.equals(entry.getProperty("url")) || hash == null || !hash.matches("[0-9a-f]{64}"))
+				return null;
+			Path blob = blobPath(hash);
+			if (!Files.exists(blob) || Files.size(blob) != Long.parseLong(entry.getProperty("length", "-1")))
+				return null;
+		}
+		catch (IOException | NumberFormatException e) {
+			return null;
+		}
+		return entry;
+	}
+
+	private void writeEntry(Path entryFile, Properties entry) throws IOException {
+		Path temp = entryFile.resolveSibling(entryFile.getFileName() + ".tmp");
+		try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			entry.store(out, "Download cache entry");
+		}
+		Files.move(temp, entryFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private Path blobPath(String hash) {
+		return blobs.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	/**
+	 * Puts a blob at the output path, as a hard link if possible.
+	 */
+	private static void place(Path blob, Path target) throws IOException {
+		Files.deleteIfExists(target);
+		try {
+			Files.createLink(target, blob);
+		}
+		catch (UnsupportedOperationException | FileSystemException e) {
+			// A different file system, or one without hard links.
+			Files.copy(blob, target, StandardCopyOption.REPLACE_EXISTING);
+			target.toFile().setWritable(true);
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);  // Every JVM has SHA-256.
+		}
+	}
+
+	private static String sha256(byte[] data) {
+		return TransferPipeline.hex(newDigest().digest(data));
+	}
+}
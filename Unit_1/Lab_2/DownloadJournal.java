@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * The journal of a resumable download, kept next to the partial file.  It
+ * records which file is being downloaded, the validators that identify the
+ * version of it (ETag and Last-Modified), and how far each segment has got,
+ * as a small properties file:
+ *
+ * <pre>
+ * url = http://example.com/big.iso
+ * length = 4700000000
+ * etag = "5f3a-1c0"
+ * lastModified = Tue, 15 Oct 2024 10:00:00 GMT
+ * segments = 2
+ * segment.0 = 0 2349999999 1048576000
+ * segment.1 = 2350000000 4699999999 0
+ * </pre>
+ *
+ * <p>where each segment is given by its first byte, its last byte, and the
+ * number of bytes of it that are on disk.  The data file is forced to disk
+ * before the journal is written, and the journal is replaced in one atomic
+ * step, so the journal never claims more than the file holds, even after a
+ * crash.</p>
+ */
+public class DownloadJournal {
+
+	private final Path path;
+
+	/**
+	 * @param path The journal file.
+	 */
+	public DownloadJournal(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Reads the journal, if it describes the same version of the same file.
+	 *
+	 * @param url   The URL being downloaded.
+	 * @param probe What the server says about the file now.
+	 * @return The segments, with the bytes done in each, or null if there is
+	 *         no journal, it can't be read, or it is for a different URL or a
+	 *         different version of the file.
+	 */
+	public List<SegmentedDownloader.Segment> load(String url, SegmentedDownloader.Probe probe) {
+		if (!Files.exists(path))
+			return null;
+		Properties properties = new Properties();
+		try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			properties.load(in);
+		}
+		catch (IOException e) {
+			return null;
+		}
+		if (!url.equals(properties.getProperty("url"))
+				|| !String.valueOf(probe.length).equals(properties.getProperty("length"))
+				|| !Objects.equals(probe.eTag, properties.getProperty("etag"))
+				|| !Objects.equals(probe.lastModified, properties.getProperty("lastModified")))
+			return null;
+		List<SegmentedDownloader.Segment> segments = new ArrayList<>();
+		try {
+			int count = Integer.parseInt(properties.getProperty("segments", ""));
+			for (int i = 0; i < count; i++) {
+				String[] values = properties.getProperty("segment." + i, "").trim().split("\\s+");
+				long start = Long.parseLong(values[0]);
+				long end = Long.parseLong(values[1]);
+				long done = Long.parseLong(values[2]);
+				if (start < 0 || end < start || end >= probe.length || done < 0 || done > end - start + 1)
+					return null;
+				segments.add(new SegmentedDownloader.Segment(start, end, done));
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			return null;
+		}
+		return segments.isEmpty() ? null : segments;
+	}
+
+	/**
+	 * Records the progress of the segments.  The data written so far is
+	 * forced to disk first.
+	 *
+	 * @param url      The URL being downloaded.
+	 * @param probe    What the server said about the file.
+	 * @param segments The segments.  They may still be downloading.
+	 * @param data     The partial file.
+	 */
+	public synchronized void save(String url, SegmentedDownloader.Probe probe,
+			List<SegmentedDownloader.Segment> segments, FileChannel data) throws IOException {
+		// Take the counts before forcing the data, so they never include a
+		// byte that was written after it.
+		long[] done = new long[segments.size()];
+		for (int i = 0; i < done.length; i++)
+			done[i] = segments.get(i).getDone();
+		data.force(false);
+		Properties properties = new Properties();
+		properties.setProperty("url", url);
+		properties.setProperty("length", String.valueOf(probe.length));
+		if (probe.eTag != null)
+			properties.setProperty("etag", probe.eTag);
+		if (probe.lastModified != null)
+			properties.setProperty("lastModified", probe.lastModified);
+		properties.setProperty("segments", String.valueOf(done.length));
+		for (int i = 0; i < done.length; i++) {
+			SegmentedDownloader.Segment segment = segments.get(i);
+			properties.setProperty("segment." + i, segment.start + " " + segment.end + " " + done[i]);
+		}
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			properties.store(out, "Download journal");
+		}
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Deletes the journal.
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(path);
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts a binary file of ints that may be much bigger than memory, with an
+ * external merge sort in two phases:
+ *
+ * <ol>
+ * <li>Runs.  The file is cut into runs of up to runSize ints.  Several
+ *     threads at once each read a run, through a direct (off-heap) buffer
+ *     of their own, sort it with IntSorting.radixSort(), and write it to a
+ *     temporary file through a memory mapping.</li>
+ * <li>Merge.  The run files are mapped, and merged in one pass: a binary
+ *     heap held in two int arrays (values and run numbers, so no objects
+ *     are made per item) gives the smallest next item of all the runs.
+ *     Items are taken from the mappings a block at a time, and the output
+ *     is written through a direct buffer.</li>
+ * </ol>
+ *
+ * <p>So the data is read twice and written twice, whatever its size, and
+ * memory use is about threads * runSize * 12 bytes (the run, the radix
+ * sort's buffer, and the direct buffer).  The ints are big-endian, as
+ * DataOutputStream writes them, unless the system property sort.order is
+ * "little".</p>
+ *
+ * <p>Usage:</p>
+ *
+ * <pre>
+ * java ExternalSort input output        sort a file
+ * java ExternalSort --generate n file   write n random ints, for testing
+ * java ExternalSort --verify file       check that a file is sorted
+ * </pre>
+ *
+ * <p>with the system properties sort.runSize (ints per run, by default
+ * what fits in a third of the heap with all the threads busy),
+ * sort.threads (default: the number of processors) and sort.tmpdir (where
+ * the runs go; by default the directory of the output, so they are on the
+ * same disk).  The time and throughput of each phase are printed.</p>
+ */
+public class ExternalSort {
+
+	/**
+	 * Ints taken from a run's mapping at a time during the merge.
+	 */
+	private final static int MERGE_BLOCK = 8192;
+
+	/**
+	 * Bytes written to the output at a time during the merge.
+	 */
+	private final static int OUTPUT_BUFFER = 1 << 20;
+
+	private final ByteOrder order;
+	private final int runSize;
+	private final int threads;
+	private final Path tempDirectory;
+
+	/**
+	 * @param order         The byte order of the ints in the files.
+	 * @param runSize       The most ints in one run.
+	 * @param threads       The number of runs sorted at once.
+	 * @param tempDirectory Where to put the run files.
+	 */
+	public ExternalSort(ByteOrder order, int runSize, int threads, Path tempDirectory) {
+		this.order = order;
+		this.runSize = runSize;
+		this.threads = threads;
+		this.tempDirectory = tempDirectory;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ByteOrder order = "little".equalsIgnoreCase(System.getProperty("sort.order")) ? ByteOrder.LITTLE_ENDIAN
+				: ByteOrder.BIG_ENDIAN;
+		if (args.length == 3 && args[0].equals("--generate")) {
+			long start = System.nanoTime();
+			generate(Paths.get(args[2]), Long.parseLong(args[1]), order);
+			report("Generated", Files.size(Paths.get(args[2])), start);
+			return;
+		}
+		if (args.length == 2 && args[0].equals("--verify")) {
+			long start = System.nanoTime();
+			long bad = verify(Paths.get(args[1]), order);
+			report("Verified", Files.size(Paths.get(args[1])), start);
+			System.out.println(bad < 0 ? "The file is sorted." : "Out of order at int " + bad);
+			if (bad >= 0)
+				System.exit(1);
+			return;
+		}
+		if (args.length != 2) {
+			System.out.println("Usage: java ExternalSort input output");
+			System.out.println("       java ExternalSort --generate count file");
+			System.out.println("       java ExternalSort --verify file");
+			return;
+		}
+		Path input = Paths.get(args[0]);
+		Path output = Paths.get(args[1]).toAbsolutePath();
+		int threads = Integer.getInteger("sort.threads", Runtime.getRuntime().availableProcessors());
+		long defaultRunSize = Runtime.getRuntime().maxMemory() / 3 / 12 / threads;
+		int runSize = Integer.getInteger("sort.runSize", (int) Math.min(defaultRunSize, Integer.MAX_VALUE / 4));
+		Path tempDirectory = Paths.get(System.getProperty("sort.tmpdir", output.getParent().toString()));
+		new ExternalSort(order, runSize, threads, tempDirectory).sort(input, output);
+	}
+
+	/**
+	 * Sorts a file into another one.
+	 *
+	 * @throws IOException If a file can't be read or written, or the input
+	 *                     is not a whole number of ints.
+	 */
+	public void sort(Path input, Path output) throws IOException, InterruptedException {
+		long bytes = Files.size(input);
+		if (bytes % 4 != 0)
+			throw new IOException(input + " is not a whole number of ints");
+		long start = System.nanoTime();
+		List<Path> runs = makeRuns(input, bytes / 4);
+		report("Sorted " + runs.size() + " runs of up to " + runSize + " ints;", bytes, start);
+		try {
+			start = System.nanoTime();
+			merge(runs, output);
+			report("Merged", bytes, start);
+		}
+		finally {
+			for (Path run : runs)
+				Files.deleteIfExists(run);
+		}
+	}
+
+	/**
+	 * Phase 1: sorts the runs, in parallel.
+	 *
+	 * @return The run files, in order.
+	 */
+	private List<Path> makeRuns(Path input, long count) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(runSize * 4).order(order));
+		List<Path> runs = new ArrayList<>();
+		List<Future<?>> tasks = new ArrayList<>();
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+			for (long first = 0; first < count; first += runSize) {
+				long position = first * 4;
+				int size = (int) Math.min(runSize, count - first);
+				Path run = Files.createTempFile(tempDirectory, "run-", ".tmp");
+				runs.add(run);
+				tasks.add(pool.submit(() -> {
+					ByteBuffer buffer = buffers.get();
+					buffer.clear().limit(size * 4);
+					while (buffer.hasRemaining()) {
+						if (in.read(buffer, position + buffer.position()) < 0)
+							throw new IOException("The input got shorter");
+					}
+					buffer.flip();
+					int[] items = new int[size];
+					buffer.asIntBuffer().get(items);
+					IntSorting.radixSort(items);
+					try (FileChannel out = FileChannel.open(run, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+						MappedByteBuffer mapped = out.map(FileChannel.MapMode.READ_WRITE, 0, size * 4L);
+						mapped.order(order).asIntBuffer().put(items);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> task : tasks)
+				task.get();
+		}
+		catch (ExecutionException e) {
+			for (Path run : runs)
+				Files.deleteIfExists(run);
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return runs;
+	}
+
+	/**
+	 * One run, being read during the merge.
+	 */
+	private class RunReader {
+		private final IntBuffer mapped;
+		private final int[] block = new int[MERGE_BLOCK];
+		private int position;
+		private int limit;
+
+		RunReader(Path run) throws IOException {
+			try (FileChannel channel = FileChannel.open(run, StandardOpenOption.READ)) {
+				// The mapping stays valid after the channel is closed.
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(order).asIntBuffer();
+			}
+		}
+
+		/**
+		 * Tests whether there is another item, reading the next block if needed.
+		 */
+		boolean hasNext() {
+			if (position < limit)
+				return true;
+			limit = Math.min(block.length, mapped.remaining());
+			mapped.get(block, 0, limit);
+			position = 0;
+			return limit > 0;
+		}
+
+		int next() {
+			return block[position++];
+		}
+	}
+
+	/**
+	 * Phase 2: merges the runs into the output.
+	 */
+	private void merge(List<Path> runs, Path output) throws IOException {
+		RunReader[] readers = new RunReader[runs.size()];
+		for (int i = 0; i < readers.length; i++)
+			readers[i] = new RunReader(runs.get(i));
+
+		// The heap: heapValues[i] is the next item of run heapRuns[i].
+		int[] heapValues = new int[readers.length];
+		int[] heapRuns = new int[readers.length];
+		int heapSize = 0;
+		for (int r = 0; r < readers.length; r++) {
+			if (readers[r].hasNext()) {
+				heapValues[heapSize] = readers[r].next();
+				heapRuns[heapSize] = r;
+				heapSize++;
+			}
+		}
+		for (int i = heapSize / 2 - 1; i >= 0; i--)
+			siftDown(heapValues, heapRuns, heapSize, i);
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER).order(order);
+		IntBuffer ints = buffer.asIntBuffer();
+		try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (heapSize > 0) {
+				ints.put(heapValues[0]);
+				if (!ints.hasRemaining()) {
+					flush(out, buffer, ints);
+				}
+				RunReader reader = readers[heapRuns[0]];
+				if (reader.hasNext()) {
+					heapValues[0] = reader.next();
+				}
+				else {
+					heapSize--;
+					heapValues[0] = heapValues[heapSize];
+					heapRuns[0] = heapRuns[heapSize];
+				}
+				siftDown(heapValues, heapRuns, heapSize, 0);
+			}
+			flush(out, buffer, ints);
+		}
+	}
+
+	/**
+	 * Writes the ints put in the buffer so far, and empties it.
+	 */
+	private static void flush(FileChannel out, ByteBuffer buffer, IntBuffer ints) throws IOException {
+		buffer.clear().limit(ints.position() * 4);
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		ints.clear();
+	}
+
+	/**
+	 * Moves the item at i down the heap to where it belongs.  Ties are broken
+	 * by run number, so equal items come out in the order of their runs.
+	 */
+	private static void siftDown(int[] values, int[] runs, int size, int i) {
+		int value = values[i];
+		int run = runs[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && (values[child + 1] < values[child]
+					|| values[child + 1] == values[child] && runs[child + 1] < runs[child]))
+				child++;
+			if (value < values[child] || value == values[child] && run < runs[child])
+				break;
+			values[i] = values[child];
+			runs[i] = runs[child];
+			i = child;
+		}
+		values[i] = value;
+		runs[i] = run;
+	}
+
+	/**
+	 * Writes a file of random ints.
+	 */
+	private static void generate(Path file, long count, ByteOrder order) throws IOException {
+		Random random = new Random();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER).order(order);
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (long written = 0; written < count; ) {
+				buffer.clear();
+				while (buffer.hasRemaining() && written < count) {
+					buffer.putInt(random.nextInt());
+					written++;
+				}
+				buffer.flip();
+				while (buffer.hasRemaining())
+					out.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Checks that a file is sorted.
+	 *
+	 * @return The index of the first int that is less than the one before
+	 *         it, or -1 if there is none.
+	 */
+	private static long verify(Path file, ByteOrder order) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER).order(order);
+		long index = 0;
+		int previous = Integer.MIN_VALUE;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (in.read(buffer) >= 0 || buffer.position() > 0) {
+				buffer.flip();
+				while (buffer.remaining() >= 4) {
+					int item = buffer.getInt();
+					if (item < previous)
+						return index;
+					previous = item;
+					index++;
+				}
+				buffer.compact();
+				if (buffer.position() > 0 && in.position() == in.size())
+					break;  // a few bytes left over at the end
+			}
+		}
+		return -1;
+	}
+
+	private static void report(String what, long bytes, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%s %.1f MB in %.2f s, %.1f MB/s%n", what, bytes / 1e6, seconds, bytes / 1e6 / seconds);
+	}
+}
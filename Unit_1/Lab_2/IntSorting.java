@@ -0,0 +1,371 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorting methods for arrays of ints, faster than the selection sort in
+ * BenchmarkingSortingAlgorithms, and a method, sort(), that chooses between
+ * them.  SortBenchmark checks and times them all.
+ *
+ * <ul>
+ * <li>dualPivotQuicksort() -- quicksort that splits each part into three
+ *     around two pivots, and uses insertion sort for parts of up to
+ *     INSERTION_SORT_THRESHOLD items.</li>
+ * <li>radixSort() -- least-significant-digit radix sort, one byte at a
+ *     time.  It takes four passes over the data whatever the data is, and
+ *     needs a second array as big as the first.</li>
+ * <li>parallelMergeSort() -- merge sort in which the two halves are sorted
+ *     at the same time on a fork/join pool, down to parts of
+ *     MERGE_TASK_SIZE items, which are sorted with radix sort.  Two
+ *     neighbouring parts that are already in order are not merged.  For
+ *     data that is mostly in order, sort() has the parts sorted by merge
+ *     sort instead, which keeps the runs that are already there.</li>
+ * </ul>
+ *
+ * <p>RADIX_SORT_THRESHOLD comes from SortBenchmark: radix sort beats
+ * quicksort (and Arrays.sort()) on random data from about 2,000 items, and
+ * is 4 to 5 times faster from 100,000 items up.  On one processor the
+ * parallel merge sort is radix sort plus a few merge passes, so it only
+ * pays when there are more; PARALLEL_THRESHOLD is where it has at least 8
+ * parts to share out.</p>
+ */
+public class IntSorting {
+
+	/**
+	 * Parts of this size or less are sorted with insertion sort.
+	 */
+	public final static int INSERTION_SORT_THRESHOLD = 47;
+
+	/**
+	 * Arrays of at least this size are sorted with radix sort by sort().
+	 */
+	public final static int RADIX_SORT_THRESHOLD = 2_000;
+
+	/**
+	 * Arrays of at least this size are sorted in parallel by sort().
+	 */
+	public final static int PARALLEL_THRESHOLD = 8 << 15;
+
+	/**
+	 * parallelMergeSort() sorts parts of this size or less on one thread.
+	 */
+	public final static int MERGE_TASK_SIZE = 1 << 15;
+
+	/**
+	 * The number of pairs of neighbours that sort() looks at to guess
+	 * whether an array is already nearly in order.
+	 */
+	private final static int SAMPLES = 256;
+
+	private IntSorting() {
+	}
+
+	/**
+	 * Sorts an array into increasing order, choosing the method from its
+	 * length and from how ordered a sample of it is:
+	 *
+	 * <ul>
+	 * <li>If the sample is all in order, the whole array is checked, and if
+	 *     it is sorted, nothing more is done.  Likewise, an array in
+	 *     reverse order is just reversed.</li>
+	 * <li>If the sample is mostly in order, the array is sorted by merge
+	 *     sort, which doesn't merge runs that are already in order, in
+	 *     parallel if the array is large enough.</li>
+	 * <li>Otherwise, it is sorted with insertion sort, quicksort, radix sort
+	 *     or parallel merge sort, as the length calls for.</li>
+	 * </ul>
+	 */
+	public static void sort(int[] array) {
+		int n = array.length;
+		if (n <= INSERTION_SORT_THRESHOLD) {
+			insertionSort(array, 0, n - 1);
+			return;
+		}
+		int ascending = 0;
+		int descending = 0;
+		int samples = Math.min(SAMPLES, n - 1);
+		for (int s = 0; s < samples; s++) {
+			int i = (int) ((long) s * (n - 1) / samples);
+			if (array[i] < array[i + 1])
+				ascending++;
+			else if (array[i] > array[i + 1])
+				descending++;
+		}
+		boolean parallel = n >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+		if (descending == 0 && isSorted(array, 0, n))
+			return;
+		if (ascending == 0 && isReversed(array)) {
+			reverse(array);
+			return;
+		}
+		if (descending < samples / 16 || ascending < samples / 16) {
+			// Mostly in order one way or the other.  Merge sort does well on
+			// long runs; a reversed run is a worst case for it, so reverse
+			// the array first if that makes it mostly ascending.
+			if (ascending < descending)
+				reverse(array);
+			if (parallel)
+				ForkJoinPool.commonPool().invoke(new MergeSortTask(array, new int[n], 0, n, true));
+			else
+				mergeSort(array, new int[n], 0, n);
+			return;
+		}
+		if (parallel)
+			parallelMergeSort(array);
+		else if (n >= RADIX_SORT_THRESHOLD)
+			radixSort(array);
+		else
+			dualPivotQuicksort(array);
+	}
+
+	/**
+	 * Sorts an array with quicksort, using two pivots.
+	 */
+	public static void dualPivotQuicksort(int[] array) {
+		dualPivotQuicksort(array, 0, array.length - 1, 2 * (32 - Integer.numberOfLeadingZeros(array.length)));
+	}
+
+	/**
+	 * Sorts array[left..right] (inclusive).  If the recursion gets deeper
+	 * than depthLimit, which only happens with unlucky pivots, the rest is
+	 * handed to radix sort, so the time is never quadratic.
+	 */
+	private static void dualPivotQuicksort(int[] array, int left, int right, int depthLimit) {
+		while (right - left >= INSERTION_SORT_THRESHOLD) {
+			if (depthLimit-- == 0) {
+				radixSort(array, left, right + 1);
+				return;
+			}
+			// Take the pivots from a third and two thirds of the way along,
+			// so that sorted and reversed input split evenly.
+			int third = (right - left) / 3;
+			swap(array, left, left + third);
+			swap(array, right, right - third);
+			if (array[left] > array[right])
+				swap(array, left, right);
+			int pivot1 = array[left];
+			int pivot2 = array[right];
+
+			// Partition into  < pivot1 | pivot1 <= x <= pivot2 | > pivot2.
+			int less = left + 1;
+			int great = right - 1;
+			for (int k = less; k <= great; k++) {
+				int item = array[k];
+				if (item < pivot1) {
+					array[k] = array[less];
+					array[less++] = item;
+				}
+				else if (item > pivot2) {
+					while (array[great] > pivot2 && k < great)
+						great--;
+					array[k] = array[great];
+					array[great--] = item;
+					item = array[k];
+					if (item < pivot1) {
+						array[k] = array[less];
+						array[less++] = item;
+					}
+				}
+			}
+			array[left] = array[less - 1];
+			array[less - 1] = pivot1;
+			array[right] = array[great + 1];
+			array[great + 1] = pivot2;
+
+			dualPivotQuicksort(array, left, less - 2, depthLimit);
+			dualPivotQuicksort(array, great + 2, right, depthLimit);
+			if (pivot1 == pivot2)
+				return;  // The middle part is all equal.
+			// Loop on the middle part, rather than recursing.
+			left = less;
+			right = great;
+		}
+		insertionSort(array, left, right);
+	}
+
+	/**
+	 * Sorts an array with LSD radix sort.
+	 */
+	public static void radixSort(int[] array) {
+		radixSort(array, 0, array.length);
+	}
+
+	/**
+	 * Sorts array[from..to) with LSD radix sort, eight bits at a time.  The
+	 * sign bit is flipped in the last pass so that negative numbers come
+	 * first.  A pass in which every item has the same digit is skipped.
+	 */
+	private static void radixSort(int[] array, int from, int to) {
+		int n = to - from;
+		if (n < 2)
+			return;
+		int[] source = array;
+		int sourceFrom = from;
+		int[] target = new int[n];
+		int targetFrom = 0;
+		int[] counts = new int[256];
+		for (int shift = 0; shift < 32; shift += 8) {
+			int flip = (shift == 24) ? 0x80 : 0;
+			Arrays.fill(counts, 0);
+			for (int i = sourceFrom; i < sourceFrom + n; i++)
+				counts[((source[i] >>> shift) & 0xFF) ^ flip]++;
+			if (counts[((source[sourceFrom] >>> shift) & 0xFF) ^ flip] == n)
+				continue;
+			int position = targetFrom;
+			for (int d = 0; d < 256; d++) {
+				int count = counts[d];
+				counts[d] = position;
+				position += count;
+			}
+			for (int i = sourceFrom; i < sourceFrom + n; i++) {
+				int item = source[i];
+				target[counts[((item >>> shift) & 0xFF) ^ flip]++] = item;
+			}
+			int[] swapArray = source;
+			source = target;
+			target = swapArray;
+			int swapFrom = sourceFrom;
+			sourceFrom = targetFrom;
+			targetFrom = swapFrom;
+		}
+		if (source != array)
+			System.arraycopy(source, sourceFrom, array, from, n);
+	}
+
+	/**
+	 * Sorts an array with merge sort, sorting the halves in parallel on the
+	 * common fork/join pool.
+	 */
+	public static void parallelMergeSort(int[] array) {
+		if (array.length <= MERGE_TASK_SIZE) {
+			sortPart(array, 0, array.length);
+			return;
+		}
+		ForkJoinPool.commonPool().invoke(new MergeSortTask(array, new int[array.length], 0, array.length, false));
+	}
+
+	/**
+	 * Sorts array[from..to), with buffer as space for merging.  The parts
+	 * of up to MERGE_TASK_SIZE items are sorted with mergeSort() if the data
+	 * is mostly in order, since it keeps the runs that radix sort would
+	 * throw away, and with sortPart() otherwise.
+	 */
+	private static class MergeSortTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] array;
+		private final int[] buffer;
+		private final int from;
+		private final int to;
+		private final boolean mostlySorted;
+
+		MergeSortTask(int[] array, int[] buffer, int from, int to, boolean mostlySorted) {
+			this.array = array;
+			this.buffer = buffer;
+			this.from = from;
+			this.to = to;
+			this.mostlySorted = mostlySorted;
+		}
+
+		protected void compute() {
+			if (to - from <= MERGE_TASK_SIZE) {
+				if (mostlySorted)
+					mergeSort(array, buffer, from, to);
+				else
+					sortPart(array, from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new MergeSortTask(array, buffer, from, middle, mostlySorted),
+					new MergeSortTask(array, buffer, middle, to, mostlySorted));
+			merge(array, buffer, from, middle, to);
+		}
+	}
+
+	/**
+	 * Sorts array[from..to) with radix sort or quicksort, whichever is
+	 * faster for its size.
+	 */
+	private static void sortPart(int[] array, int from, int to) {
+		if (to - from >= RADIX_SORT_THRESHOLD)
+			radixSort(array, from, to);
+		else
+			dualPivotQuicksort(array, from, to - 1, 2 * (32 - Integer.numberOfLeadingZeros(to - from)));
+	}
+
+	/**
+	 * Sorts array[from..to) with merge sort on this thread.
+	 */
+	private static void mergeSort(int[] array, int[] buffer, int from, int to) {
+		if (to - from <= INSERTION_SORT_THRESHOLD) {
+			insertionSort(array, from, to - 1);
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(array, buffer, from, middle);
+		mergeSort(array, buffer, middle, to);
+		merge(array, buffer, from, middle, to);
+	}
+
+	/**
+	 * Merges the sorted parts array[from..middle) and array[middle..to).
+	 * Nothing is done if they are already in order.
+	 */
+	private static void merge(int[] array, int[] buffer, int from, int middle, int to) {
+		if (array[middle - 1] <= array[middle])
+			return;
+		System.arraycopy(array, from, buffer, from, middle - from);
+		int i = from;       // next in the left part, which is in the buffer
+		int j = middle;     // next in the right part
+		int k = from;       // next place to fill
+		while (i < middle && j < to)
+			array[k++] = (buffer[i] <= array[j]) ? buffer[i++] : array[j++];
+		// Whatever is left of the right part is already in place.
+		System.arraycopy(buffer, i, array, k, middle - i);
+	}
+
+	/**
+	 * Sorts array[left..right] (inclusive) with insertion sort.
+	 */
+	private static void insertionSort(int[] array, int left, int right) {
+		for (int top = left + 1; top <= right; top++) {
+			int item = array[top];
+			int pos = top - 1;
+			while (pos >= left && array[pos] > item) {
+				array[pos + 1] = array[pos];
+				pos--;
+			}
+			array[pos + 1] = item;
+		}
+	}
+
+	/**
+	 * Tests whether array[from..to) is in increasing order.
+	 */
+	public static boolean isSorted(int[] array, int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			if (array[i - 1] > array[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isReversed(int[] array) {
+		for (int i = 1; i < array.length; i++) {
+			if (array[i - 1] < array[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static void reverse(int[] array) {
+		for (int i = 0, j = array.length - 1; i < j; i++, j--)
+			swap(array, i, j);
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		int temp = array[i];
+		array[i] = array[j];
+		array[j] = temp;
+	}
+}
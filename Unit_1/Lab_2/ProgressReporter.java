@@ -0,0 +1,87 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows how a download is going: the bytes received so far, the percentage
+ * of the total if it is known, and the throughput.  The line is rewritten in
+ * place at most a few times a second, so reporting costs almost nothing even
+ * when it is told about every byte.  It can be told about bytes from several
+ * threads at once.
+ */
+public class ProgressReporter implements TransferEngine.Progress {
+
+	/**
+	 * Milliseconds between updates of the progress line.
+	 */
+	private final static long UPDATE_INTERVAL = 500;
+
+	private final PrintStream out;
+	private volatile long total;   // Expected number of bytes, or -1 if unknown.
+	private final long startTime;  // System.nanoTime() when the download started.
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong nextUpdate;
+
+	/**
+	 * Creates a reporter for a download.
+	 *
+	 * @param out   Where to show the progress, or null to show nothing.
+	 * @param total The expected number of bytes, or -1 if unknown.
+	 */
+	public ProgressReporter(PrintStream out, long total) {
+		this.out = out;
+		this.total = total;
+		this.startTime = System.nanoTime();
+		this.nextUpdate = new AtomicLong(startTime + UPDATE_INTERVAL * 1_000_000);
+	}
+
+	public void transferred(long count) {
+		long sum = bytes.addAndGet(count);
+		long now = System.nanoTime();
+		long due = nextUpdate.get();
+		if (out != null && now - due >= 0 && nextUpdate.compareAndSet(due, now + UPDATE_INTERVAL * 1_000_000))
+			out.print("\r" + describe(sum, now) + "   ");
+	}
+
+	/**
+	 * Sets the expected number of bytes, once it is known.
+	 */
+	public void setTotal(long total) {
+		this.total = total;
+	}
+
+	/**
+	 * Returns the number of bytes transferred so far.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the average throughput so far, in bytes per second.
+	 */
+	public double getThroughput() {
+		return throughput(bytes.get(), System.nanoTime());
+	}
+
+	/**
+	 * Prints the final line, with the totals.
+	 */
+	public void finish() {
+		if (out != null)
+			out.println("\r" + describe(bytes.get(), System.nanoTime()) + " in "
+					+ String.format("%.1f", (System.nanoTime() - startTime) / 1e9) + " s   ");
+	}
+
+	private double throughput(long sum, long now) {
+		double seconds = (now - startTime) / 1e9;
+		return seconds > 0 ? sum / seconds : 0;
+	}
+
+	private String describe(long sum, long now) {
+		long total = this.total;
+		String text = String.format("%.1f MB", sum / 1e6);
+		if (total > 0)
+			text += String.format(" of %.1f MB (%d%%)", total / 1e6, sum * 100 / total);
+		return text + String.format(" at %.1f MB/s", throughput(sum, now) / 1e6);
+	}
+}
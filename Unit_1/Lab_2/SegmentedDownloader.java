@@ -0,0 +1,544 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file over several connections at once, each fetching one
+ * byte range of it with an HTTP Range request.  Servers often limit the
+ * speed of each connection, so this can be much faster than one stream.
+ *
+ * <p>The server is first asked for the first byte of the file.  A 206
+ * Partial Content answer gives the length of the file and shows that ranges
+ * are supported; any other answer means they are not, and the file is
+ * downloaded as a single stream from that same response.  Otherwise the
+ * output file is set to its full length, and the file is split into
+ * segments that are fetched concurrently, each one written at its own offset
+ * with positional writes.  A segment that fails is retried on its own, from
+ * the byte where it stopped, while the others carry on.  The segment
+ * requests carry an If-Range header with the file's validator, so if the
+ * file changes on the server during the download, the server sends the
+ * whole new file instead of a range, and the download fails rather than
+ * mixing two versions.</p>
+ *
+ * <p>downloadResumable() keeps the data in FILE.part and records the
+ * progress of the segments in a DownloadJournal, FILE.part.journal, every
+ * JOURNAL_INTERVAL and when the download stops.  If it is run again for the
+ * same URL and the server still has the same version of the file, only the
+ * missing ranges are fetched.</p>
+ */
+public class SegmentedDownloader {
+
+	/**
+	 * Files are not split into segments smaller than this.
+	 */
+	private final static long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+	/**
+	 * The number of times that one segment is tried before the download fails.
+	 */
+	private final static int MAX_ATTEMPTS = 5;
+
+	/**
+	 * Milliseconds to wait before the first retry of a segment.  The wait
+	 * doubles with each further retry.
+	 */
+	private final static long RETRY_DELAY = 500;
+
+	/**
+	 * Milliseconds between saves of the journal of a resumable download.
+	 */
+	private final static long JOURNAL_INTERVAL = 1000;
+
+	private final static int CONNECT_TIMEOUT = 10000;
+	private final static int READ_TIMEOUT = 30000;
+
+	/**
+	 * What the first request found out about a remote file.
+	 */
+	public static class Probe {
+		public final long length;           // -1 if not known
+		public final boolean ranges;        // true if the server answered with a range
+		public final String eTag;           // null if the server sent none
+		public final String lastModified;   // null if the server sent none
+		Probe(long length, boolean ranges, String eTag, String lastModified) {
+			this.length = length;
+			this.ranges = ranges;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Returns the validator to send in an If-Range header: the ETag if it
+		 * is a strong one, otherwise the Last-Modified date, or null.
+		 */
+		public String validator() {
+			if (eTag != null && !eTag.startsWith("W/"))
+				return eTag;
+			return lastModified;
+		}
+	}
+
+	/**
+	 * A byte range of the file, from start to end inclusive, and how much of
+	 * it has been written so far.
+	 */
+	public static class Segment {
+		public final long start;
+		public final long end;
+		volatile long done;
+		public Segment(long start, long end) {
+			this(start, end, 0);
+		}
+		public Segment(long start, long end, long done) {
+			this.start = start;
+			this.end = end;
+			this.done = done;
+		}
+		public long getDone() {
+			return done;
+		}
+		public boolean isComplete() {
+			return start + done > end;
+		}
+	}
+
+	private final String url;
+	private final TransferEngine engine;
+	private final int connections;
+
+	/**
+	 * @param url         The URL of the file.
+	 * @param engine      The engine that copies each segment into the file.
+	 * @param connections The largest number of segments fetched at once.
+	 */
+	public SegmentedDownloader(String url, TransferEngine engine, int connections) {
+		this.url = url;
+		this.engine = engine;
+		this.connections = Math.max(connections, 1);
+	}
+
+	/**
+	 * Downloads the file.
+	 *
+	 * @param file     The file to write.  It is created or replaced.
+	 * @param progress Told about the bytes as they arrive, or null.
+	 * @return The number of bytes downloaded.
+	 * @throws IOException If the download fails.
+	 */
+	public long download(String file, ProgressReporter progress) throws IOException {
+		HttpURLConnection connection = open(0, 0, null);
+		Probe probe = probe(connection);
+		if (connection.getResponseCode() == 416 && probe.length == 0) {
+			// An empty file, of which no range can be sent.
+			connection.disconnect();
+			try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+				out.setLength(0);
+			}
+			if (progress != null)
+				progress.setTotal(0);
+			return 0;
+		}
+		if (!probe.ranges && connection.getResponseCode() != 200) {
+			// A range that can't be used, such as one of unknown length, or a
+			// 416 for some other reason.  The body is not the file, so ask
+			// again for the whole file.
+			connection.disconnect();
+			connection = open(-1, -1, null);
+			probe = probe(connection);
+			if (connection.getResponseCode() != 200)
+				throw new IOException("Server answered a request for the whole file with "
+						+ connection.getResponseCode());
+		}
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			if (progress != null)
+				progress.setTotal(probe.length);
+			if (!probe.ranges) {
+				// The response is the whole file, so it is the download.
+				out.setLength(0);
+				try (InputStream in = connection.getInputStream()) {
+					return engine.transfer(in, out.getChannel(), 0, progress);
+				}
+			}
+			connection.disconnect();
+			out.setLength(probe.length);
+			List<Segment> segments = split(probe.length, connections);
+			fetch(segments, probe, out.getChannel(), progress);
+			return probe.length;
+		}
+	}
+
+	/**
+	 * Downloads the file so that the download can be resumed if it is cut
+	 * off.  If the server can't send ranges, or gives no ETag or
+	 * Last-Modified date to check that a later run would get the same
+	 * version of the file, this is the same as download().
+	 *
+	 * @param file     The file to write.  It is created or replaced when the
+	 *                 download is complete.
+	 * @param progress Told about the bytes as they arrive, or null.
+	 * @return The number of bytes downloaded in this run.
+	 * @throws ChangedException If the file changed on the server since the
+	 *         download began.  The partial file is deleted, so the next run
+	 *         starts over.
+	 * @throws IOException If the download fails.  The progress is saved.
+	 */
+	public long downloadResumable(String file, ProgressReporter progress) throws IOException {
+		Path partFile = Paths.get(file + ".part");
+		DownloadJournal journal = new DownloadJournal(Paths.get(file + ".part.journal"));
+		HttpURLConnection connection = open(0, 0, null);
+		Probe probe = probe(connection);
+		connection.disconnect();
+		if (!probe.ranges || probe.validator() == null) {
+			journal.delete();
+			Files.deleteIfExists(partFile);
+			return download(file, progress);
+		}
+		List<Segment> segments = journal.load(url, probe);
+		if (segments != null && (!Files.exists(partFile) || Files.size(partFile) != probe.length))
+			segments = null;
+		long already = 0;
+		if (segments == null)
+			segments = split(probe.length, connections);
+		for (Segment segment : segments)
+			already += segment.done;
+		if (already > 0 && progress != null)
+			System.out.printf("Resuming: %.1f MB of %.1f MB are already here.%n", already / 1e6, probe.length / 1e6);
+		if (progress != null)
+			progress.setTotal(probe.length - already);
+
+		List<Segment> journaled = segments;
+		try (RandomAccessFile out = new RandomAccessFile(partFile.toFile(), "rw")) {
+			FileChannel channel = out.getChannel();
+			if (already == 0)
+				out.setLength(0);  // don't leave old data in the parts that are skipped
+			out.setLength(probe.length);
+			journal.save(url, probe, segments, channel);
+			// Save the journal now and then, and when the program is stopped.
+			AtomicLong nextSave = new AtomicLong(System.nanoTime() + JOURNAL_INTERVAL * 1_000_000);
+			TransferEngine.Progress saver = count -> {
+				if (progress != null)
+					progress.transferred(count);
+				long now = System.nanoTime();
+				long due = nextSave.get();
+				if (now - due >= 0 && nextSave.compareAndSet(due, now + JOURNAL_INTERVAL * 1_000_000)) {
+					try {
+						journal.save(url, probe, journaled, channel);
+					}
+					catch (IOException e) {
+						// tried again at the next interval; the last saved journal is still valid
+					}
+				}
+			};
+			Thread hook = new Thread(() -> {
+				try {
+					journal.save(url, probe, journaled, channel);
+				}
+				catch (IOException e) {
+				}
+			});
+			Runtime.getRuntime().addShutdownHook(hook);
+			try {
+				fetch(segments, probe, channel, saver);
+			}
+			catch (ChangedException e) {
+				throw e;  // the partial file is deleted below, once it is closed
+			}
+			catch (IOException e) {
+				journal.save(url, probe, segments, channel);
+				throw e;
+			}
+			finally {
+				Runtime.getRuntime().removeShutdownHook(hook);
+			}
+			channel.force(false);
+		}
+		catch (ChangedException e) {
+			journal.delete();
+			Files.deleteIfExists(partFile);
+			throw e;
+		}
+		Files.move(partFile, Paths.get(file), StandardCopyOption.REPLACE_EXISTING);
+		journal.delete();
+		return probe.length - already;
+	}
+
+	/**
+	 * Splits a file into about count segments of equal size, none smaller
+	 * than MIN_SEGMENT_SIZE unless the file is.
+	 */
+	public static List<Segment> split(long length, int count) {
+		long size = Math.max((length + count - 1) / count, MIN_SEGMENT_SIZE);
+		List<Segment> segments = new ArrayList<>();
+		for (long start = 0; start < length; start += size)
+			segments.add(new Segment(start, Math.min(start + size, length) - 1));
+		return segments;
+	}
+
+	/**
+	 * Fetches the segments that are not complete, several at a time, into
+	 * a file that already has its full length.
+	 *
+	 * @throws IOException If a segment still fails after MAX_ATTEMPTS tries.
+	 *         The segments record how far they got, and none of them is
+	 *         still writing to the file.
+	 */
+	public void fetch(List<Segment> segments, Probe probe, FileChannel out, TransferEngine.Progress progress)
+			throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(connections, Math.max(segments.size(), 1)));
+		CountDownLatch stop = new CountDownLatch(1);
+		Set<HttpURLConnection> open = ConcurrentHashMap.newKeySet();
+		CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+		List<Future<?>> results = new ArrayList<>();
+		try {
+			for (Segment segment : segments) {
+				if (!segment.isComplete())
+					results.add(completion.submit(() -> {
+						fetchSegment(segment, probe, out, progress, stop, open);
+						return null;
+					}));
+			}
+			// Take the segments as they finish, so that a failure is seen at once.
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					completion.take().get();
+				}
+				catch (ExecutionException e) {
+					stopAll(results, stop, open, pool);
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException("Segment failed: " + e.getCause(), e.getCause());
+				}
+				catch (InterruptedException e) {
+					stopAll(results, stop, open, pool);
+					Thread.currentThread().interrupt();
+					throw new IOException("Download interrupted");
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Stops the segments that are still running, after one has failed, and
+	 * waits for them to end, so that nothing writes to the file after fetch
+	 * returns.  They are not interrupted, since an interrupt during a
+	 * write closes the FileChannel for everyone.  Instead, stop tells them
+	 * not to read or retry any more, and their connections are closed to
+	 * end the reads that are blocked.
+	 */
+	private static void stopAll(List<Future<?>> results, CountDownLatch stop, Set<HttpURLConnection> open,
+			ExecutorService pool) {
+		stop.countDown();
+		for (HttpURLConnection connection : open)
+			connection.disconnect();
+		for (Future<?> result : results)
+			result.cancel(false);
+		pool.shutdown();
+		try {
+			pool.awaitTermination(CONNECT_TIMEOUT + READ_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Fetches the rest of one segment, retrying after a failure from the
+	 * byte where the failed attempt stopped, until stop is counted down.
+	 * Its connection is kept in open while it is in use.
+	 */
+	private void fetchSegment(Segment segment, Probe probe, FileChannel out, TransferEngine.Progress progress,
+			CountDownLatch stop, Set<HttpURLConnection> open) throws IOException, InterruptedException {
+		TransferEngine.Progress counter = count -> {
+			segment.done += count;  // only this segment's thread writes it
+			if (progress != null)
+				progress.transferred(count);
+		};
+		for (int attempt = 1; ; attempt++) {
+			if (stop.getCount() == 0)
+				throw new IOException("Download stopped");
+			long first = segment.start + segment.done;
+			HttpURLConnection connection = open(first, segment.end, probe.validator());
+			open.add(connection);
+			try {
+				int status = connection.getResponseCode();
+				if (status == 200)
+					throw new ChangedException(url);
+				if (status != 206 || parseContentRange(connection.getHeaderField("Content-Range"))[0] != first)
+					throw new IOException("Server did not send the range asked for (status " + status + ")");
+				try (InputStream in = connection.getInputStream()) {
+					engine.transfer(new LimitedInputStream(in, segment.end - first + 1, stop), out, first, counter);
+				}
+				if (!segment.isComplete())
+					throw new IOException("Connection closed in the middle of a segment");
+				return;
+			}
+			catch (ChangedException e) {
+				throw e;
+			}
+			catch (IOException e) {
+				connection.disconnect();
+				if (attempt == MAX_ATTEMPTS || stop.await(RETRY_DELAY << (attempt - 1), TimeUnit.MILLISECONDS))
+					throw e;
+			}
+			finally {
+				open.remove(connection);
+			}
+		}
+	}
+
+	/**
+	 * Thrown when the file changed on the server during a download.
+	 */
+	public static class ChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ChangedException(String url) {
+			super("The file has changed on the server: " + url);
+		}
+	}
+
+	/**
+	 * Opens a connection that asks for a range of the file.
+	 *
+	 * @param first     The first byte, or -1 to ask for the whole file.
+	 * @param last      The last byte.
+	 * @param validator The value for an If-Range header, or null for none.
+	 */
+	HttpURLConnection open(long first, long last, String validator) throws IOException {
+		HttpURLConnection connection;
+		try {
+			connection = (HttpURLConnection) new URI(url).toURL().openConnection();
+		}
+		catch (URISyntaxException | IllegalArgumentException e) {
+			throw new IOException("Bad URL: " + url);
+		}
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		// Transparent decompression would make the byte positions meaningless.
+		connection.setRequestProperty("Accept-Encoding", "identity");
+		if (first >= 0)
+			connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+		if (validator != null)
+			connection.setRequestProperty("If-Range", validator);
+		return connection;
+	}
+
+	/**
+	 * Reads what the answer to a request for the first byte says about the
+	 * file.  A 206 whose Content-Range is bad or gives no total length can't
+	 * be used for ranges, and says nothing about the length, so it gives a
+	 * Probe with ranges false and length -1; its body is not the file.  A
+	 * 416 with "Content-Range: bytes &#42;/0" means that the file is empty,
+	 * and gives a Probe of length 0; any other 416 is treated like the
+	 * unusable 206.
+	 */
+	static Probe probe(HttpURLConnection connection) throws IOException {
+		int status = connection.getResponseCode();
+		if (status != 200 && status != 206 && status != 416)
+			throw new IOException("Server answered " + status + " " + connection.getResponseMessage());
+		String eTag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (status == 416) {
+			String range = connection.getHeaderField("Content-Range");
+			boolean empty = range != null && range.replace(" ", "").equals("bytes*/0");
+			return new Probe(empty ? 0 : -1, false, eTag, lastModified);
+		}
+		if (status == 206) {
+			long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+			if (range[0] == 0 && range[2] > 0)
+				return new Probe(range[2], true, eTag, lastModified);
+			return new Probe(-1, false, eTag, lastModified);
+		}
+		return new Probe(connection.getContentLengthLong(), false, eTag, lastModified);
+	}
+
+	/**
+	 * Parses a Content-Range header such as "bytes 0-0/12345".
+	 *
+	 * @return The first byte, the last byte, and the total length, which is
+	 *         -1 if the server gave "*"; or {-1, -1, -1} if the header is
+	 *         missing or bad.
+	 */
+	static long[] parseContentRange(String header) {
+		long[] bad = { -1, -1, -1 };
+		if (header == null || !header.trim().startsWith("bytes "))
+			return bad;
+		String value = header.trim().substring(6).trim();
+		int dash = value.indexOf('-');
+		int slash = value.indexOf('/');
+		if (dash < 0 || slash < dash)
+			return bad;
+		try {
+			long first = Long.parseLong(value.substring(0, dash).trim());
+			long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+			String total = value.substring(slash + 1).trim();
+			return new long[] { first, last, total.equals("*") ? -1 : Long.parseLong(total) };
+		}
+		catch (NumberFormatException e) {
+			return bad;
+		}
+	}
+
+	/**
+	 * A stream that ends after a given number of bytes, so that a server
+	 * that sends more than the range asked for can't write past the end of
+	 * a segment.  It fails once stop has been counted down, so that a
+	 * segment stops when another one has failed.
+	 */
+	private static class LimitedInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+		private final CountDownLatch stop;
+		LimitedInputStream(InputStream in, long limit, CountDownLatch stop) {
+			this.in = in;
+			this.remaining = limit;
+			this.stop = stop;
+		}
+		private void checkStop() throws IOException {
+			if (stop.getCount() == 0)
+				throw new IOException("Download stopped");
+		}
+		public int read() throws IOException {
+			checkStop();
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkStop();
+			if (remaining <= 0)
+				return -1;
+			int count = in.read(b, off, (int) Math.min(len, remaining));
+			if (count > 0)
+				remaining -= count;
+			return count;
+		}
+	}
+}
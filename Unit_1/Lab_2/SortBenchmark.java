@@ -0,0 +1,131 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Checks and times the sorts in IntSorting, next to Arrays.sort() and
+ * Arrays.parallelSort(), on arrays of several sizes and kinds:
+ *
+ * <ul>
+ * <li>random -- uniformly random ints, negative ones included.</li>
+ * <li>sorted -- already in increasing order.</li>
+ * <li>reversed -- in decreasing order.</li>
+ * <li>nearlySorted -- sorted, and then 1% of the items swapped at random.</li>
+ * <li>fewUnique -- random values out of only 16.</li>
+ * </ul>
+ *
+ * <p>Every sort's output is compared with that of Arrays.sort() before it is
+ * timed, and the program stops if one is wrong.  Each sort is run a few
+ * times on fresh copies of the same data, and the best time is reported,
+ * after one untimed run to let the JIT compiler do its work.  (Unlike the
+ * single timing in BenchmarkingSortingAlgorithms, this gives numbers that
+ * repeat from one run of the program to the next.)</p>
+ *
+ * <p>The sizes are given by the system property sort.sizes, a
+ * comma-separated list (default 1000,10000,100000,1000000,10000000), and
+ * the number of timed runs by sort.runs (default 5).  For 100,000,000 items
+ * there are three arrays of 400 MB each, plus the buffers of the sorts, so
+ * the heap has to be made bigger:</p>
+ *
+ * <pre>
+ * java -Xmx3g -Dsort.sizes=100000000 -Dsort.runs=2 SortBenchmark
+ * </pre>
+ */
+public class SortBenchmark {
+
+	private final static String[] KINDS = { "random", "sorted", "reversed", "nearlySorted", "fewUnique" };
+
+	/**
+	 * The sorts, by name, in the order of the columns.
+	 */
+	private final static Map<String,Consumer<int[]>> SORTS = new LinkedHashMap<>();
+	static {
+		SORTS.put("Arrays.sort", Arrays::sort);
+		SORTS.put("Arrays.parallelSort", Arrays::parallelSort);
+		SORTS.put("dualPivotQuicksort", IntSorting::dualPivotQuicksort);
+		SORTS.put("radixSort", IntSorting::radixSort);
+		SORTS.put("parallelMergeSort", IntSorting::parallelMergeSort);
+		SORTS.put("IntSorting.sort", IntSorting::sort);
+	}
+
+	public static void main(String[] args) {
+		int runs = Integer.getInteger("sort.runs", 5);
+		String sizes = System.getProperty("sort.sizes", "1000,10000,100000,1000000,10000000");
+		System.out.println("Processors: " + Runtime.getRuntime().availableProcessors()
+				+ "; times in ms are the best of " + runs + " runs");
+		System.out.printf("%-14s %-12s", "size", "data");
+		for (String name : SORTS.keySet())
+			System.out.printf(" %20s", name);
+		System.out.println();
+		for (String sizeText : sizes.split(",")) {
+			int size = Integer.parseInt(sizeText.trim().replace("_", ""));
+			for (String kind : KINDS) {
+				int[] data = makeData(kind, size, new Random(size));
+				int[] expected = data.clone();
+				Arrays.sort(expected);
+				int[] work = new int[size];
+				System.out.printf("%-14s %-12s", String.format("%,d", size), kind);
+				for (Map.Entry<String,Consumer<int[]>> sort : SORTS.entrySet()) {
+					System.arraycopy(data, 0, work, 0, size);
+					sort.getValue().accept(work);
+					if (!Arrays.equals(work, expected)) {
+						System.out.println();
+						System.out.println(sort.getKey() + " sorted " + kind + " data of size " + size + " wrongly");
+						System.exit(1);
+					}
+					long best = Long.MAX_VALUE;
+					for (int run = 0; run < runs; run++) {
+						System.arraycopy(data, 0, work, 0, size);
+						long start = System.nanoTime();
+						sort.getValue().accept(work);
+						best = Math.min(best, System.nanoTime() - start);
+					}
+					System.out.printf(" %20.3f", best / 1e6);
+				}
+				System.out.println();
+			}
+		}
+	}
+
+	/**
+	 * Makes an array of one of the KINDS, or "organPipe": increasing to the
+	 * middle and then decreasing.
+	 */
+	static int[] makeData(String kind, int size, Random random) {
+		int[] data = new int[size];
+		switch (kind) {
+		case "random":
+			for (int i = 0; i < size; i++)
+				data[i] = random.nextInt();
+			break;
+		case "sorted":
+		case "reversed":
+		case "nearlySorted":
+			for (int i = 0; i < size; i++)
+				data[i] = kind.equals("reversed") ? size - i : i;
+			if (kind.equals("nearlySorted")) {
+				for (int k = 0; k < size / 100; k++) {
+					int i = random.nextInt(size);
+					int j = random.nextInt(size);
+					int temp = data[i];
+					data[i] = data[j];
+					data[j] = temp;
+				}
+			}
+			break;
+		case "organPipe":
+			for (int i = 0; i < size; i++)
+				data[i] = Math.min(i, size - 1 - i);
+			break;
+		case "fewUnique":
+			for (int i = 0; i < size; i++)
+				data[i] = random.nextInt(16) * 1_000_003;
+			break;
+		default:
+			throw new IllegalArgumentException(kind);
+		}
+		return data;
+	}
+}
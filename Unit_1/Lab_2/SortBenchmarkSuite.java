@@ -0,0 +1,347 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * A benchmark suite for the sorting methods of this lab and of
+ * BuggySearchAndSort (Unit_4/Lab_8), measured the way JMH measures: each
+ * benchmark runs in a fresh JVM, so that what the JIT compiler learned from
+ * one sort doesn't help or hurt the next; it is run for a number of warm-up
+ * iterations whose times are thrown away, and then for a number of measured
+ * iterations of a fixed length, each one sorting fresh copies of the data
+ * as many times as fit.  The score is the mean time per sort over the
+ * measured iterations, with its standard deviation.
+ *
+ * <p>The benchmarks are every combination of:</p>
+ *
+ * <ul>
+ * <li>sort -- selectionSort (BenchmarkingSortingAlgorithms), bubbleSort,
+ *     buggySelectionSort and insertionSort (BuggySearchAndSort),
+ *     Arrays.sort and Arrays.parallelSort;</li>
+ * <li>size -- the system property suite.sizes (default 1000,10000,100000);</li>
+ * <li>data -- random, sorted, reversed, fewUnique and organPipe (see
+ *     SortBenchmark.makeData()), or the list in suite.data.</li>
+ * </ul>
+ *
+ * <p>The quadratic sorts are skipped for sizes over suite.maxQuadratic
+ * (default 10000); at 100,000 items one sort takes many seconds, and the
+ * forks, warmup and measured iterations make that tens of minutes.  As well as the
+ * time, each benchmark reports what JMH's "gc" profiler does: the bytes
+ * allocated per sort and the allocation rate, over all threads, and the
+ * number and total time of garbage collections during the measured
+ * iterations.</p>
+ *
+ * <p>BuggySearchAndSort is found at run time, so it must be on the class
+ * path, as in</p>
+ *
+ * <pre>
+ * javac -d out Unit_1/Lab_2/*.java Unit_4/Lab_8/BuggySearchAndSort.java
+ * java -cp out SortBenchmarkSuite
+ * </pre>
+ *
+ * <p>Without it, its sorts are left out.  Other system properties:
+ * suite.sorts (the sorts to run, by name), suite.warmup (warm-up iterations,
+ * default 5), suite.iterations (measured iterations, default 5),
+ * suite.time (milliseconds per iteration, default 500), suite.forks (JVMs
+ * per benchmark, default 1; 0 runs everything in this JVM) and suite.csv
+ * (a file to write the results to).</p>
+ */
+public class SortBenchmarkSuite {
+
+	private final static String[] ALL_DATA = { "random", "sorted", "reversed", "fewUnique", "organPipe" };
+
+	/**
+	 * The result of one benchmark.
+	 */
+	private static class Result {
+		double score;           // mean ms per sort
+		double deviation;       // standard deviation of the iteration means
+		long operations;        // sorts in the measured iterations
+		double bytesPerOp;      // bytes allocated per sort
+		double allocationRate;  // MB allocated per second
+		long gcCount;
+		long gcTime;            // ms
+
+		/**
+		 * Returns the result as the line a forked JVM prints.
+		 */
+		String encode() {
+			return "RESULT " + score + " " + deviation + " " + operations + " " + bytesPerOp + " " + allocationRate
+					+ " " + gcCount + " " + gcTime;
+		}
+
+		static Result decode(String line) {
+			String[] fields = line.split(" ");
+			Result result = new Result();
+			result.score = Double.parseDouble(fields[1]);
+			result.deviation = Double.parseDouble(fields[2]);
+			result.operations = Long.parseLong(fields[3]);
+			result.bytesPerOp = Double.parseDouble(fields[4]);
+			result.allocationRate = Double.parseDouble(fields[5]);
+			result.gcCount = Long.parseLong(fields[6]);
+			result.gcTime = Long.parseLong(fields[7]);
+			return result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 4 && args[0].equals("--run")) {
+			// A forked JVM, running one benchmark.
+			Result result = run(sorts().get(args[1]), Integer.parseInt(args[2]), args[3]);
+			System.out.println(result.encode());
+			return;
+		}
+		Map<String,Consumer<int[]>> sorts = sorts();
+		List<String> names = new ArrayList<>(sorts.keySet());
+		if (System.getProperty("suite.sorts") != null)
+			names = Arrays.asList(System.getProperty("suite.sorts").split(","));
+		String[] data = System.getProperty("suite.data", String.join(",", ALL_DATA)).split(",");
+		String[] sizes = System.getProperty("suite.sizes", "1000,10000,100000").split(",");
+		int maxQuadratic = Integer.getInteger("suite.maxQuadratic", 10_000);
+		int forks = Integer.getInteger("suite.forks", 1);
+		PrintWriter csv = null;
+		if (System.getProperty("suite.csv") != null) {
+			csv = new PrintWriter(Files.newBufferedWriter(Paths.get(System.getProperty("suite.csv")), StandardCharsets.UTF_8));
+			csv.println("sort,size,data,ms_per_op,stdev,ops,bytes_per_op,alloc_mb_per_s,gc_count,gc_ms");
+		}
+
+		System.out.printf("%-20s %10s %-10s %12s %10s %12s %12s %6s %8s%n", "sort", "size", "data", "ms/op", "stdev",
+				"B/op", "alloc MB/s", "GCs", "GC ms");
+		for (String name : names) {
+			if (!sorts.containsKey(name)) {
+				System.out.println("No sort called " + name);
+				continue;
+			}
+			for (String sizeText : sizes) {
+				int size = Integer.parseInt(sizeText.trim());
+				if (size > maxQuadratic && !name.startsWith("Arrays.")) {
+					System.out.printf("%-20s %10d %-10s %s%n", name, size, "", "skipped: quadratic");
+					continue;
+				}
+				for (String kind : data) {
+					List<Result> results = new ArrayList<>();
+					if (forks <= 0) {
+						results.add(run(sorts.get(name), size, kind));
+					}
+					else {
+						for (int f = 0; f < forks; f++)
+							results.add(fork(name, size, kind));
+					}
+					Result result = combine(results);
+					System.out.printf("%-20s %10d %-10s %12.4f %10.4f %12.1f %12.1f %6d %8d%n", name, size, kind,
+							result.score, result.deviation, result.bytesPerOp, result.allocationRate, result.gcCount,
+							result.gcTime);
+					if (csv != null)
+						csv.printf("%s,%d,%s,%f,%f,%d,%f,%f,%d,%d%n", name, size, kind, result.score, result.deviation,
+								result.operations, result.bytesPerOp, result.allocationRate, result.gcCount, result.gcTime);
+				}
+			}
+		}
+		if (csv != null)
+			csv.close();
+	}
+
+	/**
+	 * Returns the sorts, by name.  Those of BuggySearchAndSort are looked up
+	 * by reflection, and are missing if it is not on the class path.
+	 */
+	private static Map<String,Consumer<int[]>> sorts() {
+		Map<String,Consumer<int[]>> sorts = new LinkedHashMap<>();
+		sorts.put("selectionSort", BenchmarkingSortingAlgorithms::selectionSort);
+		try {
+			Class<?> buggy = Class.forName("BuggySearchAndSort");
+			MethodType type = MethodType.methodType(void.class, int[].class);
+			String[][] methods = { { "bubbleSort", "bubbleSort" }, { "buggySelectionSort", "selectionSort" },
+					{ "insertionSort", "insertionSort" } };
+			for (String[] method : methods) {
+				MethodHandle handle = MethodHandles.publicLookup().findStatic(buggy, method[1], type);
+				sorts.put(method[0], array -> {
+					try {
+						handle.invokeExact(array);
+					}
+					catch (Throwable e) {
+						throw new RuntimeException(e);
+					}
+				});
+			}
+		}
+		catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+			System.err.println("BuggySearchAndSort is not available (" + e + "); its sorts are left out.");
+		}
+		sorts.put("Arrays.sort", Arrays::sort);
+		sorts.put("Arrays.parallelSort", Arrays::parallelSort);
+		return sorts;
+	}
+
+	/**
+	 * Runs one benchmark in a new JVM, with the same class path, JVM options
+	 * and system properties as this one.
+	 */
+	private static Result fork(String name, int size, String kind) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>();
+		command.add(ProcessHandle.current().info().command().orElse("java"));
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(SortBenchmarkSuite.class.getName());
+		command.add("--run");
+		command.add(name);
+		command.add(String.valueOf(size));
+		command.add(kind);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		Result result = null;
+		StringBuilder output = new StringBuilder();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("RESULT "))
+					result = Result.decode(line);
+				else
+					output.append(line).append('\n');
+			}
+		}
+		int status = process.waitFor();
+		if (result == null)
+			throw new IOException("The forked JVM for " + name + " failed with status " + status + ":\n" + output);
+		return result;
+	}
+
+	/**
+	 * Runs one benchmark in this JVM.
+	 */
+	private static Result run(Consumer<int[]> sort, int size, String kind) {
+		int warmups = Integer.getInteger("suite.warmup", 5);
+		int iterations = Integer.getInteger("suite.iterations", 5);
+		long iterationNanos = Long.getLong("suite.time", 500) * 1_000_000;
+		int[] data = SortBenchmark.makeData(kind, size, new Random(size));
+		int[] expected = data.clone();
+		Arrays.sort(expected);
+		int[] work = data.clone();
+		sort.accept(work);
+		if (!Arrays.equals(work, expected))
+			throw new IllegalStateException("The sort is wrong for " + kind + " data of size " + size);
+
+		for (int i = 0; i < warmups; i++)
+			iterate(sort, data, work, iterationNanos);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocatedBefore = allocatedBytes(threads);
+		long gcCountBefore = 0;
+		long gcTimeBefore = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCountBefore += Math.max(gc.getCollectionCount(), 0);
+			gcTimeBefore += Math.max(gc.getCollectionTime(), 0);
+		}
+		long start = System.nanoTime();
+		double[] means = new double[iterations];
+		long operations = 0;
+		for (int i = 0; i < iterations; i++) {
+			long[] timing = iterate(sort, data, work, iterationNanos);
+			means[i] = timing[0] / 1e6 / timing[1];
+			operations += timing[1];
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes(threads) - allocatedBefore;
+
+		Result result = new Result();
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			result.gcCount += Math.max(gc.getCollectionCount(), 0);
+			result.gcTime += Math.max(gc.getCollectionTime(), 0);
+		}
+		result.gcCount -= gcCountBefore;
+		result.gcTime -= gcTimeBefore;
+		result.operations = operations;
+		result.score = Arrays.stream(means).average().orElse(0);
+		result.deviation = deviation(means, result.score);
+		result.bytesPerOp = allocated < 0 ? Double.NaN : (double) allocated / operations;
+		result.allocationRate = allocated < 0 ? Double.NaN : allocated / 1e6 / (elapsed / 1e9);
+		return result;
+	}
+
+	/**
+	 * Sorts fresh copies of the data for about the given time, and at least
+	 * once.  Only the sorting is timed, not the copying.
+	 *
+	 * @return The nanoseconds spent sorting, and the number of sorts.
+	 */
+	private static long[] iterate(Consumer<int[]> sort, int[] data, int[] work, long nanos) {
+		long sorting = 0;
+		long count = 0;
+		long end = System.nanoTime() + nanos;
+		do {
+			System.arraycopy(data, 0, work, 0, data.length);
+			long start = System.nanoTime();
+			sort.accept(work);
+			sorting += System.nanoTime() - start;
+			count++;
+		} while (System.nanoTime() < end);
+		return new long[] { sorting, count };
+	}
+
+	/**
+	 * Returns the bytes allocated so far by all the live threads, or -1 if
+	 * the JVM can't tell.
+	 */
+	private static long allocatedBytes(ThreadMXBean threads) {
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+		if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long total = 0;
+		for (long bytes : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			total += Math.max(bytes, 0);
+		return total;
+	}
+
+	/**
+	 * Combines the results of several forks, as JMH does: the score is the
+	 * mean of theirs, and the deviation covers the spread between forks.
+	 */
+	private static Result combine(List<Result> results) {
+		if (results.size() == 1)
+			return results.get(0);
+		Result combined = new Result();
+		double[] scores = new double[results.size()];
+		for (int i = 0; i < scores.length; i++) {
+			Result r = results.get(i);
+			scores[i] = r.score;
+			combined.operations += r.operations;
+			combined.bytesPerOp += r.bytesPerOp / scores.length;
+			combined.allocationRate += r.allocationRate / scores.length;
+			combined.gcCount += r.gcCount;
+			combined.gcTime += r.gcTime;
+		}
+		combined.score = Arrays.stream(scores).average().orElse(0);
+		double spread = deviation(scores, combined.score);
+		double within = results.stream().mapToDouble(r -> r.deviation).average().orElse(0);
+		combined.deviation = Math.sqrt(spread * spread + within * within);
+		return combined;
+	}
+
+	private static double deviation(double[] values, double mean) {
+		if (values.length < 2)
+			return 0;
+		double sum = 0;
+		for (double value : values)
+			sum += (value - mean) * (value - mean);
+		return Math.sqrt(sum / (values.length - 1));
+	}
+}
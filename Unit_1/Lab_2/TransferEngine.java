@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A way of copying data from an input stream into a file.  WebDownloader
+ * uses one of these to save what it downloads, and DownloadBenchmark
+ * compares them.  Data is written at a given position in the file, with
+ * positional writes, so that several transfers can fill different parts of
+ * the same file at once.
+ *
+ * <p>Three engines are provided:</p>
+ *
+ * <ul>
+ * <li>BYTE_LOOP -- one byte at a time, which is how WebDownloader used to
+ *     copy.  Every byte costs a system call on the write side.  It is kept
+ *     only for comparison.</li>
+ * <li>BUFFERED -- through a large buffer that each thread reuses.</li>
+ * <li>CHANNEL -- with FileChannel.transferFrom().  For a source that is a
+ *     stream, such as a download, the JDK copies through a small internal
+ *     buffer, so in DownloadBenchmark this is slower than BUFFERED; it only
+ *     pays off when the source is a file or socket channel.</li>
+ * </ul>
+ */
+public interface TransferEngine {
+
+	/**
+	 * Receives the number of bytes copied as a transfer goes on.  It may be
+	 * called from several threads at once.
+	 */
+	interface Progress {
+		void transferred(long bytes);
+	}
+
+	/**
+	 * Copies everything from an input stream into a file.
+	 *
+	 * @param in       The stream to read, up to its end.  It is not closed.
+	 * @param out      The file to write to.
+	 * @param position The position in the file of the first byte.
+	 * @param progress Told about the bytes as they are written, or null.
+	 * @return The number of bytes copied.
+	 * @throws IOException If reading or writing fails.
+	 */
+	long transfer(InputStream in, FileChannel out, long position, Progress progress) throws IOException;
+
+	/**
+	 * The size of the buffer used by BUFFERED, and of the blocks moved by CHANNEL.
+	 */
+	int BLOCK_SIZE = 256 * 1024;
+
+	TransferEngine BYTE_LOOP = (in, out, position, progress) -> {
+		ByteBuffer oneByte = ByteBuffer.allocate(1);
+		long start = position;
+		int b;
+		while ((b = in.read()) >= 0) {
+			oneByte.clear();
+			oneByte.put((byte) b).flip();
+			position += out.write(oneByte, position);
+			if (progress != null)
+				progress.transferred(1);
+		}
+		return position - start;
+	};
+
+	TransferEngine BUFFERED = new TransferEngine() {
+		private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BLOCK_SIZE));
+
+		public long transfer(InputStream in, FileChannel out, long position, Progress progress) throws IOException {
+			ByteBuffer buffer = buffers.get();
+			byte[] array = buffer.array();
+			long start = position;
+			int count;
+			while ((count = in.read(array)) >= 0) {
+				buffer.clear().limit(count);
+				while (buffer.hasRemaining())
+					position += out.write(buffer, position);
+				if (progress != null)
+					progress.transferred(count);
+			}
+			return position - start;
+		}
+	};
+
+	TransferEngine CHANNEL = (in, out, position, progress) -> {
+		ReadableByteChannel source = Channels.newChannel(in);
+		long start = position;
+		while (true) {
+			long count = out.transferFrom(source, position, BLOCK_SIZE);
+			if (count == 0) {
+				// transferFrom() returns 0 both at the end of the stream and when
+				// nothing happened to be available, so look at the next byte.
+				int b = in.read();
+				if (b < 0)
+					break;
+				out.write(ByteBuffer.wrap(new byte[] { (byte) b }), position);
+				count = 1;
+			}
+			position += count;
+			if (progress != null)
+				progress.transferred(count);
+		}
+		return position - start;
+	};
+
+	/**
+	 * Returns the engine with a name: "byteloop", "buffered" or "channel".
+	 *
+	 * @throws IllegalArgumentException If there is no engine by that name.
+	 */
+	static TransferEngine forName(String name) {
+		switch (name.toLowerCase()) {
+		case "byteloop": return BYTE_LOOP;
+		case "buffered": return BUFFERED;
+		case "channel": return CHANNEL;
+		default: throw new IllegalArgumentException("Unknown transfer engine: " + name);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stages that work on the data of a download while it is being copied, so
+ * that decompressing it, checking it and saving extra copies of it need no
+ * more passes over the bytes.  Each stage wraps the stream of the one
+ * before, and a TransferEngine reads from the last one:
+ *
+ * <pre>
+ * TransferPipeline pipeline = new TransferPipeline(connection.getInputStream(), progress)
+ *         .decode("gzip")
+ *         .digest("SHA-256")
+ *         .tee(backupStream);
+ * engine.transfer(pipeline.stream(), file, 0, null);
+ * TransferPipeline.verify(pipeline.getDigests(), Map.of("SHA-256", expected));
+ * </pre>
+ *
+ * <p>Progress is counted on the bytes as they arrive, before any decoding,
+ * so that it can be compared with the Content-Length.  Digests and tees see
+ * the bytes as they are after the stages added before them; usually they
+ * come after decode(), so that they see what is saved.</p>
+ */
+public class TransferPipeline {
+
+	private final static int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+	private InputStream stream;
+	private final Map<String,Supplier<String>> digests = new LinkedHashMap<>();
+
+	/**
+	 * @param source   The data as it arrives.
+	 * @param progress Told about the bytes read from the source, or null.
+	 */
+	public TransferPipeline(InputStream source, TransferEngine.Progress progress) {
+		this.stream = progress == null ? source : new CountingInputStream(source, progress);
+	}
+
+	/**
+	 * Adds a stage that decompresses the data.
+	 *
+	 * @param encoding "gzip" (or "x-gzip"), "deflate" (zlib format, as HTTP
+	 *                 uses it), or null or "identity" for no decoding.
+	 * @throws IllegalArgumentException If the encoding is not one of those.
+	 */
+	public TransferPipeline decode(String encoding) throws IOException {
+		if (encoding == null)
+			return this;
+		switch (encoding.trim().toLowerCase()) {
+		case "":
+		case "identity":
+			break;
+		case "gzip":
+		case "x-gzip":
+			stream = new GZIPInputStream(stream, INFLATE_BUFFER_SIZE);
+			break;
+		case "deflate":
+			stream = new InflaterInputStream(stream, new Inflater(), INFLATE_BUFFER_SIZE);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown content encoding: " + encoding);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a stage that computes a digest or checksum of the data.
+	 *
+	 * @param algorithm "CRC32", "CRC32C", or the name of a MessageDigest
+	 *                  algorithm, such as "SHA-256".
+	 * @throws IllegalArgumentException If there is no such algorithm.
+	 */
+	public TransferPipeline digest(String algorithm) {
+		String name = algorithm.trim().toUpperCase();
+		if (name.equals("CRC32") || name.equals("CRC32C")) {
+			Checksum checksum = name.equals("CRC32") ? new CRC32() : new CRC32C();
+			stream = new CheckedInputStream(stream, checksum);
+			digests.put(name, () -> String.format("%08x", checksum.getValue()));
+		}
+		else {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance(name);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm);
+			}
+			stream = new DigestInputStream(stream, digest);
+			digests.put(name, () -> hex(digest.digest()));
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a stage that writes a copy of the data to another stream.  The
+	 * sink is not closed.
+	 */
+	public TransferPipeline tee(OutputStream sink) {
+		if (stream instanceof TeeInputStream)
+			((TeeInputStream) stream).sinks.add(sink);
+		else
+			stream = new TeeInputStream(stream, sink);
+		return this;
+	}
+
+	/**
+	 * Returns the stream to read, which goes through all the stages.
+	 */
+	public InputStream stream() {
+		return stream;
+	}
+
+	/**
+	 * Returns the digests and checksums, in hexadecimal, once the stream
+	 * has been read to its end.  Each can be taken only once.
+	 */
+	public Map<String,String> getDigests() {
+		Map<String,String> values = new LinkedHashMap<>();
+		for (Map.Entry<String,Supplier<String>> entry : digests.entrySet())
+			values.put(entry.getKey(), entry.getValue().get());
+		return values;
+	}
+
+	/**
+	 * Compares digests with the values they should have.
+	 *
+	 * @param values   The digests, as returned by getDigests().
+	 * @param expected The expected values, in hexadecimal, by algorithm.
+	 * @throws IOException If any of them is different.
+	 */
+	public static void verify(Map<String,String> values, Map<String,String> expected) throws IOException {
+		for (Map.Entry<String,String> entry : expected.entrySet()) {
+			String actual = values.get(entry.getKey().toUpperCase());
+			if (actual == null || !actual.equalsIgnoreCase(entry.getValue().trim()))
+				throw new IOException(entry.getKey() + " mismatch: expected " + entry.getValue() + ", got " + actual);
+		}
+	}
+
+	/**
+	 * Writes bytes in lower-case hexadecimal, as digests are shown.
+	 */
+	static String hex(byte[] bytes) {
+		StringBuilder text = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return text.toString();
+	}
+
+	/**
+	 * Reports the bytes read through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private final TransferEngine.Progress progress;
+
+		CountingInputStream(InputStream in, TransferEngine.Progress progress) {
+			super(in);
+			this.progress = progress;
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				progress.transferred(1);
+			return b;
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int count = in.read(buffer, offset, length);
+			if (count > 0)
+				progress.transferred(count);
+			return count;
+		}
+
+		public long skip(long count) throws IOException {
+			long skipped = in.skip(count);
+			if (skipped > 0)
+				progress.transferred(skipped);
+			return skipped;
+		}
+	}
+
+	/**
+	 * Writes everything read through it to some other streams.  Skipped bytes
+	 * are read, so that the copies are complete.
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		private final List<OutputStream> sinks = new ArrayList<>();
+
+		TeeInputStream(InputStream in, OutputStream sink) {
+			super(in);
+			sinks.add(sink);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				for (OutputStream sink : sinks)
+					sink.write(b);
+			}
+			return b;
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int count = in.read(buffer, offset, length);
+			if (count > 0) {
+				for (OutputStream sink : sinks)
+					sink.write(buffer, offset, count);
+			}
+			return count;
+		}
+
+		public long skip(long count) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(count, 8192)];
+			long skipped = 0;
+			while (skipped < count) {
+				int n = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+				if (n < 0)
+					break;
+				skipped += n;
+			}
+			return skipped;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
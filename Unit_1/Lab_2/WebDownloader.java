@@ -1,3 +1,5 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -5,25 +7,164 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 
 /**
  * A simple program that fetches data from a specified URL and saves it to a file.
  * The user is prompted to enter the URL and the output file name.
  * Uses exception handling to deal with I/O errors and invalid URLs.
+ *
+ * <p>The data is copied by a TransferEngine, chosen with the system property
+ * downloader.engine ("buffered", the default, "channel" or "byteloop"), and
+ * the progress and throughput are shown while it downloads.  If the system
+ * property downloader.segments is more than 1, the file is fetched in that
+ * many byte ranges at once by a SegmentedDownloader, when the server allows
+ * it.  If downloader.resume is true, a download that is cut off can be
+ * finished by running the program again with the same URL and file.  If
+ * downloader.cache names a directory, downloads go through a DownloadCache
+ * there, so a file that has not changed since it was last downloaded is not
+ * fetched again.</p>
+ *
+ * <p>A plain download can also be processed while it is copied, in the same
+ * pass over the data, by a TransferPipeline: downloader.decode ("none", the
+ * default, "gzip", "deflate", or "auto" to ask for and follow the
+ * Content-Encoding) decompresses it; downloader.digests (such as
+ * "SHA-256,CRC32C") lists digests of the saved data to show;
+ * downloader.expect (such as "SHA-256=9f86...") gives digests it must have,
+ * or it is deleted; and downloader.tee lists more files to write copies
+ * to.  Its bandwidth can be limited with downloader.rate and
+ * downloader.rateFile, as in BatchDownloader.  These only apply to a plain
+ * download; asking for them together with downloader.segments,
+ * downloader.resume or downloader.cache is an error.</p>
+ *
+ * <p>Given a manifest file (and optionally an output directory) on the
+ * command line instead, it downloads every URL in it, several at a time,
+ * with a BatchDownloader.</p>
  */
 public class WebDownloader {
 
-	private static void copyStream(InputStream in, OutputStream out) throws IOException {
-		int oneByte = in.read();
-		while (oneByte >= 0) { // negative value indicates end-of-stream
-			out.write(oneByte);
-			oneByte = in.read();
+	/**
+	 * Copies everything from a stream into a file, showing the progress, and
+	 * decoding, checking and copying the data on the way as the system
+	 * properties ask.
+	 *
+	 * @param in       The stream to copy.
+	 * @param encoding The Content-Encoding of the stream, or null.
+	 * @param out      The file to write, from its start.
+	 * @param total    The expected number of bytes, or -1 if unknown.
+	 * @param engine   The engine that does the copying.
+	 * @return The number of bytes written to the file.
+	 * @throws IOException If the copy fails, or a digest is not what it
+	 *                     should be.  The copies made for downloader.tee
+	 *                     are deleted.
+	 */
+	private static long copyStream(InputStream in, String encoding, FileChannel out, long total, TransferEngine engine)
+			throws IOException {
+		ProgressReporter progress = new ProgressReporter(System.out, total);
+		long rate = BandwidthLimiter.parseRate(System.getProperty("downloader.rate", "0"));
+		String rateFile = System.getProperty("downloader.rateFile");
+		if (rate > 0 || rateFile != null) {
+			BandwidthLimiter limiter = new BandwidthLimiter(rate);
+			if (rateFile != null)
+				limiter.watch(Paths.get(rateFile));
+			in = limiter.open("download", 1).wrap(in);
+		}
+		TransferPipeline pipeline = new TransferPipeline(in, progress);
+		String decode = System.getProperty("downloader.decode", "none");
+		if (decode.equals("auto"))
+			pipeline.decode(encoding);
+		else if (!decode.equals("none"))
+			pipeline.decode(decode);
+
+		// Digests to show, and digests to check, given as ALGORITHM=hex.
+		Map<String,String> expected = new LinkedHashMap<>();
+		for (String item : System.getProperty("downloader.expect", "").split(",")) {
+			int equals = item.indexOf('=');
+			if (equals > 0)
+				expected.put(item.substring(0, equals).trim(), item.substring(equals + 1).trim());
+		}
+		Set<String> algorithms = new LinkedHashSet<>();
+		for (String name : System.getProperty("downloader.digests", "").split(","))
+			if (!name.isBlank())
+				algorithms.add(name.trim().toUpperCase());
+		for (String name : expected.keySet())
+			algorithms.add(name.toUpperCase());
+		for (String name : algorithms)
+			pipeline.digest(name);
+
+		List<OutputStream> copies = new ArrayList<>();
+		List<File> copyFiles = new ArrayList<>();
+		boolean done = false;
+		try {
+			for (String name : System.getProperty("downloader.tee", "").split(",")) {
+				if (!name.isBlank()) {
+					copyFiles.add(new File(name.trim()));
+					OutputStream copy = new BufferedOutputStream(new FileOutputStream(name.trim()), TransferEngine.BLOCK_SIZE);
+					copies.add(copy);
+					pipeline.tee(copy);
+				}
+			}
+			long count = engine.transfer(pipeline.stream(), out, 0, null);
+			progress.finish();
+			Map<String,String> digests = pipeline.getDigests();
+			for (Map.Entry<String,String> digest : digests.entrySet())
+				System.out.println(digest.getKey() + ": " + digest.getValue());
+			TransferPipeline.verify(digests, expected);
+			done = true;
+			return count;
+		}
+		finally {
+			for (OutputStream copy : copies)
+				copy.close();
+			if (!done) {
+				// Like the file itself, the copies are cut off or fail their checksum.
+				for (File copyFile : copyFiles)
+					copyFile.delete();
+			}
 		}
 	}
 
-	public static void main(String[] args) throws URISyntaxException {
+	/**
+	 * The system properties that only copyStream() follows.
+	 */
+	private final static String[] PIPELINE_OPTIONS = {
+			"downloader.decode", "downloader.digests", "downloader.expect", "downloader.tee",
+			"downloader.rate", "downloader.rateFile" };
+
+	/**
+	 * Refuses the options of copyStream() for the downloads that don't go
+	 * through it, rather than ignoring them: a segmented download writes
+	 * its ranges out of order, and a cached one may not be downloaded at all.
+	 *
+	 * @throws IllegalArgumentException If one of them is set.
+	 */
+	private static void rejectPipelineOptions() {
+		for (String name : PIPELINE_OPTIONS) {
+			String value = System.getProperty(name);
+			if (value == null || value.isBlank())
+				continue;
+			if (name.equals("downloader.decode") && value.equals("none")
+					|| name.equals("downloader.rate") && BandwidthLimiter.parseRate(value) <= 0)
+				continue;  // the same as not setting them
+			throw new IllegalArgumentException(name + " can't be used with downloader.segments, "
+					+ "downloader.resume or downloader.cache.");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			BatchDownloader.main(args);
+			return;
+		}
 
 		InputStream in = null;
 		OutputStream out = null;
@@ -38,13 +179,58 @@ public class WebDownloader {
 			System.out.print("Enter the output file name: ");
 			String outputFile = scanner.nextLine();
 
+			TransferEngine engine = TransferEngine.forName(System.getProperty("downloader.engine", "buffered"));
+			int segments = Integer.getInteger("downloader.segments", 1);
+			boolean resume = Boolean.getBoolean("downloader.resume");
+			String cacheDirectory = System.getProperty("downloader.cache");
+			if (segments > 1 || resume || cacheDirectory != null)
+				rejectPipelineOptions();
+			if (segments > 1 || resume) {
+				ProgressReporter progress = new ProgressReporter(System.out, -1);
+				SegmentedDownloader downloader = new SegmentedDownloader(url, engine, segments);
+				if (resume)
+					downloader.downloadResumable(outputFile, progress);
+				else
+					downloader.download(outputFile, progress);
+				progress.finish();
+				System.out.println("Data downloaded and saved successfully.");
+				return;
+			}
+
+			if (cacheDirectory != null) {
+				ProgressReporter progress = new ProgressReporter(System.out, -1);
+				DownloadCache cache = new DownloadCache(Paths.get(cacheDirectory), engine);
+				DownloadCache.Result result = cache.fetch(url, Paths.get(outputFile), progress);
+				if (result == DownloadCache.Result.NOT_MODIFIED) {
+					System.out.println("Not modified; saved the cached copy.");
+				}
+				else {
+					progress.finish();
+					System.out.println("Data downloaded and saved successfully.");
+				}
+				return;
+			}
+
 			// Fetch data from the URL
-			in = new URI(url).toURL().openStream();
+			URLConnection connection = new URI(url).toURL().openConnection();
+			if (System.getProperty("downloader.decode", "none").equals("auto"))
+				connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+			in = connection.getInputStream();
 
 			// Save data to a file
-			out = new FileOutputStream(outputFile);
+			FileOutputStream fileOut = new FileOutputStream(outputFile);
+			out = fileOut;
 
-			copyStream(in, out);
+			try {
+				copyStream(in, connection.getContentEncoding(), fileOut.getChannel(), connection.getContentLengthLong(), engine);
+			}
+			catch (IOException | IllegalArgumentException e) {
+				// Don't leave a file that is cut off or fails its checksum, or
+				// that can't be decoded.
+				fileOut.close();
+				new File(outputFile).delete();
+				throw e;
+			}
 
 			System.out.println("Data downloaded and saved successfully.");
 		} catch (MalformedURLException e) {
@@ -53,6 +239,8 @@ public class WebDownloader {
 			System.out.println("File not found. Please provide a valid file name.");
 		} catch (IOException e) {
 			System.out.println("An error occurred: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
 		} finally {
 			scanner.close();
 			// Close InputStream and OutputStream if they were opened
@@ -0,0 +1,217 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An asynchronous access log.  A connection thread that logs a request only
+ * copies a few fields into a slot of a ring buffer; a background thread
+ * takes the entries out in batches, formats them, and writes them out with
+ * one flush per batch.  If the writer falls so far behind that the ring is
+ * full, new entries are dropped and counted rather than making requests wait.
+ *
+ * <p>Requests are logged in the Common Log Format, with the time taken to
+ * handle the request, in microseconds, added at the end of the line.</p>
+ */
+public class AccessLog {
+
+	/**
+	 * The number of entries in the ring buffer.
+	 */
+	private final static int CAPACITY = 8192;
+
+	/**
+	 * The writer thread waits at most this long, in milliseconds, before
+	 * writing out a partial batch.
+	 */
+	private final static long FLUSH_INTERVAL = 200;
+
+	/**
+	 * The Common Log Format date, whose month names are always English.
+	 */
+	private final static DateTimeFormatter DATE_FORMAT =
+			DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+
+	/**
+	 * One slot of the ring buffer.  The slots are created once and reused.
+	 * A slot with a null request holds a plain message instead.
+	 */
+	private static class Entry {
+		long time;
+		String remote;
+		String request;
+		int status;
+		long bytes;
+		long micros;
+		String message;
+	}
+
+	private final Entry[] ring = new Entry[CAPACITY];
+	private long head;  // Total number of entries taken out by the writer.
+	private long tail;  // Total number of entries put in.
+	private long written;  // Total number of entries written out and flushed.
+	private final AtomicLong dropped = new AtomicLong();
+	private final Writer writer;
+
+	/**
+	 * Creates an access log and starts its writer thread.
+	 *
+	 * @param fileName The file to append the log to, or null to write the log
+	 *                 to standard output.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public AccessLog(String fileName) throws IOException {
+		for (int i = 0; i < CAPACITY; i++)
+			ring[i] = new Entry();
+		if (fileName == null)
+			writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		else
+			writer = new BufferedWriter(new FileWriter(fileName, StandardCharsets.UTF_8, true));
+		Thread thread = new Thread(this::writeEntries, "AccessLog writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Logs one request.
+	 *
+	 * @param remote  The address of the client.
+	 * @param request The request line, or "-" if no request was read.
+	 * @param status  The status code of the response, or 0 if none was sent.
+	 * @param bytes   The number of bytes sent to the client.
+	 * @param micros  The time taken to handle the request, in microseconds.
+	 */
+	public void log(String remote, String request, int status, long bytes, long micros) {
+		synchronized (ring) {
+			if (tail - head == CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+			Entry entry = ring[(int) (tail % CAPACITY)];
+			entry.time = System.currentTimeMillis();
+			entry.remote = remote;
+			entry.request = request;
+			entry.status = status;
+			entry.bytes = bytes;
+			entry.micros = micros;
+			entry.message = null;
+			tail++;
+			if (tail - head == CAPACITY / 2)
+				ring.notifyAll();  // wake the writer early
+		}
+	}
+
+	/**
+	 * Logs a message, such as the description of an error.
+	 */
+	public void message(String message) {
+		synchronized (ring) {
+			if (tail - head == CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+			Entry entry = ring[(int) (tail % CAPACITY)];
+			entry.time = System.currentTimeMillis();
+			entry.request = null;
+			entry.message = message;
+			tail++;
+			if (tail - head == CAPACITY / 2)
+				ring.notifyAll();  // wake the writer early
+		}
+	}
+
+	/**
+	 * Returns the number of entries that were dropped because the ring buffer
+	 * was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits, for at most a second, until the entries that have been logged so
+	 * far have been written out.  This is meant for when the server shuts
+	 * down, since the writer thread does not keep the program running.
+	 */
+	public void flush() {
+		long deadline = System.currentTimeMillis() + 1000;
+		synchronized (ring) {
+			long target = tail;
+			ring.notifyAll();  // wake the writer
+			while (written < target) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					return;
+				try {
+					ring.wait(wait);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs in the writer thread.  Every FLUSH_INTERVAL milliseconds, or sooner
+	 * when the ring is half full, it formats all the waiting entries into a
+	 * single string and writes them out.
+	 */
+	private void writeEntries() {
+		StringBuilder batch = new StringBuilder();
+		while (true) {
+			long start, end;
+			synchronized (ring) {
+				try {
+					if (tail - head < CAPACITY / 2)
+						ring.wait(FLUSH_INTERVAL);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				start = head;
+				end = tail;
+			}
+			if (start == end)
+				continue;
+			// The slots from start to end can be read without holding the lock,
+			// since producers never write into a slot until head has moved past it.
+			batch.setLength(0);
+			for (long i = start; i < end; i++)
+				format(ring[(int) (i % CAPACITY)], batch);
+			synchronized (ring) {
+				head = end;
+			}
+			try {
+				writer.write(batch.toString());
+				writer.flush();
+			}
+			catch (IOException e) {
+				// There is nowhere else to report the problem, so the batch is lost.
+			}
+			synchronized (ring) {
+				written = end;
+				ring.notifyAll();  // for flush()
+			}
+		}
+	}
+
+	private static void format(Entry entry, StringBuilder out) {
+		String time = DATE_FORMAT.format(Instant.ofEpochMilli(entry.time));
+		if (entry.request == null) {
+			out.append('[').append(time).append("] ").append(entry.message).append('\n');
+			return;
+		}
+		out.append(entry.remote).append(" - - [").append(time).append("] \"")
+			.append(entry.request).append("\" ")
+			.append(entry.status == 0 ? "-" : Integer.toString(entry.status)).append(' ')
+			.append(entry.bytes).append(' ').append(entry.micros).append('\n');
+	}
+}
@@ -0,0 +1,413 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A RequestHandler that streams changes to a directory as Server-Sent
+ * Events, so that a client can find out about new, changed and deleted files
+ * without fetching the directory listing over and over.  A request for
+ * PREFIX/some/dir, where PREFIX is the path that the handler is attached to,
+ * subscribes to the directory some/dir under the root.  Each change is sent
+ * as an event such as
+ *
+ * <pre>
+ * event: create
+ * data: new%20file.txt
+ * </pre>
+ *
+ * <p>with the name %-encoded, and with event types create, modify and
+ * delete.  An event of type resync means that changes were missed, and the
+ * client should fetch the listing again.</p>
+ *
+ * <p>All subscribers share one WatchService, which has a single thread, and
+ * each directory is registered with it once no matter how many clients are
+ * watching it.  A subscriber does not keep a thread: once the response
+ * headers have been sent, the connection is detached from its connection
+ * thread, and events are written to it by a small pool of writer threads.
+ * Each subscriber has a bounded queue of events.  A subscriber that falls
+ * too far behind has its queue replaced by a single resync event, so a slow
+ * client costs a fixed amount of memory and never holds up the others; a
+ * subscriber whose socket has not accepted a write for WRITE_TIMEOUT is
+ * disconnected, so that it can't tie up a writer thread.  The watcher thread
+ * looks for such writes every STALL_CHECK_INTERVAL.  A comment line is
+ * sent every HEARTBEAT_INTERVAL, which keeps proxies from closing idle
+ * streams and finds clients that have gone away.</p>
+ */
+public class ChangeEventHandler implements RequestHandler {
+
+	/**
+	 * The largest number of subscribers.  Further requests get 503.  Can be
+	 * set with the system property webserver.events.maxSubscribers.
+	 */
+	private final static int MAX_SUBSCRIBERS = Integer.getInteger("webserver.events.maxSubscribers", 10000);
+
+	/**
+	 * The number of events that can wait to be written to one subscriber.
+	 * Can be set with the system property webserver.events.queueSize.
+	 */
+	private final static int MAX_QUEUED = Integer.getInteger("webserver.events.queueSize", 64);
+
+	/**
+	 * The number of threads that write events to subscribers.  Can be set
+	 * with the system property webserver.events.writerThreads.
+	 */
+	private final static int WRITER_THREADS = Integer.getInteger("webserver.events.writerThreads", 4);
+
+	/**
+	 * Milliseconds between heartbeat comments.
+	 */
+	private final static long HEARTBEAT_INTERVAL = 15000;
+
+	/**
+	 * A subscriber whose socket blocks a write for longer than this many
+	 * milliseconds is disconnected.
+	 */
+	private final static long WRITE_TIMEOUT = 10000;
+
+	/**
+	 * Milliseconds between checks for writes that have gone on longer than
+	 * WRITE_TIMEOUT.
+	 */
+	private final static long STALL_CHECK_INTERVAL = 1000;
+
+	private final static byte[] RESYNC = "event: resync\ndata:\n\n".getBytes(StandardCharsets.UTF_8);
+	private final static byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * The directories being watched, keyed by their real path.  Also used
+	 * as the lock for registering and cancelling directories.
+	 */
+	private final static Map<Path,Topic> topics = new HashMap<>();
+
+	private final static Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The number of subscribers, and of requests on their way to becoming
+	 * subscribers.  A request takes its place here before it sends anything,
+	 * so that MAX_SUBSCRIBERS holds however many arrive at once.
+	 */
+	private final static AtomicInteger places = new AtomicInteger();
+
+	private final static ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS, task -> {
+		Thread thread = new Thread(task, "Event writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static WatchService watchService;
+
+	private final String root;
+	private final Path realRoot;
+
+	/**
+	 * Creates a handler for the directories under a root directory.
+	 *
+	 * @param root The root directory, as for the server's static files.
+	 */
+	public ChangeEventHandler(String root) {
+		this.root = root;
+		Path rootPath = Paths.get(root.isEmpty() ? "/" : root).toAbsolutePath().normalize();
+		try {
+			rootPath = rootPath.toRealPath();
+		}
+		catch (IOException e) {
+			// The root doesn't exist (yet), so nothing in it will be found anyway.
+		}
+		this.realRoot = rootPath;
+	}
+
+	public String handle(HttpExchange exchange, String path) throws IOException {
+		if (exchange.getRequest().getMethod() != "GET") {
+			SimpleWebServer.sendErrorResponse(501, exchange);
+			return "error";
+		}
+		File dir = new File(root + path);
+		if (!dir.isDirectory()) {
+			SimpleWebServer.sendErrorResponse(404, exchange);
+			return "error";
+		}
+		Path realDir = dir.toPath().toRealPath();
+		if (!realDir.startsWith(realRoot)) {
+			SimpleWebServer.sendErrorResponse(403, exchange);
+			return "error";
+		}
+		if (places.incrementAndGet() > MAX_SUBSCRIBERS) {
+			places.decrementAndGet();
+			SimpleWebServer.sendErrorResponse(503, exchange);
+			return "error";
+		}
+		boolean subscribed = false;
+		try {
+			// The stream ends when the connection is closed.
+			exchange.closeAfterResponse();
+			PrintWriter outgoing = new PrintWriter(exchange.getOutput());
+			outgoing.print(exchange.getVersion() + " 200 OK\r\n");
+			outgoing.print(exchange.connectionHeader());
+			outgoing.print("Content-Type: text/event-stream; charset=utf-8\r\n");
+			outgoing.print("Cache-Control: no-cache\r\n");
+			outgoing.print("\r\n");
+			outgoing.print("retry: 5000\n\n");
+			outgoing.flush();
+			Subscriber subscriber = new Subscriber(exchange.getSocket());
+			subscribe(realDir, subscriber);
+			subscribed = true;
+		}
+		finally {
+			if (!subscribed)
+				places.decrementAndGet();  // the subscriber's close() gives it back otherwise
+		}
+		exchange.detach();
+		return "events";
+	}
+
+	/**
+	 * Returns the number of clients that are subscribed.
+	 */
+	public static int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Disconnects all subscribers, for a shutdown.
+	 */
+	public static void closeAll() {
+		for (Subscriber subscriber : subscribers)
+			subscriber.close();
+	}
+
+	/**
+	 * Adds a subscriber to the topic for a directory, registering the
+	 * directory with the WatchService if nobody was watching it.
+	 */
+	private static void subscribe(Path dir, Subscriber subscriber) throws IOException {
+		synchronized (topics) {
+			if (watchService == null) {
+				watchService = FileSystems.getDefault().newWatchService();
+				Thread watcher = new Thread(ChangeEventHandler::watch, "File change watcher");
+				watcher.setDaemon(true);
+				watcher.start();
+			}
+			Topic topic = topics.get(dir);
+			if (topic == null || !topic.key.isValid()) {
+				WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				topic = new Topic(dir, key);
+				topics.put(dir, topic);
+			}
+			subscriber.topic = topic;
+			topic.subscribers.add(subscriber);
+			subscribers.add(subscriber);
+		}
+	}
+
+	/**
+	 * The body of the watcher thread, which turns the changes reported by
+	 * the WatchService into events for the subscribers, disconnects the
+	 * subscribers whose writes have stalled, and sends the heartbeats.
+	 */
+	private static void watch() {
+		long nextHeartbeat = System.nanoTime() + HEARTBEAT_INTERVAL * 1_000_000;
+		long nextStallCheck = System.nanoTime() + STALL_CHECK_INTERVAL * 1_000_000;
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.poll(STALL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			if (key != null) {
+				Topic topic;
+				synchronized (topics) {
+					topic = topics.get((Path) key.watchable());
+				}
+				StringBuilder events = new StringBuilder();
+				boolean overflow = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						overflow = true;
+						continue;
+					}
+					String name = event.context().toString();
+					if (FileUpload.isTemporary(name))
+						continue;  // the upload shows up when it is renamed into place
+					String type = event.kind() == StandardWatchEventKinds.ENTRY_CREATE ? "create"
+							: event.kind() == StandardWatchEventKinds.ENTRY_DELETE ? "delete" : "modify";
+					events.append("event: ").append(type).append("\ndata: ")
+							.append(Router.encodePath(name)).append("\n\n");
+				}
+				boolean valid = key.reset();
+				if (topic != null) {
+					byte[] data = overflow ? RESYNC : events.toString().getBytes(StandardCharsets.UTF_8);
+					for (Subscriber subscriber : topic.subscribers)
+						subscriber.offer(data);
+					if (!valid) {
+						// The directory is gone, so its subscribers are done.
+						for (Subscriber subscriber : topic.subscribers)
+							subscriber.closeWhenWritten();
+					}
+				}
+			}
+			long now = System.nanoTime();
+			if (now - nextStallCheck >= 0) {
+				nextStallCheck = now + STALL_CHECK_INTERVAL * 1_000_000;
+				for (Subscriber subscriber : subscribers) {
+					long started = subscriber.writeStarted;
+					if (started != 0 && now - started > WRITE_TIMEOUT * 1_000_000)
+						subscriber.close();  // closing the socket ends the blocked write
+				}
+			}
+			if (now - nextHeartbeat >= 0) {
+				nextHeartbeat = now + HEARTBEAT_INTERVAL * 1_000_000;
+				for (Subscriber subscriber : subscribers)
+					subscriber.offer(HEARTBEAT);
+			}
+		}
+	}
+
+	/**
+	 * A directory that is being watched, and the clients watching it.
+	 */
+	private static class Topic {
+		final Path dir;
+		final WatchKey key;
+		final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+		Topic(Path dir, WatchKey key) {
+			this.dir = dir;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * One client's event stream.  Events wait in a bounded queue, and at most
+	 * one writer thread at a time writes them to the socket.
+	 */
+	private static class Subscriber {
+		final Socket socket;
+		final OutputStream out;
+		Topic topic;
+		final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+		boolean scheduled;         // True while a writer thread has been given this subscriber.
+		boolean closing;           // True to close after the queued events have been written.
+		boolean closed;
+		volatile long writeStarted;  // System.nanoTime() when the current write began, or 0.
+
+		Subscriber(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = socket.getOutputStream();
+		}
+
+		/**
+		 * Queues an event, or, if the queue is full, replaces everything in
+		 * it with a resync event.
+		 */
+		synchronized void offer(byte[] event) {
+			if (closed || closing || event.length == 0)
+				return;
+			if (queue.size() >= MAX_QUEUED) {
+				queue.clear();
+				event = RESYNC;
+			}
+			queue.add(event);
+			schedule();
+		}
+
+		synchronized void closeWhenWritten() {
+			closing = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (!scheduled) {
+				scheduled = true;
+				writers.execute(this::drain);
+			}
+		}
+
+		/**
+		 * Writes the queued events, on a writer thread.
+		 */
+		private void drain() {
+			List<byte[]> batch = new ArrayList<>();
+			while (true) {
+				boolean closeNow;
+				synchronized (this) {
+					batch.addAll(queue);
+					queue.clear();
+					if (batch.isEmpty()) {
+						scheduled = false;
+						closeNow = closing;
+						if (!closeNow)
+							return;
+					}
+					else {
+						closeNow = false;
+					}
+				}
+				if (closeNow) {
+					close();
+					return;
+				}
+				try {
+					writeStarted = System.nanoTime();
+					for (byte[] event : batch)
+						out.write(event);
+					out.flush();
+				}
+				catch (IOException e) {
+					close();
+					return;
+				}
+				finally {
+					writeStarted = 0;
+				}
+				batch.clear();
+			}
+		}
+
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				queue.clear();
+			}
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+			}
+			subscribers.remove(this);
+			places.decrementAndGet();
+			synchronized (topics) {
+				topic.subscribers.remove(this);
+				if (topic.subscribers.isEmpty() && topics.get(topic.dir) == topic) {
+					topic.key.cancel();
+					topics.remove(topic.dir);
+				}
+			}
+		}
+	}
+}
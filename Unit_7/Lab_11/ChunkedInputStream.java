@@ -0,0 +1,117 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that decodes the chunked transfer coding of HTTP/1.1, for
+ * a request or response body whose length was not known when its headers
+ * were sent.  Reading returns the data of the chunks without the chunk
+ * headers, and end-of-file is reported after the last, empty chunk and any
+ * trailer fields that follow it (which are skipped).  No byte past the end
+ * of the body is read, so the underlying stream can go on to the next
+ * message.  Closing this stream does not close the underlying stream.
+ *
+ * <p>Bad chunk framing is reported with a BadRequestException for status
+ * 400, since for a request body it is the client's fault.  A reader of a
+ * response body can treat it as any other IOException.</p>
+ */
+public class ChunkedInputStream extends InputStream {
+
+	/**
+	 * The longest chunk header or trailer line that is accepted.
+	 */
+	private final static int MAX_LINE = 4096;
+
+	private final InputStream in;
+	private long remaining;   // Bytes left in the current chunk.
+	private boolean started;  // True after the first chunk header has been read.
+	private boolean eof;
+
+	public ChunkedInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (eof)
+			return -1;
+		if (remaining == 0) {
+			nextChunk();
+			if (eof)
+				return -1;
+		}
+		int count = in.read(b, off, (int) Math.min(len, remaining));
+		if (count < 0)
+			throw new EOFException("Connection closed in the middle of a chunk");
+		remaining -= count;
+		return count;
+	}
+
+	public int available() throws IOException {
+		return eof ? 0 : (int) Math.min(remaining, in.available());
+	}
+
+	/**
+	 * Does not close the underlying stream.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Reads the CRLF at the end of the previous chunk, if any, and the header
+	 * of the next chunk.  If the next chunk is the last one, the trailer is
+	 * skipped and eof is set.
+	 */
+	private void nextChunk() throws IOException {
+		if (started && !readLine().isEmpty())
+			throw new HttpRequestParser.BadRequestException(400, "Missing CRLF after chunk data");
+		started = true;
+		String header = readLine();
+		int semicolon = header.indexOf(';');  // chunk extensions are ignored
+		String size = (semicolon < 0 ? header : header.substring(0, semicolon)).trim();
+		if (size.isEmpty() || size.length() > 15)
+			throw new HttpRequestParser.BadRequestException(400, "Bad chunk size: " + header);
+		try {
+			remaining = Long.parseLong(size, 16);
+		}
+		catch (NumberFormatException e) {
+			throw new HttpRequestParser.BadRequestException(400, "Bad chunk size: " + header);
+		}
+		if (remaining < 0)
+			throw new HttpRequestParser.BadRequestException(400, "Bad chunk size: " + header);
+		if (remaining == 0) {
+			while (!readLine().isEmpty()) {
+				// skip trailer fields
+			}
+			eof = true;
+		}
+	}
+
+	/**
+	 * Reads a line ending with LF (normally CRLF), and returns it without
+	 * the line ending.  Chunk headers are ASCII.
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("Connection closed in chunked data");
+			if (b == '\n')
+				break;
+			if (line.length() == MAX_LINE)
+				throw new HttpRequestParser.BadRequestException(400, "Chunk header too long");
+			line.append((char) b);
+		}
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r')
+			line.setLength(length - 1);
+		return line.toString();
+	}
+}
@@ -0,0 +1,87 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An output stream that sends data using the chunked transfer coding of
+ * HTTP/1.1, for a response whose length is not known when its headers are
+ * sent.  The data is collected in a buffer and sent as one chunk whenever the
+ * buffer fills up or the stream is flushed.  Closing the stream sends the
+ * final, empty chunk, but does not close the underlying stream, so that the
+ * connection can be used for another request.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+	private final byte[] buffer;
+	private int count;
+	private boolean closed;
+
+	/**
+	 * Creates a chunked stream with a buffer of 8192 bytes.
+	 */
+	public ChunkedOutputStream(OutputStream out) {
+		this(out, 8192);
+	}
+
+	/**
+	 * Creates a chunked stream whose chunks are at most a given size.
+	 */
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		super(out);
+		buffer = new byte[chunkSize];
+	}
+
+	public void write(int b) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (count == buffer.length)
+			writeChunk();
+		buffer[count++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0) {
+			if (count == buffer.length)
+				writeChunk();
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends any buffered data as a chunk, and flushes the underlying stream.
+	 */
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Sends any buffered data, followed by the last chunk that marks the end
+	 * of the body.  The underlying stream is flushed but not closed.
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		writeChunk();
+		out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+		closed = true;
+	}
+
+	private void writeChunk() throws IOException {
+		if (count == 0)
+			return;
+		out.write((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		out.write(buffer, 0, count);
+		out.write('\r');
+		out.write('\n');
+		count = 0;
+	}
+}
@@ -0,0 +1,147 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A CompressionCache holds gzip or deflate encoded copies of files, so that
+ * a text file that is requested over and over only has to be compressed once.
+ * An entry is thrown away when the file's length or modification time changes.
+ * When the total size of the compressed data goes over a limit, the entries
+ * that were used least recently are discarded.
+ */
+public class CompressionCache {
+
+	/**
+	 * One compressed copy of a file, with the information needed to tell
+	 * whether the file has changed since it was compressed.
+	 */
+	private static class Entry {
+		final long length;
+		final long lastModified;
+		final byte[] data;
+		Entry(long length, long lastModified, byte[] data) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.data = data;
+		}
+	}
+
+	private final int level;      // The Deflater compression level, 1 to 9.
+	private final long maxBytes;  // Limit on the total size of the cached data.
+	private long totalBytes;      // Current total size of the cached data.
+
+	/**
+	 * The cached entries, keyed by encoding and path.  The map is kept in
+	 * access order, so the first entry is always the least recently used one.
+	 */
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param level    The compression level to use, from 1 (fastest) to 9 (smallest).
+	 * @param maxBytes The largest total number of compressed bytes to keep.
+	 * @throws IllegalArgumentException if the level is not in the range 1 to 9.
+	 */
+	public CompressionCache(int level, long maxBytes) {
+		if (level < 1 || level > 9)
+			throw new IllegalArgumentException("Compression level must be between 1 and 9");
+		this.level = level;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the compression level used by this cache.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns the compressed contents of a file, compressing the file and
+	 * caching the result if there is no up-to-date copy in the cache.
+	 *
+	 * @param file     The file whose contents are wanted.
+	 * @param encoding Either "gzip" or "deflate".
+	 * @return The compressed bytes.  The array must not be modified.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public byte[] get(File file, String encoding) throws IOException {
+		String key = encoding + ":" + file.getPath();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.length == length && entry.lastModified == lastModified)
+				return entry.data;
+		}
+		// Compress without holding the lock, so other requests are not held up.
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(length / 3 + 64, Integer.MAX_VALUE));
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			OutputStream out = compressingStream(buffer, encoding, level);
+			in.transferTo(out);
+			out.close();
+		}
+		byte[] data = buffer.toByteArray();
+		synchronized (this) {
+			Entry old = entries.put(key, new Entry(length, lastModified, data));
+			if (old != null)
+				totalBytes -= old.data.length;
+			totalBytes += data.length;
+			Iterator<Map.Entry<String,Entry>> iter = entries.entrySet().iterator();
+			while (totalBytes > maxBytes && iter.hasNext()) {
+				Entry eldest = iter.next().getValue();
+				iter.remove();
+				totalBytes -= eldest.data.length;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Wraps an output stream in a stream that compresses everything written
+	 * to it.  Closing the returned stream finishes the compressed data and
+	 * closes the underlying stream.
+	 *
+	 * @param out      The stream that receives the compressed data.
+	 * @param encoding Either "gzip" or "deflate".
+	 * @param level    The compression level, from 1 to 9.
+	 * @return The compressing stream.
+	 * @throws IOException If an I/O error occurs while writing the gzip header.
+	 */
+	public static OutputStream compressingStream(OutputStream out, String encoding, int level) throws IOException {
+		if (encoding.equals("gzip")) {
+			return new GZIPOutputStream(out, 8192) {
+				{
+					def.setLevel(level);
+				}
+			};
+		}
+		else if (encoding.equals("deflate")) {
+			Deflater deflater = new Deflater(level);
+			return new DeflaterOutputStream(out, deflater, 8192) {
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						deflater.end();  // not done automatically for a Deflater that we supply
+					}
+				}
+			};
+		}
+		else {
+			throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Limits the number of requests that the server handles at the same time,
+ * adjusting the limit with AIMD (additive increase, multiplicative decrease)
+ * in the way that TCP adjusts its congestion window.  Each request that
+ * completes within the target latency while the limit is being used raises
+ * the limit by 1/limit, so that the limit grows by about one per round of
+ * requests.  A request that takes longer than the target means that
+ * requests are queueing for the CPU, the disk, or the network, and cuts the
+ * limit by a constant factor, but no more than once per DECREASE_INTERVAL so
+ * that one slow round of requests doesn't cut it many times over.
+ *
+ * <p>Requests over the limit are turned away at once, which keeps the
+ * latency of the requests that are admitted bounded when the server is
+ * overloaded, instead of letting every request get slower.</p>
+ */
+public class ConcurrencyLimiter {
+
+	/**
+	 * The factor by which the limit is multiplied when latency is too high.
+	 */
+	private final static double BACKOFF = 0.9;
+
+	/**
+	 * The minimum time, in nanoseconds, between two decreases of the limit.
+	 */
+	private final static long DECREASE_INTERVAL = 100_000_000L;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long targetMicros;
+
+	private double limit;
+	private int inFlight;
+	private long lastDecrease;
+
+	/**
+	 * Creates a concurrency limiter.
+	 *
+	 * @param initialLimit  The limit to start with.
+	 * @param minLimit      The limit is never lowered below this.
+	 * @param maxLimit      The limit is never raised above this.
+	 * @param targetMillis  Requests that take longer than this many milliseconds
+	 *                      make the limit go down.
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long targetMillis) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+		this.targetMicros = targetMillis * 1000;
+		this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL;
+	}
+
+	/**
+	 * Starts a request, if the limit allows it.  A successful call must be
+	 * matched by a call to release().
+	 *
+	 * @return true if the request can go ahead, false if it should be refused.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (inFlight >= (int) limit)
+			return false;
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Ends a request and adjusts the limit according to how long it took.
+	 *
+	 * @param micros The time taken by the request, in microseconds, up to the
+	 *               first byte of the response.
+	 */
+	public synchronized void release(long micros) {
+		boolean limitUsed = inFlight >= (int) limit;
+		inFlight--;
+		if (micros > targetMicros) {
+			long now = System.nanoTime();
+			if (now - lastDecrease >= DECREASE_INTERVAL) {
+				limit = Math.max(minLimit, limit * BACKOFF);
+				lastDecrease = now;
+			}
+		}
+		else if (limitUsed) {
+			// Only raise the limit when it is actually holding requests back;
+			// otherwise it would creep up without limit under light load.
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+
+	/**
+	 * Ends a request without adjusting the limit, for a request whose time
+	 * says nothing about how loaded the server is.
+	 */
+	public synchronized void release() {
+		inFlight--;
+	}
+
+	/**
+	 * Returns the current limit.
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Returns the number of requests currently being handled.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+}
@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Produces the HTML directory listings for SimpleWebServer.  The entries of a
+ * directory are read with a DirectoryStream, getting all the attributes of an
+ * entry in a single call.  Both the entries and the rendered pages are cached,
+ * and a WatchService removes a directory from the cache as soon as anything in
+ * it changes.  Listings can be sorted by name, size or modification time, and
+ * long listings are split into pages.
+ *
+ * <p>The options come from the query string of the request, for example
+ * {@code ?sort=size&order=desc&page=2&size=100}.</p>
+ */
+public class DirectoryListing {
+
+	/**
+	 * The number of entries shown on one page when the request does not say.
+	 */
+	public final static int DEFAULT_PAGE_SIZE = 500;
+
+	/**
+	 * The largest page size that a request can ask for.
+	 */
+	public final static int MAX_PAGE_SIZE = 10000;
+
+	/**
+	 * The largest number of directories that are kept in the cache.
+	 */
+	private final static int MAX_CACHED_DIRECTORIES = 256;
+
+	/**
+	 * The largest number of rendered pages that are kept for one directory.
+	 * Each combination of sort order, page size and page number is a
+	 * different page, so without a limit a client could fill the heap.
+	 */
+	private final static int MAX_CACHED_PAGES = 32;
+
+	/**
+	 * Formats modification times.  Unlike SimpleDateFormat, a DateTimeFormatter
+	 * is immutable and can be shared by all the connection threads.
+	 */
+	private final static DateTimeFormatter DATE_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+	/**
+	 * The information about one directory entry that is shown in a listing.
+	 */
+	private static class Entry {
+		final String name;
+		final boolean isDirectory;
+		final long size;
+		final long lastModified;
+		Entry(String name, BasicFileAttributes attributes) {
+			this.name = name;
+			this.isDirectory = attributes.isDirectory();
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+		}
+	}
+
+	/**
+	 * A cached directory: its entries, sorted by name, the most recently used
+	 * pages of the listing, and the key that watches the directory.
+	 */
+	private static class Listing {
+		final List<Entry> entries;
+		final Map<String,byte[]> pages = new LinkedHashMap<String,byte[]>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,byte[]> eldest) {
+				return size() > MAX_CACHED_PAGES;
+			}
+		};
+		final WatchKey key;
+		Listing(List<Entry> entries, WatchKey key) {
+			this.entries = entries;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * The cached listings, in access order so that the least recently used
+	 * directory is dropped when there are too many.  All access is
+	 * synchronized on the map.
+	 */
+	private final static Map<Path,Listing> cache = new LinkedHashMap<Path,Listing>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Path,Listing> eldest) {
+			if (size() > MAX_CACHED_DIRECTORIES) {
+				eldest.getValue().key.cancel();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private static WatchService watcher;          // Created when first needed.
+	private static boolean watcherUnavailable;    // Set if it could not be created.
+
+	/**
+	 * Returns the directory listing for a request as a complete HTML page,
+	 * encoded in UTF-8.
+	 *
+	 * @param dir   The directory to be listed.
+	 * @param title The path of the directory, as shown in the page heading.
+	 * @param query The query string of the request, or null if there was none.
+	 * @return The bytes of the page.
+	 * @throws IOException If the directory cannot be read.
+	 */
+	public static byte[] render(Path dir, String title, String query) throws IOException {
+		Map<String,String> options = parseQuery(query);
+		String sort = options.getOrDefault("sort", "name");
+		if (!sort.equals("size") && !sort.equals("modified"))
+			sort = "name";
+		boolean descending = "desc".equals(options.get("order"));
+		int pageSize = parseInt(options.get("size"), DEFAULT_PAGE_SIZE);
+		pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+		int page = Math.max(1, parseInt(options.get("page"), 1));
+
+		dir = dir.toAbsolutePath().normalize();
+		Listing listing;
+		synchronized (cache) {
+			listing = cache.get(dir);
+		}
+		if (listing == null)
+			listing = readListing(dir);
+		// Clamp the page before using it in the key, so that pages past the
+		// end all share the entry of the last page.
+		page = Math.min(page, pageCount(listing.entries.size(), pageSize));
+		String pageKey = sort + (descending ? "-desc-" : "-asc-") + pageSize + "-" + page;
+		synchronized (cache) {
+			byte[] cached = listing.pages.get(pageKey);
+			if (cached != null)
+				return cached;
+		}
+		byte[] result = renderPage(listing.entries, title, sort, descending, page, pageSize)
+				.getBytes(StandardCharsets.UTF_8);
+		synchronized (cache) {
+			// Only cache the page if the directory has not changed in the meantime.
+			if (listing.key != null && listing.key.isValid()) {
+				listing.pages.put(pageKey, result);
+				cache.putIfAbsent(dir, listing);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the entries of a directory.  The directory is registered with the
+	 * watch service before it is read, so that a change made while it is being
+	 * read will invalidate the result.
+	 */
+	private static Listing readListing(Path dir) throws IOException {
+		WatchKey key = watch(dir);
+		List<Entry> entries = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					entries.add(new Entry(path.getFileName().toString(), attributes));
+				}
+				catch (IOException e) {
+					// The entry was deleted after it was listed, or can't be read; leave it out.
+				}
+			}
+		}
+		entries.sort(Comparator.comparing(e -> e.name));
+		return new Listing(Collections.unmodifiableList(entries), key);
+	}
+
+	/**
+	 * Builds the HTML for one page of a listing.
+	 */
+	private static String renderPage(List<Entry> entries, String title, String sort,
+			boolean descending, int page, int pageSize) {
+		List<Entry> sorted = entries;
+		if (!sort.equals("name") || descending) {
+			Comparator<Entry> order;
+			if (sort.equals("size"))
+				order = Comparator.comparingLong((Entry e) -> e.isDirectory ? -1 : e.size);
+			else if (sort.equals("modified"))
+				order = Comparator.comparingLong((Entry e) -> e.lastModified);
+			else
+				order = Comparator.comparing((Entry e) -> e.name);
+			if (descending)
+				order = order.reversed();
+			sorted = new ArrayList<>(entries);
+			sorted.sort(order);
+		}
+		int pageCount = pageCount(sorted.size(), pageSize);
+		page = Math.min(page, pageCount);
+		int start = (page - 1) * pageSize;
+		int end = Math.min(start + pageSize, sorted.size());
+
+		StringBuilder html = new StringBuilder(256 + 160 * (end - start));
+		html.append("<html><head><meta charset=\"utf-8\"><title>Directory Listing</title></head><body>\r\n");
+		html.append("<h1>Directory Listing</h1><h3>").append(escape(title)).append("</h3>");
+		String order = descending ? "desc" : "asc";
+		String flip = descending ? "asc" : "desc";
+		html.append("<table><tr>");
+		for (String column : new String[] { "name", "size", "modified" }) {
+			String label = column.equals("name") ? "Filename" : column.equals("size") ? "Size" : "Last Modified";
+			html.append("<td><a href=\"?sort=").append(column).append("&amp;order=")
+				.append(column.equals(sort) ? flip : "asc").append("&amp;size=").append(pageSize)
+				.append("\">").append(label).append("</a></td>");
+		}
+		html.append("</tr>");
+		if (page == 1)
+			html.append("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>");
+		for (int i = start; i < end; i++) {
+			Entry entry = sorted.get(i);
+			String link = URLEncoder.encode(entry.name, StandardCharsets.UTF_8).replace("+", "%20");
+			String name = entry.isDirectory ? entry.name + "/" : entry.name;
+			html.append("<tr><td><a href=\"").append(link).append(entry.isDirectory ? "/" : "")
+				.append("\">").append(escape(name)).append("</a></td>");
+			html.append("<td align=\"right\">").append(entry.isDirectory ? "-" : formatSize(entry.size))
+				.append("</td><td>").append(DATE_FORMAT.format(Instant.ofEpochMilli(entry.lastModified)))
+				.append("</td></tr>\r\n");
+		}
+		html.append("</table>");
+		if (pageCount > 1) {
+			html.append("<p>Page ").append(page).append(" of ").append(pageCount);
+			String base = "?sort=" + sort + "&amp;order=" + order + "&amp;size=" + pageSize + "&amp;page=";
+			if (page > 1)
+				html.append(" <a href=\"").append(base).append(page - 1).append("\">Previous</a>");
+			if (page < pageCount)
+				html.append(" <a href=\"").append(base).append(page + 1).append("\">Next</a>");
+			html.append("</p>");
+		}
+		html.append("<hr></body></html>\r\n");
+		return html.toString();
+	}
+
+	/**
+	 * Registers a directory with the watch service, starting the thread that
+	 * handles watch events if this is the first directory.
+	 *
+	 * @return The watch key, or null if the directory can't be watched, in
+	 *         which case the listing is not cached.
+	 */
+	private static synchronized WatchKey watch(Path dir) {
+		if (watcherUnavailable)
+			return null;
+		try {
+			if (watcher == null) {
+				watcher = FileSystems.getDefault().newWatchService();
+				Thread thread = new Thread(DirectoryListing::processEvents, "DirectoryListing watcher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			return dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			if (watcher == null)
+				watcherUnavailable = true;
+			return null;
+		}
+	}
+
+	/**
+	 * Runs in the watcher thread, removing a directory from the cache whenever
+	 * an event is reported for it.  The key is cancelled, and the directory
+	 * will be registered again the next time it is listed.
+	 */
+	private static void processEvents() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			key.pollEvents();
+			key.cancel();
+			synchronized (cache) {
+				Path dir = (Path) key.watchable();
+				Listing listing = cache.get(dir);
+				if (listing != null && listing.key == key)
+					cache.remove(dir);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of pages needed for a number of entries.  An empty
+	 * directory still has one page.
+	 */
+	private static int pageCount(int entries, int pageSize) {
+		return Math.max(1, (entries + pageSize - 1) / pageSize);
+	}
+
+	/**
+	 * Splits a query string such as "sort=size&page=2" into a map.
+	 */
+	private static Map<String,String> parseQuery(String query) {
+		Map<String,String> options = new HashMap<>();
+		if (query == null)
+			return options;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				options.put(pair.substring(0, eq), pair.substring(eq + 1));
+		}
+		return options;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Escapes the characters that have special meaning in HTML.
+	 */
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Formats the size of a file in a user-friendly form.
+	 *
+	 * @param bytes The size of the file in bytes.
+	 * @return A formatted string representing the file size.
+	 */
+	private static String formatSize(long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		} else if (bytes < 1024 * 1024) {
+			return (bytes / 1024) + " KB";
+		} else {
+			return String.format("%.2f MB", (double) bytes / (1024 * 1024));
+		}
+	}
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Stores the body of a PUT or POST request as a file.  The body is copied
+ * from the request's body stream to a temporary file in the same directory
+ * as the target, through a fixed-size buffer, so the memory used does not
+ * depend on the size of the upload.  When the whole body has arrived, the
+ * temporary file is renamed to the target in one atomic step, so other
+ * requests see either the old file or the complete new one, never a part.
+ * If anything goes wrong, the temporary file is deleted and the target is
+ * left as it was.
+ *
+ * <p>A temporary file is only readable by its owner, and the rename keeps
+ * its permissions, so before the rename it is given those of the file it
+ * replaces, or NEW_FILE_PERMISSIONS for a new file.</p>
+ */
+public class FileUpload {
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private final static String TEMP_PREFIX = ".upload-", TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * The permissions of a file created by an upload, where the file system
+	 * has POSIX permissions.
+	 */
+	private final static Set<PosixFilePermission> NEW_FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+	/**
+	 * Thrown when an upload is bigger than the limit.
+	 */
+	public static class TooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public TooLargeException(long limit) {
+			super("Upload is larger than " + limit + " bytes");
+		}
+	}
+
+	/**
+	 * Tells whether a file name is that of the temporary file of an upload
+	 * in progress.
+	 */
+	public static boolean isTemporary(String name) {
+		return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+	}
+
+	/**
+	 * Copies a request body into a file, replacing the file if it exists.
+	 *
+	 * @param body    The request body, as returned by HttpExchange.getBodyStream().
+	 * @param target  The file to create or replace.  Its directory must exist.
+	 * @param maxSize The largest number of bytes that will be accepted.
+	 * @return The number of bytes stored.
+	 * @throws TooLargeException If the body is longer than maxSize.  The rest
+	 *         of the body is not read.
+	 * @throws IOException If the body can't be read or the file can't be written.
+	 */
+	public static long receive(InputStream body, Path target, long maxSize) throws IOException {
+		Path temp = Files.createTempFile(target.getParent(), TEMP_PREFIX, TEMP_SUFFIX);
+		boolean done = false;
+		try {
+			long total = 0;
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+				int count;
+				while ((count = body.read(buffer)) >= 0) {
+					total += count;
+					if (total > maxSize)
+						throw new TooLargeException(maxSize);
+					wrapped.clear().limit(count);
+					while (wrapped.hasRemaining())
+						channel.write(wrapped);
+				}
+				channel.force(false);  // the data must be on disk before the rename makes it visible
+			}
+			setPermissions(temp, target);
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			done = true;
+			return total;
+		}
+		finally {
+			if (!done)
+				Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Gives the temporary file the permissions of the target, if it exists,
+	 * or else NEW_FILE_PERMISSIONS.  Nothing is done on a file system
+	 * without POSIX permissions.
+	 */
+	private static void setPermissions(Path temp, Path target) throws IOException {
+		try {
+			Set<PosixFilePermission> permissions = Files.exists(target)
+					? Files.getPosixFilePermissions(target) : NEW_FILE_PERMISSIONS;
+			Files.setPosixFilePermissions(temp, permissions);
+		}
+		catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+		}
+	}
+}
@@ -0,0 +1,307 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One request on a connection, together with the things needed to answer it:
+ * the socket, the parser that read the request, and the stream that the
+ * response is written to.  It also keeps track of whether the connection
+ * will stay open for another request after the response has been sent,
+ * which every response has to announce in its Connection header.
+ *
+ * <p>A connection uses the same HttpExchange for all its requests.</p>
+ */
+public class HttpExchange {
+
+	private final Socket socket;
+	private final HttpRequestParser parser;
+	private final HttpRequest request;
+	private final ResponseOutputStream out;
+	private boolean keepAlive;
+	private boolean hasBody;
+	private boolean bodyDone;    // True when the whole body has been read.
+	private InputStream bodyStream;
+	private Router router;
+	private String path;
+	private String query;
+	private volatile boolean idle = true;
+	private boolean detached;
+
+	public HttpExchange(Socket socket, HttpRequestParser parser, HttpRequest request, ResponseOutputStream out) {
+		this.socket = socket;
+		this.parser = parser;
+		this.request = request;
+		this.out = out;
+	}
+
+	/**
+	 * Gets ready to answer the request that has just been parsed.  An HTTP/1.1
+	 * connection stays open unless the client sent "Connection: close"; an
+	 * HTTP/1.0 connection only stays open if the client asked for keep-alive.
+	 *
+	 * @param allowKeepAlive false if the connection must be closed after this
+	 *                       request in any case.
+	 */
+	void begin(boolean allowKeepAlive) {
+		out.reset();
+		String connection = request.getHeader("connection");
+		if (request.getVersion() == "HTTP/1.1")
+			keepAlive = !hasToken(connection, "close");
+		else
+			keepAlive = hasToken(connection, "keep-alive");
+		keepAlive = keepAlive && allowKeepAlive;
+		String length = request.getHeader("content-length");
+		hasBody = request.getHeader("transfer-encoding") != null
+				|| (length != null && !length.equals("0"));
+		bodyDone = !hasBody;
+		bodyStream = null;
+	}
+
+	/**
+	 * Returns the router that decides how this request is handled.
+	 */
+	public Router getRouter() {
+		return router;
+	}
+
+	void setRouter(Router router) {
+		this.router = router;
+	}
+
+	/**
+	 * Returns the canonical path of the request, including the prefix of
+	 * the route that it matched.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the query string of the request, without the "?", or null if
+	 * there is none.
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	void setPath(String path, String query) {
+		this.path = path;
+		this.query = query;
+	}
+
+	/**
+	 * Tells whether the connection is waiting for the next request, rather
+	 * than handling one.
+	 */
+	public boolean isIdle() {
+		return idle;
+	}
+
+	void setIdle(boolean idle) {
+		this.idle = idle;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public HttpRequestParser getParser() {
+		return parser;
+	}
+
+	public HttpRequest getRequest() {
+		return request;
+	}
+
+	/**
+	 * Returns the HTTP version of the request, which is also used in the
+	 * status line of the response.
+	 */
+	public String getVersion() {
+		return request.getVersion();
+	}
+
+	/**
+	 * Returns the stream to which the response is written.
+	 */
+	public ResponseOutputStream getOutput() {
+		return out;
+	}
+
+	/**
+	 * Tells whether the connection will be kept open after this response.
+	 * That is only possible if the request body, if there is one, has been
+	 * read to the end, since otherwise the next request can't be found.
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive && bodyDone && !detached;
+	}
+
+	/**
+	 * Takes the connection away from its connection thread, which stops
+	 * reading requests from it and leaves it open when it finishes.  A
+	 * handler that keeps a response going after it returns, such as an event
+	 * stream, calls this once it has sent the response headers, and becomes
+	 * responsible for closing the socket.
+	 */
+	public void detach() {
+		detached = true;
+	}
+
+	/**
+	 * Tells whether detach() has been called.
+	 */
+	public boolean isDetached() {
+		return detached;
+	}
+
+	/**
+	 * Makes sure that the connection is closed after this response.  This must
+	 * be called before the response headers are sent, for example for a
+	 * response whose end is marked by closing the connection.
+	 */
+	public void closeAfterResponse() {
+		keepAlive = false;
+	}
+
+	/**
+	 * Returns the Connection header line for the response, including the CRLF.
+	 */
+	public String connectionHeader() {
+		if (!bodyDone)
+			keepAlive = false;  // the body has not been read, so it never will be
+		return keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+	}
+
+	/**
+	 * Tells whether the request has a body, according to its headers.
+	 */
+	public boolean hasBody() {
+		return hasBody;
+	}
+
+	/**
+	 * Returns a stream for reading the body of the request, which ends at the
+	 * end of the body.  The body is delimited by its Content-Length, or, for
+	 * chunked transfer coding, decoded with a ChunkedInputStream.  If the
+	 * client sent "Expect: 100-continue", the interim 100 response that it is
+	 * waiting for is sent now.  A request without a body gets an empty stream.
+	 *
+	 * <p>For the connection to be kept open, the stream must be read to the
+	 * end before the response headers are sent.  Closing it does nothing.</p>
+	 *
+	 * @throws HttpRequestParser.BadRequestException If the headers that
+	 *         describe the body are invalid.
+	 * @throws IOException If the 100 response can't be sent.
+	 */
+	public InputStream getBodyStream() throws IOException {
+		if (bodyStream != null)
+			return bodyStream;
+		long length = -1;
+		String transferEncoding = request.getHeader("transfer-encoding");
+		if (transferEncoding != null) {
+			// Chunked must be the last coding, or the end of the body can't be found.
+			if (!transferEncoding.trim().toLowerCase().endsWith("chunked"))
+				throw new HttpRequestParser.BadRequestException(400, "Unsupported transfer coding");
+		}
+		else if (hasBody) {
+			try {
+				length = Long.parseLong(request.getHeader("content-length").trim());
+			}
+			catch (NumberFormatException e) {
+				length = -2;
+			}
+			if (length < 0)
+				throw new HttpRequestParser.BadRequestException(400, "Bad Content-Length");
+		}
+		else {
+			length = 0;
+		}
+		if (!bodyDone && request.getVersion() == "HTTP/1.1" && hasToken(request.getHeader("expect"), "100-continue")) {
+			out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			out.reset();  // the real response has yet to come
+		}
+		InputStream raw = parser.getBodyStream();
+		bodyStream = new BodyStream(length < 0 ? new ChunkedInputStream(raw) : raw, length);
+		return bodyStream;
+	}
+
+	/**
+	 * The stream returned by getBodyStream().  It stops after a given number
+	 * of bytes, or at the end of the underlying stream if the length is -1,
+	 * and notes when the end of the body has been reached.
+	 */
+	private class BodyStream extends FilterInputStream {
+		private long remaining;
+
+		BodyStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (bodyDone)
+				return -1;
+			if (len == 0)
+				return 0;
+			if (remaining == 0) {
+				bodyDone = true;  // "Content-Length: 00", for instance
+				return -1;
+			}
+			if (remaining >= 0)
+				len = (int) Math.min(len, remaining);
+			int count = in.read(b, off, len);
+			if (count < 0) {
+				if (remaining > 0)
+					throw new HttpRequestParser.BadRequestException(400, "Request body is shorter than Content-Length");
+				bodyDone = true;
+				return -1;
+			}
+			if (remaining > 0) {
+				remaining -= count;
+				if (remaining == 0)
+					bodyDone = true;
+			}
+			return count;
+		}
+
+		public long skip(long n) throws IOException {
+			byte[] b = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+			int count = read(b, 0, b.length);
+			return Math.max(count, 0);
+		}
+
+		public int available() throws IOException {
+			return bodyDone ? 0 : in.available();
+		}
+
+		public void close() {
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Tests whether a comma-separated header value contains a given token,
+	 * ignoring case.
+	 */
+	static boolean hasToken(String headerValue, String token) {
+		if (headerValue == null)
+			return false;
+		for (String item : headerValue.split(",")) {
+			if (item.trim().equalsIgnoreCase(token))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,102 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * Compares the number of requests per second that can be parsed by the
+ * Scanner code that SimpleWebServer originally used and by HttpRequestParser.
+ * Each method is run several times, and the first runs are not counted, to
+ * give the JIT compiler a chance to compile the code.
+ *
+ * <p>The Scanner is measured two ways: reading only the three tokens of the
+ * request line, as the original server did, and also reading the headers
+ * with nextLine(), which is what it would take to get the same information
+ * as the parser.  The parser is measured with a new parser for each
+ * request, as for a connection that carries one request, and with one
+ * parser reading a stream of pipelined requests.</p>
+ */
+public class HttpParserBenchmark {
+
+	private final static String REQUEST =
+			"GET /docs/index.html?lang=en HTTP/1.1\r\n" +
+			"Host: localhost:50505\r\n" +
+			"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0\r\n" +
+			"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+			"Accept-Language: en-US,en;q=0.5\r\n" +
+			"Accept-Encoding: gzip, deflate, br\r\n" +
+			"Connection: keep-alive\r\n" +
+			"Upgrade-Insecure-Requests: 1\r\n" +
+			"Sec-Fetch-Dest: document\r\n" +
+			"Sec-Fetch-Mode: navigate\r\n" +
+			"Sec-Fetch-Site: none\r\n" +
+			"If-None-Match: \"22bd-1a152df941d\"\r\n" +
+			"\r\n";
+
+	private final static int REQUESTS_PER_RUN = 200_000;
+	private final static int WARMUP_RUNS = 3;
+	private final static int MEASURED_RUNS = 5;
+
+	private static int sink;  // Results are added to this so the JIT can't discard the work.
+
+	public static void main(String[] args) throws IOException {
+		byte[] one = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] many = new byte[one.length * REQUESTS_PER_RUN];
+		for (int i = 0; i < REQUESTS_PER_RUN; i++)
+			System.arraycopy(one, 0, many, i * one.length, one.length);
+
+		report("Scanner, request line only", () -> {
+			for (int i = 0; i < REQUESTS_PER_RUN; i++) {
+				Scanner in = new Scanner(new ByteArrayInputStream(one));
+				sink += in.next().length() + in.next().length() + in.next().length();
+			}
+		});
+		report("Scanner, request line and headers", () -> {
+			for (int i = 0; i < REQUESTS_PER_RUN; i++) {
+				Scanner in = new Scanner(new ByteArrayInputStream(one));
+				sink += in.next().length() + in.next().length() + in.next().length();
+				in.nextLine();
+				while (!in.nextLine().isEmpty())
+					sink++;
+			}
+		});
+		report("HttpRequestParser, one per request", () -> {
+			HttpRequest request = new HttpRequest();
+			for (int i = 0; i < REQUESTS_PER_RUN; i++) {
+				HttpRequestParser parser = new HttpRequestParser(new ByteArrayInputStream(one));
+				parser.parse(request);
+				sink += request.getHeaderCount() + request.getHeader("if-none-match").length();
+			}
+		});
+		report("HttpRequestParser, pipelined", () -> {
+			HttpRequest request = new HttpRequest();
+			HttpRequestParser parser = new HttpRequestParser(new ByteArrayInputStream(many));
+			while (parser.parse(request))
+				sink += request.getHeaderCount() + request.getHeader("if-none-match").length();
+		});
+		System.out.println("(checksum " + sink + ")");
+	}
+
+	private interface Run {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Does the warmup runs and the measured runs of one method, and prints
+	 * the best and average rate of the measured runs.
+	 */
+	private static void report(String name, Run run) throws IOException {
+		for (int i = 0; i < WARMUP_RUNS; i++)
+			run.run();
+		double best = 0, total = 0;
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			long start = System.nanoTime();
+			run.run();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			double rate = REQUESTS_PER_RUN / seconds;
+			best = Math.max(best, rate);
+			total += rate;
+		}
+		System.out.printf("%-38s %,12.0f requests/s (best %,.0f)%n", name, total / MEASURED_RUNS, best);
+	}
+}
@@ -0,0 +1,169 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The request line and headers of one HTTP request, as filled in by an
+ * HttpRequestParser.  A connection uses a single HttpRequest object over and
+ * over, so parsing a request does not have to allocate a new one.  The target
+ * and the header values are kept as positions in the parser's buffer, and are
+ * only turned into strings when they are asked for.
+ *
+ * <p>The data in an HttpRequest is only valid until the parser is used to
+ * parse the next request on the connection.</p>
+ */
+public class HttpRequest {
+
+	/**
+	 * The largest number of header lines that a request can have.
+	 */
+	public final static int MAX_HEADERS = 100;
+
+	private byte[] buffer;       // The parser's buffer, holding the request text.
+	private String method;       // Interned, so it can be compared with ==.
+	private int targetStart;
+	private int targetLength;
+	private String target;       // Made from the buffer the first time it is needed.
+	private String version;
+
+	private int headerCount;
+	private final String[] headerNames = new String[MAX_HEADERS];  // Lower case, interned.
+	private final int[] valueStarts = new int[MAX_HEADERS];
+	private final int[] valueLengths = new int[MAX_HEADERS];
+	private final String[] values = new String[MAX_HEADERS];       // Made when needed.
+
+	/**
+	 * Clears the request so that it can be filled in again.  Called by the
+	 * parser at the start of each request.
+	 */
+	void reset(byte[] buffer) {
+		this.buffer = buffer;
+		method = null;
+		target = null;
+		version = null;
+		for (int i = 0; i < headerCount; i++) {
+			headerNames[i] = null;
+			values[i] = null;
+		}
+		headerCount = 0;
+	}
+
+	void setMethod(String method) {
+		this.method = method;
+	}
+
+	void setTarget(int start, int length) {
+		targetStart = start;
+		targetLength = length;
+	}
+
+	void setVersion(String version) {
+		this.version = version;
+	}
+
+	/**
+	 * Records a header.  Called by the parser, which has already checked that
+	 * there is room for it.
+	 */
+	void addHeader(String name, int valueStart, int valueLength) {
+		headerNames[headerCount] = name;
+		valueStarts[headerCount] = valueStart;
+		valueLengths[headerCount] = valueLength;
+		headerCount++;
+	}
+
+	/**
+	 * Adjusts the recorded positions when the parser moves the data in its
+	 * buffer down by a given number of bytes.
+	 */
+	void shift(int delta) {
+		targetStart -= delta;
+		for (int i = 0; i < headerCount; i++)
+			valueStarts[i] -= delta;
+	}
+
+	/**
+	 * Makes strings for all the values that are still only positions in the
+	 * buffer.  The parser calls this before it reuses the buffer for the body
+	 * of the request.
+	 */
+	void detachFromBuffer() {
+		getTarget();
+		for (int i = 0; i < headerCount; i++)
+			getValue(i);
+		buffer = null;
+	}
+
+	/**
+	 * Returns the request method, such as "GET".  Standard methods are returned
+	 * as string constants, which can be compared using ==.
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns the request target, which is the path and query string of the
+	 * requested resource, exactly as it appeared in the request.
+	 */
+	public String getTarget() {
+		if (target == null)
+			target = new String(buffer, targetStart, targetLength, StandardCharsets.ISO_8859_1);
+		return target;
+	}
+
+	/**
+	 * Returns the HTTP version from the request line, "HTTP/1.1" or "HTTP/1.0".
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the number of header lines in the request.
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Returns the name of the header with a given index, in lower case.
+	 */
+	public String getHeaderName(int index) {
+		return headerNames[index];
+	}
+
+	/**
+	 * Returns the value of the header with a given index, with any leading and
+	 * trailing white space removed.
+	 */
+	public String getValue(int index) {
+		if (values[index] == null)
+			values[index] = new String(buffer, valueStarts[index], valueLengths[index], StandardCharsets.ISO_8859_1);
+		return values[index];
+	}
+
+	/**
+	 * Returns the value of a header.  If the header occurs more than once,
+	 * the values are joined with commas, as allowed by the HTTP standard.
+	 *
+	 * @param name The name of the header, in lower case.
+	 * @return The value, or null if the request has no such header.
+	 */
+	public String getHeader(String name) {
+		String result = null;
+		for (int i = 0; i < headerCount; i++) {
+			String headerName = headerNames[i];
+			if (headerName == name || headerName.equals(name)) {
+				String value = getValue(i);
+				result = (result == null) ? value : result + ", " + value;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a string containing the request line, for use in log messages.
+	 */
+	public String toString() {
+		return method + " " + getTarget() + " " + version;
+	}
+}
@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads HTTP/1.x requests from a connection.  The request line and headers
+ * are parsed a byte at a time by a state machine working directly on a
+ * buffer that is reused for every request on the connection.  Standard
+ * methods and common header names are matched against tables of string
+ * constants, so parsing a typical request creates no new strings at all.
+ *
+ * <p>Any bytes that are read past the end of the headers stay in the buffer.
+ * They can be read as the body of the request using getBodyStream(), and
+ * whatever is left over is the start of the next request.</p>
+ */
+public class HttpRequestParser {
+
+	/**
+	 * The longest request line that is accepted.  A longer one gets a
+	 * 414 URI Too Long error.
+	 */
+	public final static int MAX_REQUEST_LINE = 8192;
+
+	/**
+	 * The largest total size of the request line and headers, which is also
+	 * the size of the buffer.  A larger request gets a 431 error.
+	 */
+	public final static int MAX_HEADER_BYTES = 16384;
+
+	/**
+	 * An exception thrown when a request is malformed or too big.  It carries
+	 * the status code that should be sent back to the client.
+	 */
+	public static class BadRequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int statusCode;
+		public BadRequestException(int statusCode, String message) {
+			super(message);
+			this.statusCode = statusCode;
+		}
+		public int getStatusCode() {
+			return statusCode;
+		}
+	}
+
+	// States of the parser.
+	private final static int START = 0;           // Skipping blank lines before the request line.
+	private final static int METHOD = 1;
+	private final static int TARGET = 2;
+	private final static int VERSION = 3;
+	private final static int REQUEST_LINE_LF = 4;  // Expecting LF after CR at end of request line.
+	private final static int HEADER_START = 5;     // At the start of a header line.
+	private final static int HEADER_NAME = 6;
+	private final static int VALUE_START = 7;      // Skipping white space after the colon.
+	private final static int VALUE = 8;
+	private final static int HEADER_LF = 9;        // Expecting LF after CR at end of a header.
+	private final static int FINAL_LF = 10;        // Expecting LF after CR at end of headers.
+
+	private final static String[] METHODS = {
+			"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE", "CONNECT", "PATCH" };
+
+	private final static String[] VERSIONS = { "HTTP/1.1", "HTTP/1.0" };
+
+	private final static String[] COMMON_HEADERS = {
+			"host", "user-agent", "accept", "accept-encoding", "accept-language", "accept-charset",
+			"connection", "keep-alive", "content-length", "content-type", "content-encoding",
+			"transfer-encoding", "te", "trailer", "expect", "upgrade", "cookie", "referer", "origin",
+			"authorization", "cache-control", "pragma", "range", "if-range", "if-match",
+			"if-none-match", "if-modified-since", "if-unmodified-since", "dnt",
+			"upgrade-insecure-requests", "x-forwarded-for", "x-forwarded-proto", "x-requested-with",
+			"sec-fetch-site", "sec-fetch-mode", "sec-fetch-dest", "sec-fetch-user",
+			"sec-ch-ua", "sec-ch-ua-mobile", "sec-ch-ua-platform" };
+
+	/**
+	 * The common header names, grouped by length so that only names of the
+	 * right length have to be compared.
+	 */
+	private final static String[][] HEADERS_BY_LENGTH;
+
+	/**
+	 * TOKEN_CHARS[b] is true for the characters that can occur in a method or
+	 * header name.
+	 */
+	private final static boolean[] TOKEN_CHARS = new boolean[128];
+
+	static {
+		int maxLength = 0;
+		for (String name : COMMON_HEADERS)
+			maxLength = Math.max(maxLength, name.length());
+		HEADERS_BY_LENGTH = new String[maxLength + 1][];
+		for (int length = 0; length <= maxLength; length++) {
+			int count = 0;
+			for (String name : COMMON_HEADERS)
+				if (name.length() == length)
+					count++;
+			HEADERS_BY_LENGTH[length] = new String[count];
+			count = 0;
+			for (String name : COMMON_HEADERS)
+				if (name.length() == length)
+					HEADERS_BY_LENGTH[length][count++] = name;
+		}
+		for (char ch = '0'; ch <= '9'; ch++)
+			TOKEN_CHARS[ch] = true;
+		for (char ch = 'a'; ch <= 'z'; ch++)
+			TOKEN_CHARS[ch] = TOKEN_CHARS[Character.toUpperCase(ch)] = true;
+		for (char ch : "!#$%&'*+-.^_`|~".toCharArray())
+			TOKEN_CHARS[ch] = true;
+	}
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[MAX_HEADER_BYTES];
+	private int pos;     // Position of the first unconsumed byte in the buffer.
+	private int limit;   // Number of valid bytes in the buffer.
+	private HttpRequest current;          // The request most recently parsed.
+	private final InputStream bodyStream = new BodyStream();
+
+	/**
+	 * Creates a parser that reads requests from a given input stream.  The
+	 * parser does its own buffering, so the stream should not be buffered.
+	 */
+	public HttpRequestParser(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads and parses the request line and headers of the next request.
+	 *
+	 * @param request The object that is filled in with the request data.
+	 * @return true if a request was read, or false if the connection was
+	 *         closed cleanly before the start of a request.
+	 * @throws BadRequestException If the request is malformed or too big.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	@SuppressWarnings("fallthrough")  // VALUE_START falls into VALUE on purpose.
+	public boolean parse(HttpRequest request) throws IOException {
+		if (pos == limit)
+			pos = limit = 0;
+		request.reset(buffer);
+		current = request;
+		int state = START;
+		int start = pos;   // Where this request starts in the buffer.
+		int tokenStart = 0;
+		String name = null;
+		int valueStart = 0, valueEnd = 0;
+		int i = pos;
+		while (true) {
+			if (i == limit) {
+				if (limit == buffer.length) {
+					if (start == 0) {
+						if (state <= REQUEST_LINE_LF)
+							throw new BadRequestException(414, "Request line too long");
+						throw new BadRequestException(431, "Request headers too large");
+					}
+					// Move the part of the request that has been read to the start of
+					// the buffer, to make room for the rest.  This is only needed when
+					// a request straddles the end of the buffer.
+					System.arraycopy(buffer, start, buffer, 0, limit - start);
+					limit -= start;
+					i -= start;
+					tokenStart -= start;
+					valueStart -= start;
+					valueEnd -= start;
+					request.shift(start);
+					start = 0;
+				}
+				int count = in.read(buffer, limit, buffer.length - limit);
+				if (count < 0) {
+					if (state == START) {
+						pos = limit = 0;
+						return false;
+					}
+					throw new BadRequestException(400, "Connection closed in the middle of a request");
+				}
+				limit += count;
+			}
+			byte b = buffer[i];
+			switch (state) {
+			case START:
+				if (b != '\r' && b != '\n') {
+					if (!isTokenChar(b))
+						throw new BadRequestException(400, "Malformed request line");
+					tokenStart = i;
+					state = METHOD;
+				}
+				break;
+			case METHOD:
+				if (b == ' ') {
+					request.setMethod(intern(METHODS, tokenStart, i - tokenStart, false));
+					tokenStart = i + 1;
+					state = TARGET;
+				}
+				else if (!isTokenChar(b)) {
+					throw new BadRequestException(400, "Malformed request method");
+				}
+				break;
+			case TARGET:
+				if (b == ' ') {
+					if (i == tokenStart)
+						throw new BadRequestException(400, "Empty request target");
+					request.setTarget(tokenStart, i - tokenStart);
+					tokenStart = i + 1;
+					state = VERSION;
+				}
+				else if ((b & 0xFF) < 32 || b == 127) {
+					throw new BadRequestException(400, "Illegal character in request target");
+				}
+				break;
+			case VERSION:
+				if (b == '\r' || b == '\n') {
+					String version = intern(VERSIONS, tokenStart, i - tokenStart, false);
+					if (version != VERSIONS[0] && version != VERSIONS[1]) {
+						if (version.startsWith("HTTP/"))
+							throw new BadRequestException(505, "Unsupported HTTP version");
+						throw new BadRequestException(400, "Malformed HTTP version");
+					}
+					request.setVersion(version);
+					state = (b == '\r') ? REQUEST_LINE_LF : HEADER_START;
+				}
+				break;
+			case REQUEST_LINE_LF:
+			case HEADER_LF:
+				if (b != '\n')
+					throw new BadRequestException(400, "CR not followed by LF");
+				state = HEADER_START;
+				break;
+			case HEADER_START:
+				if (b == '\r') {
+					state = FINAL_LF;
+				}
+				else if (b == '\n') {
+					pos = i + 1;
+					return true;
+				}
+				else if (isTokenChar(b)) {
+					if (request.getHeaderCount() == HttpRequest.MAX_HEADERS)
+						throw new BadRequestException(431, "Too many request headers");
+					tokenStart = i;
+					state = HEADER_NAME;
+				}
+				else {
+					// This includes the obsolete line folding, which is not accepted.
+					throw new BadRequestException(400, "Malformed header line");
+				}
+				break;
+			case HEADER_NAME:
+				if (b == ':') {
+					if (i == tokenStart)
+						throw new BadRequestException(400, "Empty header name");
+					int length = i - tokenStart;
+					String[] candidates = (length < HEADERS_BY_LENGTH.length) ? HEADERS_BY_LENGTH[length] : null;
+					name = intern(candidates, tokenStart, length, true);
+					state = VALUE_START;
+				}
+				else if (!isTokenChar(b)) {
+					throw new BadRequestException(400, "Malformed header name");
+				}
+				break;
+			case VALUE_START:
+				if (b == ' ' || b == '\t')
+					break;
+				valueStart = valueEnd = i;
+				state = VALUE;
+				// fall through, to process this byte as part of the value
+			case VALUE:
+				if (b == '\r' || b == '\n') {
+					request.addHeader(name, valueStart, valueEnd - valueStart);
+					state = (b == '\r') ? HEADER_LF : HEADER_START;
+				}
+				else if (b != ' ' && b != '\t') {
+					if ((b & 0xFF) < 32 || b == 127)
+						throw new BadRequestException(400, "Illegal character in header value");
+					valueEnd = i + 1;  // trailing white space is not part of the value
+				}
+				break;
+			case FINAL_LF:
+				if (b != '\n')
+					throw new BadRequestException(400, "CR not followed by LF");
+				pos = i + 1;
+				return true;
+			}
+			if (state <= REQUEST_LINE_LF && i - start >= MAX_REQUEST_LINE)
+				throw new BadRequestException(414, "Request line too long");
+			i++;
+		}
+	}
+
+	/**
+	 * Returns a stream for reading the body of the request that was parsed
+	 * most recently.  It returns the bytes that were read past the end of the
+	 * headers, and then reads more from the connection, through the same
+	 * buffer.  The caller is responsible for reading no more than the length
+	 * of the body.  The same stream object is returned for every request.
+	 */
+	public InputStream getBodyStream() {
+		return bodyStream;
+	}
+
+	/**
+	 * Returns the number of bytes that have been read from the connection but
+	 * not yet consumed.
+	 */
+	public int available() {
+		return limit - pos;
+	}
+
+	private static boolean isTokenChar(byte b) {
+		return b > 0 && TOKEN_CHARS[b];
+	}
+
+	/**
+	 * Returns the string from a table that matches a given range of bytes in
+	 * the buffer, or a new string if there is no match.
+	 *
+	 * @param table      The strings to match against, or null.  When ignoring
+	 *                   case, they must be in lower case.
+	 * @param start      The position in the buffer of the first byte.
+	 * @param length     The number of bytes.
+	 * @param ignoreCase If true, the bytes are compared, and any new string
+	 *                   is made, in lower case.
+	 */
+	private String intern(String[] table, int start, int length, boolean ignoreCase) {
+		if (table != null) {
+			for (String candidate : table) {
+				if (candidate.length() != length)
+					continue;
+				int j = 0;
+				while (j < length) {
+					int b = buffer[start + j];
+					if (ignoreCase && b >= 'A' && b <= 'Z')
+						b += 'a' - 'A';
+					if (b != candidate.charAt(j))
+						break;
+					j++;
+				}
+				if (j == length)
+					return candidate;
+			}
+		}
+		char[] chars = new char[length];
+		for (int j = 0; j < length; j++) {
+			char ch = (char) (buffer[start + j] & 0xFF);
+			chars[j] = (ignoreCase && ch >= 'A' && ch <= 'Z') ? (char) (ch + 'a' - 'A') : ch;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Makes sure that there is at least one unconsumed byte in the buffer.
+	 * Before the buffer is refilled, the current request is made to copy the
+	 * data that it still needs out of the buffer.
+	 *
+	 * @return false if the end of the stream has been reached.
+	 */
+	private boolean fill() throws IOException {
+		if (pos < limit)
+			return true;
+		if (current != null) {
+			current.detachFromBuffer();
+			current = null;
+		}
+		pos = limit = 0;
+		int count = in.read(buffer, 0, buffer.length);
+		if (count <= 0)
+			return false;
+		limit = count;
+		return true;
+	}
+
+	/**
+	 * The stream returned by getBodyStream().
+	 */
+	private class BodyStream extends InputStream {
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return buffer[pos++] & 0xFF;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int count = Math.min(len, limit - pos);
+			System.arraycopy(buffer, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+		public int available() {
+			return limit - pos;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, or other non-negative values, in the style of
+ * HdrHistogram.  Values are counted in buckets whose width grows with the
+ * size of the value, so that every value is recorded with a relative error
+ * of less than 1/SUB_BUCKETS, while the whole range of a long needs only a
+ * few thousand counters.  Recording is lock-free, so many threads can record
+ * into the same histogram at once.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Each power of two is divided into this many buckets.  It must be a
+	 * power of two.  With 128, values are accurate to within 1%.
+	 */
+	private final static int SUB_BUCKETS = 128;
+	private final static int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder totalSum = new LongAdder();
+
+	/**
+	 * Records one value.  Negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * Records a value a given number of times.
+	 */
+	public void record(long value, long count) {
+		if (value < 0)
+			value = 0;
+		counts.addAndGet(indexFor(value), count);
+		totalCount.add(count);
+		totalSum.add(value * count);
+	}
+
+	/**
+	 * Records a value measured by a tester that meant to take a measurement
+	 * every expectedInterval, correcting for coordinated omission in the way
+	 * that HdrHistogram does.  A tester that waits for each response before
+	 * sending the next request sends nothing while the server is stalled, so
+	 * a stall of length L shows up as a single slow sample instead of as the
+	 * L/expectedInterval slow samples that a steady stream of requests would
+	 * have seen.  Those missing samples, with latencies of L - expectedInterval,
+	 * L - 2*expectedInterval, and so on, are added here.
+	 *
+	 * @param value            The measured value.
+	 * @param expectedInterval The intended time between measurements, in the
+	 *                         same unit as the value, or 0 for no correction.
+	 */
+	public void recordCorrected(long value, long expectedInterval) {
+		record(value);
+		if (expectedInterval <= 0)
+			return;
+		for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval)
+			record(missing);
+	}
+
+	/**
+	 * Returns the number of values that have been recorded.
+	 */
+	public long getCount() {
+		return totalCount.sum();
+	}
+
+	/**
+	 * Returns the sum of all the values that have been recorded.
+	 */
+	public long getSum() {
+		return totalSum.sum();
+	}
+
+	/**
+	 * Returns the largest value that has been recorded, to within the
+	 * precision of the histogram, or 0 if nothing has been recorded.
+	 */
+	public long getMax() {
+		for (int i = counts.length() - 1; i >= 0; i--) {
+			if (counts.get(i) > 0)
+				return highestValueIn(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns an estimate of the value at a given percentile.  The result is
+	 * the upper end of the bucket that contains the percentile, so it is never
+	 * lower than the true value.
+	 *
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The value, or 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return highestValueIn(i);
+		}
+		return getMax();
+	}
+
+	/**
+	 * Adds all the counts from another histogram into this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length(); i++) {
+			long count = other.counts.get(i);
+			if (count > 0)
+				counts.addAndGet(i, count);
+		}
+		totalCount.add(other.getCount());
+		totalSum.add(other.getSum());
+	}
+
+	/**
+	 * Finds the bucket for a value.  Values below SUB_BUCKETS each get a
+	 * bucket of their own.  Above that, the position of the highest bit of
+	 * the value selects a group of SUB_BUCKETS buckets, and the next
+	 * SUB_BUCKET_BITS bits select the bucket within the group.
+	 */
+	private static int indexFor(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * Returns the highest value that falls into a given bucket.
+	 */
+	private static long highestValueIn(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long low = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,452 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Puts a load on a running SimpleWebServer and reports the latencies that
+ * the requests saw, so that server modes (plain or TLS, with or without
+ * compression, different limits, and so on) can be compared under the same
+ * load.  Each run prints one line with the throughput and the latency
+ * percentiles, and can also add the line to a CSV file.
+ *
+ * <p>There are two kinds of test.  In a closed-loop test, each connection
+ * sends a request as soon as the answer to its previous request has
+ * arrived, so the load goes down when the server slows down.  In an
+ * open-loop test, requests are due at a fixed rate no matter how the server
+ * is doing, and the latency of a request is measured from the time that it
+ * was due, not from the time it could actually be sent.  A closed-loop test
+ * that is given a rate paces each connection to it, and corrects for
+ * coordinated omission with LatencyHistogram.recordCorrected(): without
+ * that, a server that stalls for a second while the tester waits for it
+ * shows one slow request instead of the many that real clients would have
+ * seen.</p>
+ *
+ * <p>The scenarios are:</p>
+ *
+ * <ul>
+ * <li>small -- a 1 KB file, on keep-alive connections.</li>
+ * <li>large -- a 10 MB file.</li>
+ * <li>listing -- a directory listing of 500 files.</li>
+ * <li>notfound -- a file that does not exist, answered by 404.</li>
+ * <li>close -- the small file, with a new connection for each request.</li>
+ * <li>mix -- a mixture of the above, with the fraction of requests that
+ *     close their connection given by --closeFraction.</li>
+ * </ul>
+ *
+ * <p>The files are created in the directory given by --dir, which the
+ * server must be able to see.  The URLs are the absolute path of that
+ * directory with the --prefix in front of it, which suits a server that
+ * was started from the root directory, as SimpleWebServer is by default.
+ * Other options, with their defaults:</p>
+ *
+ * <pre>
+ * --host localhost --port 50505 --tls false
+ * --scenario small --mode closed --connections 16 --rate 0 (requests/second, 0 for none)
+ * --duration 10 --warmup 3 (seconds) --label "" --csv (no file)
+ * </pre>
+ *
+ * <p>For example:
+ * <code>java LoadGenerator --scenario mix --mode open --rate 2000 --label gzip --csv results.csv</code></p>
+ */
+public class LoadGenerator {
+
+	private final static int SMALL_FILE_SIZE = 1024;
+	private final static int LARGE_FILE_SIZE = 10 * 1024 * 1024;
+	private final static int LISTING_FILES = 500;
+
+	/**
+	 * One kind of request in a scenario.
+	 */
+	private static class Target {
+		final String path;
+		final int expectedStatus;
+		final int weight;
+		final boolean close;  // true to close the connection after the request
+		Target(String path, int expectedStatus, int weight, boolean close) {
+			this.path = path;
+			this.expectedStatus = expectedStatus;
+			this.weight = weight;
+			this.close = close;
+		}
+	}
+
+	private static String host;
+	private static int port;
+	private static SSLContext tlsContext;  // null for plain HTTP
+	private static List<Target> targets;
+	private static int totalWeight;
+	private static double closeFraction;
+
+	private static long endTime;       // System.nanoTime() at which the current phase ends
+	private static long startTime;     // System.nanoTime() at which the current phase started
+	private static long interval;      // nanoseconds between requests, or 0 for as fast as possible
+	private static boolean openLoop;
+	private static final AtomicLong tickets = new AtomicLong();  // open loop: the next request that is due
+	private static final AtomicLong requests = new AtomicLong();
+	private static final AtomicLong errors = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
+	private static volatile LatencyHistogram histogram;  // in microseconds
+
+	public static void main(String[] args) throws Exception {
+		Map<String,String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--") || i + 1 == args.length) {
+				System.out.println("Options are given as --name value.  See the comment on LoadGenerator.");
+				return;
+			}
+			options.put(args[i].substring(2), args[++i]);
+		}
+		host = options.getOrDefault("host", "localhost");
+		port = Integer.parseInt(options.getOrDefault("port", "50505"));
+		if (Boolean.parseBoolean(options.getOrDefault("tls", "false"))) {
+			tlsContext = SSLContext.getInstance("TLS");
+			tlsContext.init(null, new TrustManager[] { new TrustEverything() }, null);
+		}
+		String scenario = options.getOrDefault("scenario", "small");
+		String mode = options.getOrDefault("mode", "closed");
+		openLoop = mode.equals("open");
+		int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+		double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+		if (openLoop && rate <= 0) {
+			System.out.println("An open-loop test needs a --rate.");
+			return;
+		}
+		double duration = Double.parseDouble(options.getOrDefault("duration", "10"));
+		double warmup = Double.parseDouble(options.getOrDefault("warmup", "3"));
+		closeFraction = Double.parseDouble(options.getOrDefault("closeFraction", "0.1"));
+		String label = options.getOrDefault("label", "");
+		Path dir = Paths.get(options.getOrDefault("dir",
+				Paths.get(System.getProperty("java.io.tmpdir"), "webserver-load").toString())).toAbsolutePath();
+		createFiles(dir);
+		String prefix = options.getOrDefault("prefix", "") + Router.encodePath(dir.toString().replace('\\', '/'));
+		targets = scenario(scenario, prefix.startsWith("/") ? prefix : "/" + prefix);
+		if (targets == null) {
+			System.out.println("Unknown scenario: " + scenario);
+			return;
+		}
+		for (Target target : targets)
+			totalWeight += target.weight;
+
+		// In an open loop, the rate is shared by all the connections; in a
+		// closed loop, each connection is paced separately.
+		if (rate > 0)
+			interval = (long) (1e9 / (openLoop ? rate : rate / connections));
+		if (warmup > 0)
+			runPhase(connections, warmup);
+		double seconds = runPhase(connections, duration);
+
+		LatencyHistogram h = histogram;
+		String report = String.format(Locale.ROOT,
+				"%s,%s,%s,%d,%.0f,%d,%d,%.1f,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f",
+				label, scenario, mode, connections, rate, requests.get(), errors.get(),
+				requests.get() / seconds, bytes.get() / seconds / 1e6,
+				h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(90) / 1e3,
+				h.getValueAtPercentile(99) / 1e3, h.getValueAtPercentile(99.9) / 1e3, h.getMax() / 1e3);
+		String header = "label,scenario,mode,connections,rate,requests,errors,req/s,MB/s,p50 ms,p90 ms,p99 ms,p99.9 ms,max ms";
+		System.out.println(header);
+		System.out.println(report);
+		if (options.containsKey("csv")) {
+			Path csv = Paths.get(options.get("csv"));
+			boolean isNew = !Files.exists(csv);
+			try (PrintWriter out = new PrintWriter(new FileWriter(csv.toFile(), StandardCharsets.UTF_8, true))) {
+				if (isNew)
+					out.println(header);
+				out.println(report);
+			}
+		}
+	}
+
+	/**
+	 * Returns the targets for a scenario, or null if there is no such scenario.
+	 */
+	private static List<Target> scenario(String name, String prefix) {
+		Target small = new Target(prefix + "/small.txt", 200, 60, false);
+		Target large = new Target(prefix + "/large.bin", 200, 2, false);
+		Target listing = new Target(prefix + "/listing/", 200, 13, false);
+		Target notFound = new Target(prefix + "/missing.txt", 404, 25, false);
+		List<Target> list = new ArrayList<>();
+		switch (name) {
+		case "small": list.add(small); break;
+		case "large": list.add(large); break;
+		case "listing": list.add(listing); break;
+		case "notfound": list.add(notFound); break;
+		case "close": list.add(new Target(small.path, 200, 1, true)); break;
+		case "mix": list.add(small); list.add(large); list.add(listing); list.add(notFound); break;
+		default: return null;
+		}
+		return list;
+	}
+
+	/**
+	 * Creates the files that the scenarios ask for, if they are not there.
+	 */
+	private static void createFiles(Path dir) throws IOException {
+		Path listing = dir.resolve("listing");
+		Files.createDirectories(listing);
+		Random random = new Random(1);
+		Path small = dir.resolve("small.txt");
+		if (!Files.exists(small) || Files.size(small) != SMALL_FILE_SIZE) {
+			byte[] data = new byte[SMALL_FILE_SIZE];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(26));
+			Files.write(small, data);
+		}
+		Path large = dir.resolve("large.bin");
+		if (!Files.exists(large) || Files.size(large) != LARGE_FILE_SIZE) {
+			byte[] data = new byte[LARGE_FILE_SIZE];
+			random.nextBytes(data);
+			Files.write(large, data);
+		}
+		for (int i = 0; i < LISTING_FILES; i++) {
+			Path file = listing.resolve(String.format("file-%04d.txt", i));
+			if (!Files.exists(file))
+				Files.write(file, new byte[0]);
+		}
+	}
+
+	/**
+	 * Runs the load for a number of seconds with a fresh histogram and fresh
+	 * counters, and returns the time that it actually took, in seconds.
+	 */
+	private static double runPhase(int connections, double seconds) throws InterruptedException {
+		histogram = new LatencyHistogram();
+		requests.set(0);
+		errors.set(0);
+		bytes.set(0);
+		tickets.set(0);
+		startTime = System.nanoTime();
+		endTime = startTime + (long) (seconds * 1e9);
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < connections; i++) {
+			threads[i] = new Thread(LoadGenerator::runConnection, "load-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		return (System.nanoTime() - startTime) / 1e9;
+	}
+
+	/**
+	 * The work of one thread: sends requests on its connection until the
+	 * phase ends, opening a new connection whenever the old one is closed.
+	 */
+	private static void runConnection() {
+		Connection connection = null;
+		// In a closed loop, connections start at different points of their
+		// interval, so that they don't all send at the same moment.
+		long due = startTime + (interval > 0 ? ThreadLocalRandom.current().nextLong(interval) : 0);
+		while (true) {
+			if (openLoop)
+				due = startTime + tickets.getAndIncrement() * interval;
+			else if (interval == 0)
+				due = System.nanoTime();
+			if (due >= endTime)
+				break;
+			long now = System.nanoTime();
+			while (now < due) {
+				LockSupport.parkNanos(due - now);
+				now = System.nanoTime();
+			}
+			Target target = pick();
+			boolean close = target.close || (targets.size() > 1 && ThreadLocalRandom.current().nextDouble() < closeFraction);
+			long sent = System.nanoTime();
+			try {
+				if (connection == null)
+					connection = new Connection();
+				int status = connection.get(target.path, close);
+				if (status != target.expectedStatus)
+					errors.incrementAndGet();
+				if (close || connection.closed) {
+					connection.close();
+					connection = null;
+				}
+			}
+			catch (IOException e) {
+				errors.incrementAndGet();
+				if (connection != null)
+					connection.close();
+				connection = null;
+			}
+			long done = System.nanoTime();
+			requests.incrementAndGet();
+			if (openLoop) {
+				histogram.record((done - due) / 1000);
+			}
+			else {
+				histogram.recordCorrected((done - sent) / 1000, interval / 1000);
+				if (interval > 0)
+					due += interval;
+			}
+		}
+		if (connection != null)
+			connection.close();
+	}
+
+	/**
+	 * Chooses a target at random, by weight.
+	 */
+	private static Target pick() {
+		if (targets.size() == 1)
+			return targets.get(0);
+		int n = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (Target target : targets) {
+			n -= target.weight;
+			if (n < 0)
+				return target;
+		}
+		return targets.get(targets.size() - 1);
+	}
+
+	/**
+	 * A client connection, which sends GET requests and reads the responses,
+	 * discarding the bodies.
+	 */
+	private static class Connection {
+
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		final byte[] buffer = new byte[65536];
+		boolean closed;  // true if the server said it will close the connection
+
+		Connection() throws IOException {
+			socket = tlsContext == null ? new Socket(host, port)
+					: tlsContext.getSocketFactory().createSocket(host, port);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(60000);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+		}
+
+		/**
+		 * Sends a request and reads the whole response.
+		 *
+		 * @return The status code of the response.
+		 */
+		int get(String path, boolean close) throws IOException {
+			String request = "GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n"
+					+ (close ? "Connection: close\r\n" : "") + "\r\n";
+			out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			String statusLine = readLine();
+			String[] parts = statusLine.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+				throw new IOException("Bad status line: " + statusLine);
+			int status;
+			try {
+				status = Integer.parseInt(parts[1]);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Bad status line: " + statusLine);
+			}
+			long length = -1;
+			boolean chunked = false;
+			closed = parts[0].equals("HTTP/1.0");
+			String line;
+			while (!(line = readLine()).isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon < 0)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+					length = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+				else if (name.equalsIgnoreCase("Connection"))
+					closed = value.equalsIgnoreCase("close");
+			}
+			if (chunked) {
+				drain(new ChunkedInputStream(in), -1);
+			}
+			else if (length >= 0) {
+				drain(in, length);
+			}
+			else {
+				drain(in, -1);  // the body ends when the connection does
+				closed = true;
+			}
+			return status;
+		}
+
+		/**
+		 * Reads and discards length bytes, or everything up to end-of-file
+		 * if length is -1.
+		 */
+		private void drain(InputStream body, long length) throws IOException {
+			while (length != 0) {
+				int count = body.read(buffer, 0, (int) (length < 0 ? buffer.length : Math.min(length, buffer.length)));
+				if (count < 0) {
+					if (length < 0)
+						return;
+					throw new EOFException("Connection closed in the middle of a response");
+				}
+				bytes.addAndGet(count);
+				if (length > 0)
+					length -= count;
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			while (true) {
+				int b = in.read();
+				if (b < 0)
+					throw new EOFException("Connection closed");
+				if (b == '\n')
+					break;
+				line.append((char) b);
+			}
+			int length = line.length();
+			if (length > 0 && line.charAt(length - 1) == '\r')
+				line.setLength(length - 1);
+			return line.toString();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Accepts any certificate, since the server normally uses a self-signed
+	 * one for testing.
+	 */
+	private static class TrustEverything implements X509TrustManager {
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
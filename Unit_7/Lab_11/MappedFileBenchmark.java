@@ -0,0 +1,206 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares ways of sending a large file over a socket: the byte-at-a-time
+ * loop that SimpleWebServer uses for ordinary files, FileChannel.transferTo()
+ * to the socket's output stream, transferTo() to a SocketChannel (which the
+ * kernel can do without copying the data into the process at all), and a
+ * shared memory mapping from MappedFileCache.  Several threads send the same
+ * file at once over loopback connections to a thread that throws the data
+ * away.  For each method, the throughput and the peak resident memory of
+ * the process are printed.  The memory is split into anonymous memory (the
+ * heap and buffers) and file pages mapped into the process, from
+ * /proc/self/status, so it is only shown on Linux.
+ *
+ * <p>The file is read once before the measurements, so that it is in the
+ * page cache.  Resident memory only grows within a process, so for a clean
+ * comparison of memory, run each method in a JVM of its own by naming it
+ * on the command line.</p>
+ *
+ * <p>Usage: java MappedFileBenchmark [megabytes [threads [method...]]],
+ * where the methods are loop, transferTo, sendfile and mmap.</p>
+ */
+public class MappedFileBenchmark {
+
+	private final static int ROUNDS = 3;
+
+	private static final AtomicLong peakAnon = new AtomicLong();
+	private static final AtomicLong peakFile = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		String[] methods = { "loop", "transferTo", "sendfile", "mmap" };
+		if (args.length > 2) {
+			methods = new String[args.length - 2];
+			System.arraycopy(args, 2, methods, 0, methods.length);
+		}
+
+		Path path = Files.createTempFile("mapped-benchmark", ".bin");
+		path.toFile().deleteOnExit();
+		byte[] block = new byte[1024 * 1024];
+		for (int i = 0; i < block.length; i++)
+			block[i] = (byte) (i * 31);
+		try (OutputStream out = Files.newOutputStream(path)) {
+			for (int i = 0; i < megabytes; i++)
+				out.write(block);
+		}
+		File file = path.toFile();
+		try (InputStream in = new FileInputStream(file)) {
+			while (in.read(block) > 0) {
+				// bring the file into the page cache
+			}
+		}
+
+		ServerSocketChannel sink = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+		Thread acceptor = new Thread(() -> drainConnections(sink));
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Thread sampler = new Thread(MappedFileBenchmark::sampleMemory);
+		sampler.setDaemon(true);
+		sampler.start();
+
+		MappedFileCache cache = new MappedFileCache(Long.MAX_VALUE);
+		System.out.printf("%d MB file, %d threads%n", megabytes, threads);
+		System.out.printf("%-12s %10s %14s %14s%n", "method", "MB/s", "peak anon MB", "peak file MB");
+		for (String method : methods) {
+			for (int round = 0; round <= ROUNDS; round++) {
+				peakAnon.set(0);
+				peakFile.set(0);
+				long start = System.nanoTime();
+				Thread[] senders = new Thread[threads];
+				for (int i = 0; i < threads; i++) {
+					senders[i] = new Thread(() -> {
+						try (SocketChannel channel = SocketChannel.open(sink.getLocalAddress())) {
+							send(method, file, channel, cache);
+						}
+						catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					});
+					senders[i].start();
+				}
+				for (Thread sender : senders)
+					sender.join();
+				double seconds = (System.nanoTime() - start) / 1e9;
+				if (round == 0)
+					continue;  // warmup
+				System.out.printf("%-12s %10.0f %14.1f %14.1f%n", method, megabytes * threads / seconds,
+						peakAnon.get() / 1024.0, peakFile.get() / 1024.0);
+			}
+		}
+		sink.close();
+	}
+
+	/**
+	 * Sends the whole file over a connection with one of the methods.
+	 */
+	private static void send(String method, File file, SocketChannel channel, MappedFileCache cache) throws IOException {
+		OutputStream socketOut = channel.socket().getOutputStream();
+		switch (method) {
+		case "loop":
+			// The loop in SimpleWebServer.sendFile().
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+				OutputStream out = new BufferedOutputStream(socketOut);
+				while (true) {
+					int x = in.read();
+					if (x < 0)
+						break;
+					out.write(x);
+				}
+				out.flush();
+			}
+			break;
+		case "transferTo":
+		case "sendfile":
+			WritableByteChannel target = method.equals("sendfile") ? channel : Channels.newChannel(socketOut);
+			try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+				long position = 0;
+				long length = in.size();
+				while (position < length)
+					position += in.transferTo(position, length - position, target);
+			}
+			break;
+		case "mmap":
+			MappedFileCache.Mapping mapping = cache.acquire(file);
+			try {
+				mapping.writeTo(socketOut, 0, mapping.length());
+			}
+			finally {
+				mapping.release();
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown method: " + method);
+		}
+	}
+
+	/**
+	 * Accepts connections and reads and discards everything sent on them.
+	 */
+	private static void drainConnections(ServerSocketChannel server) {
+		while (true) {
+			SocketChannel connection;
+			try {
+				connection = server.accept();
+			}
+			catch (IOException e) {
+				return;
+			}
+			Thread drain = new Thread(() -> {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+				try (SocketChannel c = connection) {
+					while (c.read(buffer) >= 0)
+						buffer.clear();
+				}
+				catch (IOException e) {
+				}
+			});
+			drain.setDaemon(true);
+			drain.start();
+		}
+	}
+
+	/**
+	 * Records the peak resident memory, in KB, every few milliseconds.
+	 */
+	private static void sampleMemory() {
+		Path status = Path.of("/proc/self/status");
+		while (Files.exists(status)) {
+			try {
+				for (String line : Files.readAllLines(status)) {
+					if (line.startsWith("RssAnon:"))
+						peakAnon.accumulateAndGet(kilobytes(line), Math::max);
+					else if (line.startsWith("RssFile:"))
+						peakFile.accumulateAndGet(kilobytes(line), Math::max);
+				}
+				Thread.sleep(20);
+			}
+			catch (IOException | InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private static long kilobytes(String line) {
+		return Long.parseLong(line.replaceAll("[^0-9]", ""));
+	}
+}
@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A MappedFileCache holds memory mappings of large files, so that the
+ * contents of a file can be sent from the page cache without reading them
+ * through a buffer first, and so that concurrent requests for the same file
+ * share one mapping instead of each mapping it again.
+ *
+ * <p>A mapping is reference counted.  A request gets it with acquire() and
+ * must give it back with Mapping.release() when it is done with it.  A
+ * mapping that is no longer current, because the file has changed or the
+ * mapping has been evicted to keep the total mapped size under the limit,
+ * is unmapped when its last user releases it.  Unmapping is done right away
+ * with the JDK's internal cleaner if it is available, and otherwise is left
+ * to the garbage collector.</p>
+ */
+public class MappedFileCache {
+
+	/**
+	 * The largest region that one MappedByteBuffer can cover.  Larger files
+	 * are mapped in several segments of this size.
+	 */
+	private final static long SEGMENT_SIZE = 1L << 30;
+
+	/**
+	 * The size of the buffer that data is copied through on its way from a
+	 * mapping to an output stream.
+	 */
+	private final static int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The mapping of one version of a file.
+	 */
+	public class Mapping {
+		private final String path;
+		private final long length;
+		private final long lastModified;
+		private final MappedByteBuffer[] segments;
+		private int references;   // Users, plus one while the mapping is in the cache.
+		private boolean unmapped;
+
+		private Mapping(String path, long length, long lastModified, MappedByteBuffer[] segments) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.segments = segments;
+			this.references = 1;
+		}
+
+		public long length() {
+			return length;
+		}
+
+		/**
+		 * Writes part of the file to an output stream.  Each thread reads the
+		 * mapping with absolute gets, so any number of threads can write from
+		 * the same mapping at once.
+		 *
+		 * @param out   The stream to write to.
+		 * @param first The position in the file of the first byte to write.
+		 * @param count The number of bytes to write.
+		 * @throws IOException If an I/O error occurs, or if the file was
+		 *         truncated after it was mapped.
+		 */
+		public void writeTo(OutputStream out, long first, long count) throws IOException {
+			if (first < 0 || count < 0 || first + count > length)
+				throw new IndexOutOfBoundsException("Range is outside the file");
+			byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1))];
+			try {
+				while (count > 0) {
+					ByteBuffer segment = segments[(int) (first / SEGMENT_SIZE)];
+					int offset = (int) (first % SEGMENT_SIZE);
+					int n = (int) Math.min(buffer.length, Math.min(count, segment.capacity() - offset));
+					segment.get(offset, buffer, 0, n);
+					out.write(buffer, 0, n);
+					first += n;
+					count -= n;
+				}
+			}
+			catch (InternalError e) {
+				// Reading a page of a mapped file that has been truncated raises SIGBUS,
+				// which the JVM turns into an InternalError.
+				throw new IOException("File was truncated while it was being sent: " + path, e);
+			}
+		}
+
+		/**
+		 * Gives back a mapping that was returned by acquire().
+		 */
+		public void release() {
+			synchronized (MappedFileCache.this) {
+				references--;
+				if (references == 0)
+					unmap();
+			}
+		}
+
+		private void unmap() {
+			if (unmapped)
+				return;
+			unmapped = true;
+			mappedBytes -= length;
+			for (MappedByteBuffer segment : segments)
+				invokeCleaner(segment);
+		}
+	}
+
+	private final long maxMappedBytes;  // Limit on the total size of the cached mappings.
+	private long mappedBytes;           // Current total size of all mappings that are not unmapped.
+
+	/**
+	 * The current mappings, keyed by path.  The map is kept in access order,
+	 * so the first entry is always the least recently used one.
+	 */
+	private final LinkedHashMap<String,Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param maxMappedBytes The largest total size of the files that are kept
+	 *                       mapped while nobody is using them.  This is
+	 *                       address space, not memory: the pages of a mapping
+	 *                       are only brought in as they are read.
+	 */
+	public MappedFileCache(long maxMappedBytes) {
+		this.maxMappedBytes = maxMappedBytes;
+	}
+
+	/**
+	 * Gets the mapping of a file, mapping it if it is not already mapped or
+	 * if it has changed since it was mapped.  The caller must call release()
+	 * on the mapping when it is finished with it.
+	 *
+	 * @param file The file.  It must not be empty.
+	 * @return The mapping, which covers the whole file.
+	 * @throws IOException If the file can't be opened or mapped.
+	 */
+	public synchronized Mapping acquire(File file) throws IOException {
+		String path = file.getPath();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		Mapping mapping = mappings.get(path);
+		if (mapping != null && (mapping.length != length || mapping.lastModified != lastModified)) {
+			mappings.remove(path);
+			mapping.release();  // the cache's own reference
+			mapping = null;
+		}
+		if (mapping == null) {
+			mapping = new Mapping(path, length, lastModified, map(file, length));
+			mappings.put(path, mapping);
+			mappedBytes += length;
+			evict();
+		}
+		mapping.references++;
+		return mapping;
+	}
+
+	/**
+	 * Returns the total size of the files that are mapped, including ones
+	 * that are no longer in the cache but are still being sent.
+	 */
+	public synchronized long getMappedBytes() {
+		return mappedBytes;
+	}
+
+	/**
+	 * Drops the least recently used mappings until the total size is under
+	 * the limit.  A mapping that is still in use is unmapped later, when its
+	 * last user releases it.  The newest mapping is always kept.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String,Mapping>> iter = mappings.entrySet().iterator();
+		while (mappedBytes > maxMappedBytes && mappings.size() > 1) {
+			Mapping oldest = iter.next().getValue();
+			iter.remove();
+			oldest.release();
+		}
+	}
+
+	private static MappedByteBuffer[] map(File file, long length) throws IOException {
+		MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+			}
+		}
+		return segments;  // a mapping stays valid after its channel is closed
+	}
+
+	// Unmapping a buffer right away takes sun.misc.Unsafe.invokeCleaner(), from
+	// the jdk.unsupported module.  Without it, the garbage collector unmaps
+	// the buffer some time after the last reference to it is dropped.
+	private static Object unsafe;
+	private static Method cleaner;
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch (Exception e) {
+			cleaner = null;
+		}
+	}
+
+	private static void invokeCleaner(MappedByteBuffer buffer) {
+		if (cleaner == null)
+			return;
+		try {
+			cleaner.invoke(unsafe, buffer);
+		}
+		catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+}
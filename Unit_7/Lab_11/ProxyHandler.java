@@ -0,0 +1,584 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A RequestHandler that forwards requests to one or more upstream HTTP
+ * servers and relays their responses, so that SimpleWebServer can sit in
+ * front of a backend.  It is configured with a list of upstream servers,
+ * such as "127.0.0.1:8081, 127.0.0.1:8082", optionally preceded by the
+ * balancing policy, "round-robin" (the default) or "least-connections".
+ *
+ * <p>Connections to the upstream servers are kept open after a response and
+ * reused for later requests, so most requests don't pay for a TCP
+ * connection.  Bodies are streamed through a fixed buffer in both
+ * directions, and are never held in memory whole.  If the length of a
+ * response body is not known, it is passed on to an HTTP/1.1 client in
+ * chunked coding, so the client connection can still be kept open.</p>
+ *
+ * <p>Upstream servers are shared by all proxy handlers, so that a reload of
+ * the configuration keeps their pooled connections.  A background thread
+ * checks each server every few seconds, by connecting to it, or by sending
+ * a GET request for the path in the system property webserver.proxy.healthPath
+ * if it is set.  A server that fails a check, or that refuses a connection,
+ * gets no requests until it passes a check again.</p>
+ */
+public class ProxyHandler implements RequestHandler {
+
+	/**
+	 * Milliseconds allowed for connecting to an upstream server.
+	 */
+	private final static int CONNECT_TIMEOUT = 2000;
+
+	/**
+	 * Milliseconds to wait for an upstream server to send data, after which
+	 * the request fails with 504 Gateway Timeout.  Can be set with the system
+	 * property webserver.proxy.readTimeout.
+	 */
+	private final static int READ_TIMEOUT = Integer.getInteger("webserver.proxy.readTimeout", 30000);
+
+	/**
+	 * The largest number of idle connections that are kept for each upstream server.
+	 */
+	private final static int MAX_IDLE_CONNECTIONS = 32;
+
+	/**
+	 * Idle connections older than this many milliseconds are not reused,
+	 * since the upstream server has probably closed them.
+	 */
+	private final static long MAX_IDLE_TIME = 20000;
+
+	/**
+	 * Milliseconds between health checks.  Can be set with the system property
+	 * webserver.proxy.healthInterval.
+	 */
+	private final static long HEALTH_CHECK_INTERVAL = Long.getLong("webserver.proxy.healthInterval", 5000);
+
+	private final static String HEALTH_PATH = System.getProperty("webserver.proxy.healthPath");
+
+	/**
+	 * The longest status line or header line accepted from an upstream server,
+	 * and the largest number of header lines.
+	 */
+	private final static int MAX_LINE = 16384;
+	private final static int MAX_HEADERS = 200;
+
+	/**
+	 * Headers that apply to a single connection, which are not forwarded.
+	 */
+	private final static Set<String> HOP_BY_HOP_HEADERS = Set.of("connection", "keep-alive",
+			"proxy-connection", "te", "trailer", "transfer-encoding", "upgrade", "expect");
+
+	/**
+	 * All upstream servers, by "host:port".
+	 */
+	private final static Map<String,Upstream> upstreams = new ConcurrentHashMap<>();
+
+	private final Upstream[] targets;
+	private final boolean leastConnections;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Creates a proxy handler.
+	 *
+	 * @param spec The upstream servers, as "host:port" separated by commas or
+	 *             spaces, optionally preceded by "round-robin" or "least-connections".
+	 * @throws IllegalArgumentException If the spec can't be understood.
+	 */
+	public ProxyHandler(String spec) {
+		List<Upstream> list = new ArrayList<>();
+		boolean least = false;
+		for (String item : spec.trim().split("[,\\s]+")) {
+			if (item.equals("least-connections") && list.isEmpty())
+				least = true;
+			else if (item.equals("round-robin") && list.isEmpty())
+				least = false;
+			else
+				list.add(upstream(item));
+		}
+		if (list.isEmpty())
+			throw new IllegalArgumentException("No upstream servers in \"" + spec + "\"");
+		targets = list.toArray(new Upstream[0]);
+		leastConnections = least;
+	}
+
+	/**
+	 * Returns the shared Upstream for "host:port", creating it if needed.
+	 */
+	private static Upstream upstream(String hostAndPort) {
+		int colon = hostAndPort.lastIndexOf(':');
+		int port;
+		try {
+			port = Integer.parseInt(hostAndPort.substring(colon + 1));
+		}
+		catch (NumberFormatException e) {
+			port = -1;
+		}
+		if (colon <= 0 || port <= 0 || port > 65535)
+			throw new IllegalArgumentException("Bad upstream server \"" + hostAndPort + "\"");
+		String host = hostAndPort.substring(0, colon);
+		int finalPort = port;
+		HealthChecker.startOnce();
+		return upstreams.computeIfAbsent(host + ":" + port, name -> new Upstream(host, finalPort));
+	}
+
+	public String handle(HttpExchange exchange, String path) throws IOException {
+		Upstream upstream = choose();
+		if (upstream == null) {
+			SimpleWebServer.sendErrorResponse(503, exchange);
+			return "proxy";
+		}
+		upstream.active.incrementAndGet();
+		try {
+			forward(exchange, upstream);
+		}
+		finally {
+			upstream.active.decrementAndGet();
+		}
+		return "proxy";
+	}
+
+	/**
+	 * Picks a healthy upstream server, in turn or by the fewest requests in
+	 * progress.  Ties for the fewest go to the server that comes next in turn.
+	 *
+	 * @return The server, or null if none is healthy.
+	 */
+	private Upstream choose() {
+		int n = targets.length;
+		int start = Math.floorMod(next.getAndIncrement(), n);
+		Upstream best = null;
+		for (int i = 0; i < n; i++) {
+			Upstream candidate = targets[(start + i) % n];
+			if (!candidate.healthy)
+				continue;
+			if (!leastConnections)
+				return candidate;
+			if (best == null || candidate.active.get() < best.active.get())
+				best = candidate;
+		}
+		return best;
+	}
+
+	/**
+	 * Sends the request to an upstream server and relays the response.  If a
+	 * pooled connection turns out to have been closed by the server, a request
+	 * without a body is tried once more on a new connection.
+	 */
+	private void forward(HttpExchange exchange, Upstream upstream) throws IOException {
+		ResponseOutputStream clientOut = exchange.getOutput();
+		UpstreamConnection connection = null;
+		ResponseHead head = null;
+		for (int attempt = 0; head == null; attempt++) {
+			try {
+				connection = upstream.acquire();
+			}
+			catch (IOException e) {
+				if (e instanceof ConnectException || e instanceof SocketTimeoutException)
+					upstream.setHealthy(false);
+				SimpleWebServer.logMessage("ERROR: Cannot connect to upstream " + upstream.name + ": " + e);
+				SimpleWebServer.sendErrorResponse(502, exchange);
+				return;
+			}
+			try {
+				sendRequest(exchange, connection, upstream);
+				head = readResponseHead(connection.in);
+			}
+			catch (HttpRequestParser.BadRequestException e) {
+				// The problem is with the client's request body.
+				connection.close();
+				SimpleWebServer.sendErrorResponse(e.getStatusCode(), exchange);
+				return;
+			}
+			catch (IOException e) {
+				connection.close();
+				if (connection.reused && attempt == 0 && !exchange.hasBody())
+					continue;  // the pooled connection had gone stale
+				if (clientOut.getCount() > 0)
+					throw e;
+				SimpleWebServer.logMessage("ERROR: Request to upstream " + upstream.name + " failed: " + e);
+				SimpleWebServer.sendErrorResponse(e instanceof SocketTimeoutException ? 504 : 502, exchange);
+				return;
+			}
+		}
+
+		boolean reusable = false;
+		try {
+			reusable = relayResponse(exchange, connection, head);
+		}
+		finally {
+			if (reusable)
+				upstream.release(connection);
+			else
+				connection.close();
+		}
+	}
+
+	/**
+	 * Writes the request line, headers and body to the upstream server.
+	 */
+	private static void sendRequest(HttpExchange exchange, UpstreamConnection connection, Upstream upstream) throws IOException {
+		HttpRequest request = exchange.getRequest();
+		boolean chunked = request.getHeader("transfer-encoding") != null;
+		String connectionHeader = request.getHeader("connection");
+		StringBuilder head = new StringBuilder();
+		head.append(request.getMethod()).append(' ').append(Router.encodePath(exchange.getPath()));
+		if (exchange.getQuery() != null)
+			head.append('?').append(exchange.getQuery());
+		head.append(" HTTP/1.1\r\n");
+		String forwardedFor = null;
+		for (int i = 0; i < request.getHeaderCount(); i++) {
+			String name = request.getHeaderName(i);
+			if (HOP_BY_HOP_HEADERS.contains(name) || HttpExchange.hasToken(connectionHeader, name))
+				continue;
+			if (chunked && name == "content-length")
+				continue;  // Transfer-Encoding overrides it, and sending both invites request smuggling
+			if (name.equals("x-forwarded-for")) {
+				// Several lines are one list, in order.
+				forwardedFor = (forwardedFor == null) ? request.getValue(i) : forwardedFor + ", " + request.getValue(i);
+				continue;
+			}
+			if (name.equals("x-forwarded-proto"))
+				continue;  // only this server knows how the client reached it
+			head.append(name).append(": ").append(request.getValue(i)).append("\r\n");
+		}
+		if (request.getHeader("host") == null)
+			head.append("host: ").append(upstream.name).append("\r\n");
+		String client = exchange.getSocket().getInetAddress().getHostAddress();
+		head.append("x-forwarded-for: ").append(forwardedFor == null ? client : forwardedFor + ", " + client).append("\r\n");
+		head.append("x-forwarded-proto: ").append(exchange.getSocket() instanceof SSLSocket ? "https" : "http").append("\r\n");
+		if (chunked)
+			head.append("transfer-encoding: chunked\r\n");
+		head.append("\r\n");
+		connection.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (exchange.hasBody()) {
+			if (chunked) {
+				ChunkedOutputStream body = new ChunkedOutputStream(connection.out, 16384);
+				exchange.getBodyStream().transferTo(body);
+				body.close();  // sends the last chunk, without closing the connection
+			}
+			else {
+				exchange.getBodyStream().transferTo(connection.out);
+			}
+		}
+		connection.out.flush();
+	}
+
+	/**
+	 * Sends the response from the upstream server on to the client.
+	 *
+	 * @return true if the upstream connection can be used again.
+	 */
+	private static boolean relayResponse(HttpExchange exchange, UpstreamConnection connection,
+			ResponseHead head) throws IOException {
+		HttpRequest request = exchange.getRequest();
+		boolean noBody = request.getMethod() == "HEAD" || head.status == 204 || head.status == 304;
+		String transferEncoding = head.get("transfer-encoding");
+		String contentLength = head.get("content-length");
+		long length;  // -1 for chunked, -2 for a body that ends when the connection closes
+		if (noBody)
+			length = 0;
+		else if (transferEncoding != null)
+			length = -1;
+		else if (contentLength != null)
+			length = parseLength(contentLength);
+		else
+			length = -2;
+		String upstreamConnection = head.get("connection");
+		boolean reusable = length != -2 && !HttpExchange.hasToken(upstreamConnection, "close")
+				&& (head.version.equals("HTTP/1.1") || HttpExchange.hasToken(upstreamConnection, "keep-alive"));
+
+		// A body of unknown length is re-sent in chunks to an HTTP/1.1 client.
+		// An HTTP/1.0 client can only tell where it ends by the connection closing.
+		boolean clientChunked = length < 0 && exchange.getVersion() == "HTTP/1.1";
+		if (length < 0 && !clientChunked)
+			exchange.closeAfterResponse();
+
+		StringBuilder out = new StringBuilder();
+		out.append(exchange.getVersion()).append(' ').append(head.status).append(' ').append(head.reason).append("\r\n");
+		out.append(exchange.connectionHeader());
+		for (String[] header : head.headers) {
+			String name = header[0].toLowerCase(Locale.ROOT);
+			if (HOP_BY_HOP_HEADERS.contains(name) || HttpExchange.hasToken(upstreamConnection, name))
+				continue;
+			if (length < 0 && name.equals("content-length"))
+				continue;
+			out.append(header[0]).append(": ").append(header[1]).append("\r\n");
+		}
+		if (clientChunked)
+			out.append("Transfer-Encoding: chunked\r\n");
+		out.append("\r\n");
+		ResponseOutputStream clientOut = exchange.getOutput();
+		clientOut.write(out.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+		if (length != 0) {
+			InputStream from = (length == -1) ? new ChunkedInputStream(connection.in) : connection.in;
+			OutputStream to = clientChunked ? new ChunkedOutputStream(clientOut, 16384) : clientOut;
+			byte[] buffer = connection.buffer;
+			long remaining = (length > 0) ? length : Long.MAX_VALUE;
+			while (remaining > 0) {
+				int count = from.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (count < 0) {
+					if (length > 0)
+						throw new EOFException("Upstream closed the connection in the middle of a response");
+					break;
+				}
+				to.write(buffer, 0, count);
+				remaining -= count;
+				if (from.available() == 0)
+					to.flush();  // don't hold back data that the upstream server is trickling out
+			}
+			if (clientChunked)
+				to.close();
+		}
+		clientOut.flush();
+		return reusable;
+	}
+
+	private static long parseLength(String value) throws IOException {
+		try {
+			long length = Long.parseLong(value.trim());
+			if (length >= 0)
+				return length;
+		}
+		catch (NumberFormatException e) {
+		}
+		throw new IOException("Bad Content-Length from upstream: " + value);
+	}
+
+	/**
+	 * The status line and headers of a response from an upstream server.
+	 */
+	private static class ResponseHead {
+		String version;
+		int status;
+		String reason;
+		List<String[]> headers = new ArrayList<>();
+
+		/**
+		 * Returns the value of a header, or null.  Repeated headers are joined
+		 * with commas.
+		 */
+		String get(String name) {
+			String value = null;
+			for (String[] header : headers) {
+				if (header[0].equalsIgnoreCase(name))
+					value = (value == null) ? header[1] : value + ", " + header[1];
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Reads the status line and headers of a response.  Interim (1xx)
+	 * responses are skipped.
+	 */
+	private static ResponseHead readResponseHead(InputStream in) throws IOException {
+		while (true) {
+			ResponseHead head = new ResponseHead();
+			String statusLine = readLine(in);
+			String[] parts = statusLine.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/1.") || parts[1].length() != 3)
+				throw new IOException("Bad status line from upstream: " + statusLine);
+			head.version = parts[0];
+			try {
+				head.status = Integer.parseInt(parts[1]);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Bad status line from upstream: " + statusLine);
+			}
+			head.reason = parts.length > 2 ? parts[2] : "";
+			while (true) {
+				String line = readLine(in);
+				if (line.isEmpty())
+					break;
+				int colon = line.indexOf(':');
+				if (colon <= 0 || head.headers.size() == MAX_HEADERS)
+					throw new IOException("Bad header from upstream: " + line);
+				head.headers.add(new String[] { line.substring(0, colon).trim(), line.substring(colon + 1).trim() });
+			}
+			if (head.status == 101)
+				throw new IOException("Upstream tried to switch protocols");
+			if (head.status >= 200)
+				return head;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("Upstream closed the connection");
+			if (b == '\n')
+				break;
+			if (line.length() == MAX_LINE)
+				throw new IOException("Line from upstream too long");
+			line.append((char) b);
+		}
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r')
+			line.setLength(length - 1);
+		return line.toString();
+	}
+
+	/**
+	 * An upstream server, with its pool of idle connections.
+	 */
+	private static class Upstream {
+		final String host;
+		final int port;
+		final String name;
+		volatile boolean healthy = true;
+		final AtomicInteger active = new AtomicInteger();
+		// Most recently used first, so that the connections in use stay warm
+		// and the others age out.
+		final Deque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+
+		Upstream(String host, int port) {
+			this.host = host;
+			this.port = port;
+			this.name = host + ":" + port;
+		}
+
+		/**
+		 * Returns a pooled connection if there is a fresh one, or a new connection.
+		 */
+		UpstreamConnection acquire() throws IOException {
+			UpstreamConnection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (System.currentTimeMillis() - connection.lastUsed < MAX_IDLE_TIME) {
+					connection.reused = true;
+					return connection;
+				}
+				connection.close();
+			}
+			return new UpstreamConnection(this);
+		}
+
+		void release(UpstreamConnection connection) {
+			connection.lastUsed = System.currentTimeMillis();
+			idle.addFirst(connection);
+			if (idle.size() > MAX_IDLE_CONNECTIONS) {
+				UpstreamConnection oldest = idle.pollLast();
+				if (oldest != null)
+					oldest.close();
+			}
+		}
+
+		void setHealthy(boolean healthy) {
+			if (this.healthy != healthy)
+				System.out.println("Upstream server " + name + " is " + (healthy ? "up" : "down"));
+			this.healthy = healthy;
+		}
+	}
+
+	/**
+	 * A connection to an upstream server, with buffered streams and a buffer
+	 * for copying bodies.
+	 */
+	private static class UpstreamConnection {
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		final byte[] buffer = new byte[16384];
+		long lastUsed;
+		boolean reused;  // true if it has been taken from the pool
+
+		UpstreamConnection(Upstream upstream) throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(upstream.host, upstream.port), CONNECT_TIMEOUT);
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(READ_TIMEOUT);
+				in = new BufferedInputStream(socket.getInputStream(), 16384);
+				out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+			}
+			catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * The thread that checks the health of all upstream servers.
+	 */
+	private static class HealthChecker extends Thread {
+		private static HealthChecker instance;
+
+		static synchronized void startOnce() {
+			if (instance == null) {
+				instance = new HealthChecker();
+				instance.setDaemon(true);
+				instance.start();
+			}
+		}
+
+		private HealthChecker() {
+			super("Upstream health checker");
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(HEALTH_CHECK_INTERVAL);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				for (Upstream upstream : upstreams.values())
+					upstream.setHealthy(check(upstream));
+			}
+		}
+
+		/**
+		 * Connects to a server and, if a health path is configured, requests
+		 * it and expects a 2xx or 3xx status.
+		 */
+		private static boolean check(Upstream upstream) {
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress(upstream.host, upstream.port), CONNECT_TIMEOUT);
+				if (HEALTH_PATH == null)
+					return true;
+				socket.setSoTimeout(CONNECT_TIMEOUT);
+				OutputStream out = socket.getOutputStream();
+				out.write(("GET " + HEALTH_PATH + " HTTP/1.1\r\nHost: " + upstream.name
+						+ "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+				int status = readResponseHead(new BufferedInputStream(socket.getInputStream())).status;
+				return status >= 200 && status < 400;
+			}
+			catch (IOException e) {
+				return false;
+			}
+		}
+	}
+}
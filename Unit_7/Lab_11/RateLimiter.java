@@ -0,0 +1,151 @@
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the rate of requests from each client address with a token bucket.
+ * Each client's bucket holds up to a burst of tokens and is refilled at a
+ * steady rate; every request takes one token, and a request that finds the
+ * bucket empty is refused.  A client that stays within the rate never
+ * notices the limit, while one that floods the server is held to the rate
+ * no matter how many connections it opens.
+ *
+ * <p>Buckets are created when a client first shows up.  Buckets that have
+ * filled up again, because their clients have gone quiet, are thrown away
+ * whenever the number of buckets grows past MAX_CLIENTS, so the map can't
+ * grow without bound.</p>
+ */
+public class RateLimiter {
+
+	/**
+	 * When there are more buckets than this, full buckets are removed.
+	 */
+	private final static int MAX_CLIENTS = 10000;
+
+	/**
+	 * The token bucket for one client.  Tokens are counted in fractions, and
+	 * the refill is computed from the time of the last refill when the bucket
+	 * is used, rather than by a timer.
+	 */
+	private static class Bucket {
+		double tokens;
+		long lastRefill;  // System.nanoTime() of the last refill
+	}
+
+	private final double ratePerNano;
+	private final double burst;
+	private final Map<InetAddress,Bucket> buckets = new ConcurrentHashMap<>();
+	private volatile long lastSweep = System.nanoTime();
+
+	/**
+	 * Creates a rate limiter.
+	 *
+	 * @param requestsPerSecond The steady rate allowed for each client, or 0
+	 *                          or less for no limit.
+	 * @param burst             The number of requests that a client that has
+	 *                          been quiet can make at once.
+	 */
+	public RateLimiter(double requestsPerSecond, int burst) {
+		this.ratePerNano = requestsPerSecond / 1e9;
+		this.burst = Math.max(1, burst);
+	}
+
+	/**
+	 * Takes a token for one request from a client.
+	 *
+	 * @param client The address of the client.
+	 * @return true if the request is allowed, false if the client is over
+	 *         its limit.
+	 */
+	public boolean tryAcquire(InetAddress client) {
+		if (ratePerNano <= 0)
+			return true;
+		Bucket bucket = getBucket(client);
+		synchronized (bucket) {
+			refill(bucket, System.nanoTime());
+			if (bucket.tokens < 1)
+				return false;
+			bucket.tokens -= 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Tells whether a client is currently out of tokens, without taking one.
+	 * This is used to turn away new connections from a client that could not
+	 * make a request on them anyway.
+	 */
+	public boolean isLimited(InetAddress client) {
+		Bucket bucket = buckets.get(client);
+		if (bucket == null)
+			return false;
+		synchronized (bucket) {
+			refill(bucket, System.nanoTime());
+			return bucket.tokens < 1;
+		}
+	}
+
+	/**
+	 * Returns the number of seconds until a client will have a token again,
+	 * rounded up, for the Retry-After header.
+	 */
+	public int secondsUntilAvailable(InetAddress client) {
+		Bucket bucket = buckets.get(client);
+		if (bucket == null)
+			return 0;
+		synchronized (bucket) {
+			double missing = 1 - bucket.tokens;
+			if (missing <= 0)
+				return 0;
+			return (int) Math.ceil(missing / ratePerNano / 1e9);
+		}
+	}
+
+	/**
+	 * Returns the number of clients that have buckets.
+	 */
+	public int getClientCount() {
+		return buckets.size();
+	}
+
+	private Bucket getBucket(InetAddress client) {
+		Bucket bucket = buckets.get(client);
+		if (bucket != null)
+			return bucket;
+		if (buckets.size() >= MAX_CLIENTS)
+			sweep();
+		return buckets.computeIfAbsent(client, c -> {
+			Bucket b = new Bucket();
+			b.tokens = burst;
+			b.lastRefill = System.nanoTime();
+			return b;
+		});
+	}
+
+	private void refill(Bucket bucket, long now) {
+		bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) * ratePerNano);
+		bucket.lastRefill = now;
+	}
+
+	/**
+	 * Removes the buckets that are full, since they are the same as a new
+	 * bucket.  Runs at most once a second, so that a flood of new addresses
+	 * doesn't turn every request into a sweep.
+	 */
+	private void sweep() {
+		long now = System.nanoTime();
+		if (now - lastSweep < 1_000_000_000L)
+			return;
+		lastSweep = now;
+		Iterator<Bucket> iter = buckets.values().iterator();
+		while (iter.hasNext()) {
+			Bucket bucket = iter.next();
+			synchronized (bucket) {
+				refill(bucket, now);
+				if (bucket.tokens >= burst)
+					iter.remove();
+			}
+		}
+	}
+}
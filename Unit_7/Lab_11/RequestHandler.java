@@ -0,0 +1,29 @@
+import java.io.IOException;
+
+/**
+ * Something that can answer requests for the paths under a prefix, such as
+ * a directory of static files or a page that is generated by the server.
+ * Handlers are attached to prefixes by a Router.  A handler can be used by
+ * many connection threads at once.
+ *
+ * <p>A handler that is named in the server's configuration file (see
+ * ServerConfig) must be a public class with a public no-argument constructor.</p>
+ */
+public interface RequestHandler {
+
+	/**
+	 * Answers one request by writing a complete response to the exchange's
+	 * output stream.  The response must announce the connection's fate with
+	 * exchange.connectionHeader(), and must have a Content-Length or use
+	 * chunked coding if the connection is to be kept open.
+	 *
+	 * @param exchange The request and the connection that it came on.
+	 * @param path     The canonical request path, after the prefix that the
+	 *                 handler is attached to.  It always starts with "/".
+	 * @return The kind of request, used to label the server's metrics, such
+	 *         as "file" or "error".
+	 * @throws IOException If an I/O error occurs.  If no response has been
+	 *                     sent yet, the server sends a 500 response.
+	 */
+	String handle(HttpExchange exchange, String path) throws IOException;
+}
@@ -0,0 +1,93 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream for sending responses to a client, which counts the bytes
+ * that pass through it and picks the status code out of the status line of
+ * the response, so that they can be logged.  Since every response starts
+ * with a status line such as "HTTP/1.1 200 OK", the methods that send
+ * responses don't have to report what they sent.
+ */
+public class ResponseOutputStream extends FilterOutputStream {
+
+	private long count;     // Bytes written since the last call to reset().
+	private long firstByteTime;  // System.nanoTime() of the first of them.
+	private int status;     // Status code, once it has been seen.
+	private int digits;     // Number of status code digits seen so far.
+	private int spaces;     // Number of spaces seen so far in the status line.
+
+	public ResponseOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	public void write(int b) throws IOException {
+		if (count == 0)
+			firstByteTime = System.nanoTime();
+		out.write(b);
+		watch((byte) b);
+		count++;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (count == 0 && len > 0)
+			firstByteTime = System.nanoTime();
+		out.write(b, off, len);
+		for (int i = 0; i < len && digits < 3; i++)
+			watch(b[off + i]);
+		count += len;
+	}
+
+	/**
+	 * Looks for the three digits of the status code, which come after the
+	 * first space of the response.
+	 */
+	private void watch(byte b) {
+		if (digits == 3)
+			return;
+		if (spaces == 0) {
+			if (b == ' ')
+				spaces = 1;
+		}
+		else if (b >= '0' && b <= '9') {
+			status = status * 10 + (b - '0');
+			digits++;
+		}
+		else {
+			digits = 3;  // not a status line after all
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written since the stream was created or reset.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the System.nanoTime() at which the first byte since the stream
+	 * was created or reset was written, or 0 if none has been.
+	 */
+	public long getFirstByteTime() {
+		return count == 0 ? 0 : firstByteTime;
+	}
+
+	/**
+	 * Returns the status code of the response, or 0 if no complete status
+	 * line has been written.
+	 */
+	public int getStatus() {
+		return (digits == 3 && status >= 100) ? status : 0;
+	}
+
+	/**
+	 * Starts counting for a new response.
+	 */
+	public void reset() {
+		count = 0;
+		status = 0;
+		digits = 0;
+		spaces = 0;
+	}
+}
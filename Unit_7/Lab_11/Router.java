@@ -0,0 +1,244 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which RequestHandler answers a request, from the host name and
+ * the path of the request.  Routes are given as a host name (or ANY_HOST)
+ * and a path prefix, and are compiled into a trie for each host, with one
+ * level per path segment.  Finding the handler for a request takes one
+ * hash lookup for the host and one per segment of the path, so its cost
+ * depends on the length of the path and not on the number of routes.  The
+ * longest matching prefix wins, whether its route is for the request's host
+ * or for ANY_HOST, so a host's "/" route doesn't hide a route for a longer
+ * prefix on every host; for prefixes of the same length, the host's own
+ * route wins.
+ *
+ * <p>Prefixes match whole segments: "/docs" matches "/docs" and "/docs/a",
+ * but not "/docsets".</p>
+ *
+ * <p>Routes are added while the router is being set up.  After that, the
+ * router is only read, so it can be shared by all connection threads; a
+ * new configuration gets a new router.</p>
+ */
+public class Router {
+
+	/**
+	 * The host name for routes that apply to every host.
+	 */
+	public final static String ANY_HOST = "*";
+
+	/**
+	 * The handler for a request, and the part of the path after its prefix.
+	 */
+	public static class Match {
+		public final RequestHandler handler;
+		public final String path;
+		Match(RequestHandler handler, String path) {
+			this.handler = handler;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * A node of the trie, standing for the path made of the segments on the
+	 * way to it from the root.
+	 */
+	private static class Node {
+		final Map<String,Node> children = new HashMap<>();
+		RequestHandler handler;  // null if no route ends here
+		int prefixLength;        // length of the prefix that the route was given for
+	}
+
+	private final Map<String,Node> hosts = new HashMap<>();
+
+	/**
+	 * Adds a route.  A route for the same host and prefix as an earlier one
+	 * replaces it.
+	 *
+	 * @param host    The host name, or ANY_HOST.  Case does not matter.
+	 * @param prefix  The path prefix, such as "/" or "/docs".
+	 * @param handler The handler for requests under the prefix.
+	 * @throws IllegalArgumentException If the prefix is not a valid path.
+	 */
+	public void addRoute(String host, String prefix, RequestHandler handler) {
+		prefix = canonicalize(prefix);
+		if (prefix.length() > 1 && prefix.endsWith("/"))
+			prefix = prefix.substring(0, prefix.length() - 1);
+		Node node = hosts.computeIfAbsent(host.toLowerCase(Locale.ROOT), h -> new Node());
+		int start = 1;
+		while (start < prefix.length()) {
+			int end = prefix.indexOf('/', start);
+			if (end < 0)
+				end = prefix.length();
+			node = node.children.computeIfAbsent(prefix.substring(start, end), s -> new Node());
+			start = end + 1;
+		}
+		node.handler = handler;
+		node.prefixLength = (prefix.length() == 1) ? 0 : prefix.length();
+	}
+
+	/**
+	 * Finds the handler for a request.
+	 *
+	 * @param host The host name from the request, as returned by hostName().
+	 * @param path The canonical path of the request, from canonicalize().
+	 * @return The handler and the rest of the path, or null if no route matches.
+	 */
+	public Match route(String host, String path) {
+		Node best = lookup(hosts.get(host), path);
+		if (!host.equals(ANY_HOST)) {
+			Node any = lookup(hosts.get(ANY_HOST), path);
+			if (any != null && (best == null || any.prefixLength > best.prefixLength))
+				best = any;
+		}
+		if (best == null)
+			return null;
+		String rest = path.substring(best.prefixLength);
+		return new Match(best.handler, rest.isEmpty() ? "/" : rest);
+	}
+
+	/**
+	 * Walks down the trie along the segments of the path, and returns the
+	 * deepest node that has a handler, or null if there is none (or no trie).
+	 */
+	private static Node lookup(Node node, String path) {
+		if (node == null)
+			return null;
+		Node best = node.handler != null ? node : null;
+		int start = 1;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			node = node.children.get(path.substring(start, end));
+			if (node == null)
+				break;
+			if (node.handler != null)
+				best = node;
+			start = end + 1;
+		}
+		return best;
+	}
+
+	/**
+	 * Gets the host name from the value of a Host header, in lower case and
+	 * without the port.
+	 *
+	 * @param hostHeader The header value, or null.
+	 * @return The host name, or ANY_HOST if there is no header.
+	 */
+	public static String hostName(String hostHeader) {
+		if (hostHeader == null || hostHeader.isEmpty())
+			return ANY_HOST;
+		String host = hostHeader.trim().toLowerCase(Locale.ROOT);
+		if (host.startsWith("[")) {
+			int close = host.indexOf(']');  // an IPv6 address
+			return close < 0 ? host : host.substring(0, close + 1);
+		}
+		int colon = host.lastIndexOf(':');
+		return colon < 0 ? host : host.substring(0, colon);
+	}
+
+	/**
+	 * Puts the path of a request into canonical form: %-escapes are decoded,
+	 * empty and "." segments are dropped, and ".." segments remove the
+	 * segment before them.  A trailing slash is kept, since it matters for
+	 * directories.  The result always starts with "/" and never contains a
+	 * ".." segment, so it can't name anything outside the directory that it
+	 * is resolved against.
+	 *
+	 * @param rawPath The path from the request line, without the query string.
+	 * @return The canonical path.
+	 * @throws IllegalArgumentException If the path doesn't start with "/",
+	 *         has a bad %-escape, contains an encoded "/" or "\" or a NUL
+	 *         character, or climbs above the root with "..".
+	 */
+	public static String canonicalize(String rawPath) {
+		if (rawPath.isEmpty() || rawPath.charAt(0) != '/')
+			throw new IllegalArgumentException("Path does not start with /");
+		if (rawPath.indexOf('%') < 0 && rawPath.indexOf('\\') < 0
+				&& !rawPath.contains("//") && !rawPath.contains("/."))
+			return rawPath;  // already canonical, which is the common case
+		List<String> segments = new ArrayList<>();
+		boolean trailingSlash = rawPath.endsWith("/");
+		int start = 1;
+		while (start <= rawPath.length()) {
+			int end = rawPath.indexOf('/', start);
+			if (end < 0)
+				end = rawPath.length();
+			String segment = decode(rawPath, start, end);
+			if (segment.equals("..")) {
+				if (segments.isEmpty())
+					throw new IllegalArgumentException("Path leads outside the root");
+				segments.remove(segments.size() - 1);
+			}
+			else if (!segment.isEmpty() && !segment.equals(".")) {
+				segments.add(segment);
+			}
+			if (end == rawPath.length())
+				trailingSlash = trailingSlash || segment.equals(".") || segment.equals("..");
+			start = end + 1;
+		}
+		if (segments.isEmpty())
+			return "/";
+		StringBuilder path = new StringBuilder();
+		for (String segment : segments)
+			path.append('/').append(segment);
+		if (trailingSlash)
+			path.append('/');
+		return path.toString();
+	}
+
+	/**
+	 * Decodes the %-escapes in one segment of a path.
+	 */
+	private static String decode(String path, int start, int end) {
+		String segment;
+		if (path.indexOf('%', start) < 0 || path.indexOf('%', start) >= end) {
+			segment = path.substring(start, end);
+		}
+		else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (int i = start; i < end; i++) {
+				char c = path.charAt(i);
+				if (c != '%') {
+					bytes.write(c);  // the parser only lets ASCII into the request line
+					continue;
+				}
+				int high = (i + 2 < end) ? Character.digit(path.charAt(i + 1), 16) : -1;
+				int low = (i + 2 < end) ? Character.digit(path.charAt(i + 2), 16) : -1;
+				if (high < 0 || low < 0)
+					throw new IllegalArgumentException("Bad %-escape in path");
+				bytes.write(high * 16 + low);
+				i += 2;
+			}
+			segment = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		}
+		if (segment.indexOf('/') >= 0 || segment.indexOf('\\') >= 0 || segment.indexOf('\0') >= 0)
+			throw new IllegalArgumentException("Forbidden character in path");
+		return segment;
+	}
+
+	/**
+	 * %-encodes a canonical path for use in a URL, such as in a Location
+	 * header.  Slashes are left alone.
+	 */
+	public static String encodePath(String path) {
+		StringBuilder out = new StringBuilder();
+		for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xFF);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '/' || c == '-' || c == '.' || c == '_' || c == '~')
+				out.append(c);
+			else
+				out.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+					.append(Character.toUpperCase(Character.forDigit(c & 15, 16)));
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * The configuration of SimpleWebServer: the ports to listen on, the root
+ * directory for each port, and a few settings for the listeners.  It is read
+ * from a properties file such as
+ *
+ * <pre>
+ * # Ports to listen on, separated by commas or spaces.
+ * listen = 50505, 8080
+ * # The root directory for all ports, and a different one for port 8080.
+ * # This also applies to the HTTPS port, so root.50443 sets its root.
+ * root = /var/www
+ * root.8080 = /srv/files
+ * # Threads accepting connections on each port.
+ * acceptThreads = 2
+ * # Milliseconds to wait for open connections to finish when shutting down.
+ * shutdownTimeout = 30000
+ * # Routes, as route.HOST/PREFIX = directory for static files,
+ * # handler.HOST/PREFIX = the name of a class that implements RequestHandler,
+ * # or proxy.HOST/PREFIX = upstream servers for a ProxyHandler.
+ * # A HOST of * matches any host.  The root directory of a port is used
+ * # for the paths that no route matches.
+ * route.*&#47;docs = /usr/share/doc
+ * route.example.com/ = /srv/example
+ * handler.*&#47;hello = HelloHandler
+ * proxy.*&#47;api = least-connections 127.0.0.1:8081, 127.0.0.1:8082
+ * </pre>
+ *
+ * <p>A ServerConfig is immutable.  When the file changes, the server loads a
+ * new one and compares it with the old.</p>
+ */
+public class ServerConfig {
+
+	/**
+	 * One route from the configuration file.
+	 */
+	public static class Route {
+
+		/**
+		 * The kinds of route, which are also the prefixes of their keys in
+		 * the file.
+		 */
+		public final static String STATIC = "route", HANDLER = "handler", PROXY = "proxy";
+
+		private final String kind;
+		private final String host;
+		private final String prefix;
+		private final String target;
+
+		Route(String kind, String host, String prefix, String target) {
+			this.kind = kind;
+			this.host = host;
+			this.prefix = prefix;
+			this.target = target;
+		}
+
+		/**
+		 * Returns STATIC, HANDLER or PROXY.
+		 */
+		public String getKind() {
+			return kind;
+		}
+
+		/**
+		 * Returns the host name, or Router.ANY_HOST.
+		 */
+		public String getHost() {
+			return host;
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+
+		/**
+		 * Returns the directory, the handler class name, or the upstream servers.
+		 */
+		public String getTarget() {
+			return target;
+		}
+	}
+
+	private final Map<Integer,String> roots;  // Root directory for each port, in the order given.
+	private final Map<Integer,String> portRoots;  // Every root.PORT in the file, listened on or not.
+	private final String defaultRoot;
+	private final List<Route> routes;
+	private final int acceptThreads;
+	private final long shutdownTimeout;
+
+	private ServerConfig(Map<Integer,String> roots, Map<Integer,String> portRoots, String defaultRoot,
+			List<Route> routes, int acceptThreads, long shutdownTimeout) {
+		this.roots = Collections.unmodifiableMap(roots);
+		this.portRoots = Collections.unmodifiableMap(portRoots);
+		this.defaultRoot = defaultRoot;
+		this.routes = Collections.unmodifiableList(routes);
+		this.acceptThreads = acceptThreads;
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * Returns the configuration used when there is no configuration file: a
+	 * single port, one accept thread, and a 30 second shutdown timeout.
+	 */
+	public static ServerConfig defaults(int port, String root) {
+		Map<Integer,String> roots = new LinkedHashMap<>();
+		roots.put(port, root);
+		return new ServerConfig(roots, new LinkedHashMap<>(), root, new ArrayList<>(), 1, 30000);
+	}
+
+	/**
+	 * Reads a configuration file.
+	 *
+	 * @param file The properties file.
+	 * @return The configuration.
+	 * @throws IOException If the file can't be read, or if it contains a bad
+	 *                     value.  The message describes the problem.
+	 */
+	public static ServerConfig load(Path file) throws IOException {
+		Properties properties = new Properties();
+		try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			properties.load(in);
+		}
+		String listen = properties.getProperty("listen", "").trim();
+		if (listen.isEmpty())
+			throw new IOException(file + ": no ports given in \"listen\"");
+		String defaultRoot = properties.getProperty("root", "");
+		Map<Integer,String> roots = new LinkedHashMap<>();
+		for (String item : listen.split("[,\\s]+")) {
+			int port = parseInt(file, "listen", item, 1, 65535);
+			roots.put(port, properties.getProperty("root." + port, defaultRoot));
+		}
+		Map<Integer,String> portRoots = new LinkedHashMap<>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("root.")) {
+				int port = parseInt(file, key, key.substring(5), 1, 65535);
+				portRoots.put(port, properties.getProperty(key));
+			}
+		}
+		List<Route> routes = new ArrayList<>();
+		for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+			String kind = key.substring(0, Math.max(key.indexOf('.'), 0));
+			if (!kind.equals(Route.STATIC) && !kind.equals(Route.HANDLER) && !kind.equals(Route.PROXY))
+				continue;
+			String hostAndPrefix = key.substring(kind.length() + 1);
+			int slash = hostAndPrefix.indexOf('/');
+			String target = properties.getProperty(key).trim();
+			if (slash <= 0 || target.isEmpty())
+				throw new IOException(file + ": bad route: " + key);
+			String prefix = hostAndPrefix.substring(slash);
+			try {
+				Router.canonicalize(prefix);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IOException(file + ": bad path in route " + key + ": " + e.getMessage());
+			}
+			routes.add(new Route(kind, hostAndPrefix.substring(0, slash), prefix, target));
+		}
+		int acceptThreads = parseInt(file, "acceptThreads",
+				properties.getProperty("acceptThreads", "1"), 1, 64);
+		long shutdownTimeout = parseInt(file, "shutdownTimeout",
+				properties.getProperty("shutdownTimeout", "30000"), 0, Integer.MAX_VALUE);
+		return new ServerConfig(roots, portRoots, defaultRoot, routes, acceptThreads, shutdownTimeout);
+	}
+
+	private static int parseInt(Path file, String name, String value, int min, int max) throws IOException {
+		try {
+			int n = Integer.parseInt(value.trim());
+			if (n >= min && n <= max)
+				return n;
+		}
+		catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IOException(file + ": bad value for " + name + ": \"" + value + "\"");
+	}
+
+	/**
+	 * Returns the ports to listen on, each mapped to its root directory.
+	 */
+	public Map<Integer,String> getRoots() {
+		return roots;
+	}
+
+	/**
+	 * Returns the root directory for a port, which need not be one of the
+	 * ports in "listen": its root.PORT, or else the default root.  This is
+	 * how the HTTPS listener finds its root.
+	 */
+	public String getRoot(int port) {
+		String root = roots.get(port);
+		if (root == null)
+			root = portRoots.get(port);
+		return root != null ? root : defaultRoot;
+	}
+
+	/**
+	 * Returns the routes, which apply to all the ports.
+	 */
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	/**
+	 * Returns the number of threads that accept connections on each port.
+	 */
+	public int getAcceptThreads() {
+		return acceptThreads;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait for open connections when
+	 * the server shuts down.
+	 */
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+}
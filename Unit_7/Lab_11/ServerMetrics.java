@@ -0,0 +1,129 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for SimpleWebServer, which can be written
+ * out in the Prometheus text exposition format.  All the methods can be
+ * called by any number of connection threads at the same time.
+ */
+public class ServerMetrics {
+
+	/**
+	 * The percentiles that are reported for each latency histogram.
+	 */
+	private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final Map<String,LatencyHistogram> latencies = new ConcurrentHashMap<>();
+	private final Map<String,LongAdder> responses = new ConcurrentHashMap<>();  // Keyed by "route code".
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder connections = new LongAdder();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final LongAdder errors = new LongAdder();
+	private final Map<String,LongAdder> rejections = new ConcurrentHashMap<>();  // Keyed by reason.
+
+	/**
+	 * Records that a connection has been accepted.  Must be matched by a call
+	 * to connectionClosed().
+	 */
+	public void connectionOpened() {
+		connections.increment();
+		activeConnections.incrementAndGet();
+	}
+
+	/**
+	 * Records that a connection has been closed.
+	 */
+	public void connectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of connections that are currently open.
+	 */
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * Records a request that has been handled.
+	 *
+	 * @param route  The kind of request, such as "file" or "listing".
+	 * @param status The status code of the response, or 0 if none was sent.
+	 * @param bytes  The number of bytes sent.
+	 * @param micros The time taken to handle the request, in microseconds.
+	 */
+	public void requestCompleted(String route, int status, long bytes, long micros) {
+		latencies.computeIfAbsent(route, r -> new LatencyHistogram()).record(micros);
+		responses.computeIfAbsent(route + " " + status, k -> new LongAdder()).increment();
+		bytesSent.add(bytes);
+	}
+
+	/**
+	 * Records an exception that occurred while handling a connection.
+	 */
+	public void errorOccurred() {
+		errors.increment();
+	}
+
+	/**
+	 * Records a request or connection that was refused by admission control.
+	 *
+	 * @param reason The limit that was hit, such as "rate" or "concurrency".
+	 */
+	public void requestRejected(String reason) {
+		rejections.computeIfAbsent(reason, r -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Writes all the metrics in the Prometheus text format.
+	 *
+	 * @param droppedLogEntries The number of access log entries that were dropped.
+	 * @return The text.
+	 */
+	public String toPrometheusText(long droppedLogEntries) {
+		StringBuilder out = new StringBuilder();
+		out.append("# HELP webserver_request_duration_seconds Time taken to handle a request.\n");
+		out.append("# TYPE webserver_request_duration_seconds summary\n");
+		for (Map.Entry<String,LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+			String route = entry.getKey();
+			LatencyHistogram histogram = entry.getValue();
+			for (double q : QUANTILES) {
+				out.append("webserver_request_duration_seconds{route=\"").append(route)
+					.append("\",quantile=\"").append(q).append("\"} ")
+					.append(histogram.getValueAtPercentile(q * 100) / 1e6).append('\n');
+			}
+			out.append("webserver_request_duration_seconds_sum{route=\"").append(route).append("\"} ")
+				.append(histogram.getSum() / 1e6).append('\n');
+			out.append("webserver_request_duration_seconds_count{route=\"").append(route).append("\"} ")
+				.append(histogram.getCount()).append('\n');
+		}
+		out.append("# HELP webserver_responses_total Responses sent, by route and status code.\n");
+		out.append("# TYPE webserver_responses_total counter\n");
+		for (Map.Entry<String,LongAdder> entry : new TreeMap<>(responses).entrySet()) {
+			String[] key = entry.getKey().split(" ");
+			out.append("webserver_responses_total{route=\"").append(key[0]).append("\",code=\"")
+				.append(key[1]).append("\"} ").append(entry.getValue().sum()).append('\n');
+		}
+		out.append("# HELP webserver_rejected_total Requests and connections refused, by the limit that was hit.\n");
+		out.append("# TYPE webserver_rejected_total counter\n");
+		for (Map.Entry<String,LongAdder> entry : new TreeMap<>(rejections).entrySet()) {
+			out.append("webserver_rejected_total{reason=\"").append(entry.getKey()).append("\"} ")
+				.append(entry.getValue().sum()).append('\n');
+		}
+		appendMetric(out, "webserver_sent_bytes_total", "counter", "Bytes sent to clients.", bytesSent.sum());
+		appendMetric(out, "webserver_connections_total", "counter", "Connections accepted.", connections.sum());
+		appendMetric(out, "webserver_active_connections", "gauge", "Connections currently open.", activeConnections.get());
+		appendMetric(out, "webserver_errors_total", "counter", "Exceptions while handling connections.", errors.sum());
+		appendMetric(out, "webserver_access_log_dropped_total", "counter", "Access log entries dropped.", droppedLogEntries);
+		return out.toString();
+	}
+
+	static void appendMetric(StringBuilder out, String name, String type, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+}
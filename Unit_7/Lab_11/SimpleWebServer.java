@@ -6,11 +6,37 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Scanner;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
 
 
 /**
@@ -21,49 +47,519 @@ import java.util.Scanner;
 public class SimpleWebServer {
 
 	/**
-	 * The server listens on this port.  Note that the port number must
+	 * The server listens on this port when there is no configuration file.  Note that the port number must
 	 * be greater than 1024 and lest than 65535.
 	 */
 	private final static int LISTENING_PORT = 50505;
 
 	/**
-	 * The root directory from which the server serves files.
-	 * Set this to the desired directory on your system.
+	 * The port for HTTPS connections, used if a keystore is configured.
+	 * Can be set with the system property webserver.https.port.
+	 */
+	private final static int HTTPS_PORT = Integer.getInteger("webserver.https.port", 50443);
+
+	/**
+	 * The root directory from which the server serves files, when there is
+	 * no configuration file.  Set this to the desired directory on your system.
 	 */
 	private final static String ROOT_DIRECTORY = ""; 
 	// You can use any directory that you want as your root directory
 
 	/**
-	 * The main method that starts the web server.
+	 * An idle persistent connection is closed after this many milliseconds.
+	 * Can be set with the system property webserver.keepAlive.timeout.
+	 */
+	private final static int KEEP_ALIVE_TIMEOUT = Integer.getInteger("webserver.keepAlive.timeout", 15000);
+
+	/**
+	 * The number of requests that can be made on one connection before the
+	 * server closes it.  Can be set with the system property
+	 * webserver.keepAlive.maxRequests.
+	 */
+	private final static int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("webserver.keepAlive.maxRequests", 100);
+
+	/**
+	 * The largest number of ranges that will be honored in a single Range
+	 * header.  A request for more ranges than this gets the whole file instead.
+	 */
+	private final static int MAX_RANGES = 16;
+
+	/**
+	 * Formatter for the dates used in HTTP headers such as Last-Modified.
+	 */
+	private final static DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+	/**
+	 * Text files smaller than this many bytes are not worth compressing.
+	 * Can be set with the system property webserver.gzip.minSize.
+	 */
+	private final static long MIN_COMPRESS_SIZE = Long.getLong("webserver.gzip.minSize", 1024);
+
+	/**
+	 * Text files up to this size are compressed in memory and kept in the
+	 * compression cache.  Bigger files are compressed as they are sent.
+	 * Can be set with the system property webserver.gzip.maxCachedFile.
+	 */
+	private final static long MAX_CACHED_COMPRESS_SIZE = Long.getLong("webserver.gzip.maxCachedFile", 4 * 1024 * 1024);
+
+	/**
+	 * Holds compressed copies of text files.  The compression level (1 to 9)
+	 * and the total cache size in bytes can be set with the system properties
+	 * webserver.gzip.level and webserver.gzip.cacheSize.
+	 */
+	private final static CompressionCache compressionCache = new CompressionCache(
+			Integer.getInteger("webserver.gzip.level", 6),
+			Long.getLong("webserver.gzip.cacheSize", 64 * 1024 * 1024));
+
+	/**
+	 * Files at least this many bytes long are sent from a memory mapping
+	 * instead of being read through a buffer.  Can be set with the system
+	 * property webserver.mmap.minSize; -1 turns mapping off.
+	 */
+	private final static long MMAP_MIN_SIZE = Long.getLong("webserver.mmap.minSize", 4 * 1024 * 1024);
+
+	/**
+	 * Holds the memory mappings of large files, shared by the requests that
+	 * are sending them.  The total size of the files that are kept mapped can
+	 * be set with the system property webserver.mmap.maxMapped.
+	 */
+	private final static MappedFileCache mappedFiles = new MappedFileCache(
+			Long.getLong("webserver.mmap.maxMapped", 16L * 1024 * 1024 * 1024));
+
+	/**
+	 * The path of the page that shows the server's metrics, in the Prometheus
+	 * text format.
+	 */
+	private final static String METRICS_PATH = "/_metrics";
+
+	/**
+	 * The path under which changes to the directories under the root can be
+	 * followed as Server-Sent Events, by ChangeEventHandler.
+	 */
+	private final static String EVENTS_PATH = "/_events";
+
+	/**
+	 * The access log, which is written by a background thread.  It goes to the
+	 * file named by the system property webserver.accessLog, or to standard
+	 * output if that property is not set.
+	 */
+	private final static AccessLog accessLog = openAccessLog(System.getProperty("webserver.accessLog"));
+
+	/**
+	 * Counters and latency histograms, shown at METRICS_PATH.
+	 */
+	private final static ServerMetrics metrics = new ServerMetrics();
+
+	/**
+	 * Limits the request rate of each client address.  It is off unless the
+	 * rate per second is set with the system property webserver.rateLimit.rate;
+	 * the burst size can be set with webserver.rateLimit.burst.  (A limit that
+	 * is on by default would turn away load tests, and any other client that
+	 * makes many requests from one address.)
+	 */
+	private final static RateLimiter rateLimiter = new RateLimiter(
+			Integer.getInteger("webserver.rateLimit.rate", 0),
+			Integer.getInteger("webserver.rateLimit.burst", 200));
+
+	/**
+	 * Limits the number of requests handled at once, adapting the limit to
+	 * the latency of the requests.  The initial, minimum and maximum limits
+	 * and the target latency in milliseconds can be set with the system
+	 * properties webserver.concurrency.initial, .min, .max and .targetLatency.
+	 */
+	private final static ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(
+			Integer.getInteger("webserver.concurrency.initial", 64),
+			Integer.getInteger("webserver.concurrency.min", 4),
+			Integer.getInteger("webserver.concurrency.max", 1024),
+			Long.getLong("webserver.concurrency.targetLatency", 250));
+
+	/**
+	 * The largest number of connections that are kept open at once.  Further
+	 * connections are refused with a 503 response.  Can be set with the
+	 * system property webserver.maxConnections.
+	 */
+	private final static int MAX_CONNECTIONS = Integer.getInteger("webserver.maxConnections", 2000);
+
+	/**
+	 * How long, in milliseconds, a refused connection is given to send its
+	 * request before it is closed.
+	 */
+	private final static int REJECTION_TIMEOUT = 2000;
+
+	/**
+	 * Whether PUT and POST requests can store files in the directories that
+	 * the server serves.  Uploads are refused unless the system property
+	 * webserver.upload.enabled is true.
+	 */
+	private final static boolean UPLOADS_ENABLED = Boolean.getBoolean("webserver.upload.enabled");
+
+	/**
+	 * The largest file that can be uploaded, in bytes.  Can be set with the
+	 * system property webserver.upload.maxSize.
+	 */
+	private final static long MAX_UPLOAD_SIZE = Long.getLong("webserver.upload.maxSize", 100 * 1024 * 1024);
+
+	/**
+	 * How often, in milliseconds, the configuration file is checked for changes.
+	 */
+	private final static long CONFIG_CHECK_INTERVAL = 2000;
+
+	/**
+	 * The listeners for the ports in the current configuration, by port.
+	 * Also used as the lock for changing the configuration.
+	 */
+	private final static Map<Integer,Listener> listeners = new LinkedHashMap<>();
+
+	/**
+	 * The HTTPS listener, or null.  It is not part of the configuration.
+	 */
+	private static Listener httpsListener;
+
+	/**
+	 * The configuration that is in effect.
+	 */
+	private static volatile ServerConfig config;
+
+	/**
+	 * Set when the server starts shutting down.
+	 */
+	private static volatile boolean shuttingDown;
+
+	/**
+	 * The connections that are open, so that idle ones can be closed at shutdown.
+	 */
+	private final static Set<HttpExchange> openExchanges = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * A few threads that answer refused connections, so that refusing them
+	 * doesn't take a thread per connection.
+	 */
+	private final static ExecutorService rejectionPool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(256), runnable -> {
+				Thread thread = new Thread(runnable, "Rejection responder");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	/**
+	 * The main method that starts the web server.  The ports and root
+	 * directories are read from the configuration file named on the command
+	 * line or by the system property webserver.config (see ServerConfig), or,
+	 * if there is none, the server listens on LISTENING_PORT and serves
+	 * ROOT_DIRECTORY.  The file is checked for changes every few seconds and
+	 * reloaded.  When the JVM is asked to exit, for example by SIGTERM, the
+	 * server stops accepting connections and lets the open ones finish.
+	 *
+	 * <p>If the system property webserver.https.keystore names a keystore
+	 * file, an HTTPS listener is also started, on the port given by
+	 * webserver.https.port, with the same routes as the plain listeners and
+	 * the root directory that the configuration gives for that port.  The
+	 * keystore password is taken from webserver.https.password.</p>
 	 *
-	 * @param args Command line arguments (not used).
+	 * @param args Command line arguments: optionally, the configuration file.
 	 */
 	public static void main(String[] args) {
-		ServerSocket serverSocket;
-		try {
-			serverSocket = new ServerSocket(LISTENING_PORT);
+		String configFile = args.length > 0 ? args[0] : System.getProperty("webserver.config");
+		ServerConfig initialConfig;
+		if (configFile == null) {
+			initialConfig = ServerConfig.defaults(LISTENING_PORT, ROOT_DIRECTORY);
 		}
-		catch (Exception e) {
-			System.out.println("Failed to create listening socket.");
-			return;
+		else {
+			try {
+				initialConfig = ServerConfig.load(Paths.get(configFile));
+			}
+			catch (IOException e) {
+				System.out.println("Failed to read configuration: " + e.getMessage());
+				return;
+			}
+		}
+		applyConfig(initialConfig);
+		synchronized (listeners) {
+			if (listeners.isEmpty()) {
+				System.out.println("Failed to create listening socket.");
+				return;
+			}
+		}
+		String keystore = System.getProperty("webserver.https.keystore");
+		if (keystore != null)
+			startHttpsListener(keystore, System.getProperty("webserver.https.password", ""));
+		Runtime.getRuntime().addShutdownHook(new Thread(SimpleWebServer::shutDown, "Shutdown"));
+		if (configFile != null)
+			startConfigWatcher(Paths.get(configFile));
+		// The accept threads keep the program running.
+	}
+
+	/**
+	 * Starts listening on the ports of a new configuration, stops listening
+	 * on ports that are no longer in it, and updates the root directories of
+	 * the others.  The listening sockets of ports that are in both the old
+	 * and the new configuration are left alone, so no connection is refused
+	 * during a reload.  (The number of accept threads of those ports does not
+	 * change.)
+	 */
+	private static void applyConfig(ServerConfig newConfig) {
+		synchronized (listeners) {
+			if (shuttingDown)
+				return;
+			Iterator<Listener> iter = listeners.values().iterator();
+			while (iter.hasNext()) {
+				Listener listener = iter.next();
+				if (!newConfig.getRoots().containsKey(listener.port)) {
+					listener.close();
+					iter.remove();
+					System.out.println("Stopped listening on port " + listener.port);
+				}
+			}
+			for (Map.Entry<Integer,String> entry : newConfig.getRoots().entrySet()) {
+				int port = entry.getKey();
+				String root = entry.getValue();
+				Listener listener = listeners.get(port);
+				if (listener != null) {
+					if (!listener.root.equals(root)) {
+						listener.root = root;
+						System.out.println("Port " + port + " now serves \"" + root + "\"");
+					}
+					listener.router = buildRouter(root, newConfig);
+					continue;
+				}
+				listener = new Listener(port, root, buildRouter(root, newConfig));
+				try {
+					listener.start(newConfig.getAcceptThreads());
+				}
+				catch (IOException e) {
+					System.out.println("Failed to listen on port " + port + ": " + e);
+					continue;
+				}
+				listeners.put(port, listener);
+				System.out.println("Listening on port " + port);
+			}
+			if (httpsListener != null) {
+				httpsListener.root = newConfig.getRoot(httpsListener.port);
+				httpsListener.router = buildRouter(httpsListener.root, newConfig);
+			}
+			config = newConfig;
+		}
+	}
+
+	/**
+	 * Starts a thread that checks the configuration file for changes every
+	 * CONFIG_CHECK_INTERVAL milliseconds and applies them.  A file that can't
+	 * be read is reported and otherwise ignored, so a mistake while editing
+	 * the file doesn't take the server down.
+	 */
+	private static void startConfigWatcher(Path configFile) {
+		Thread thread = new Thread(() -> {
+			long lastModified = configFile.toFile().lastModified();
+			while (true) {
+				try {
+					Thread.sleep(CONFIG_CHECK_INTERVAL);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				long modified = configFile.toFile().lastModified();
+				if (modified == lastModified)
+					continue;
+				lastModified = modified;
+				try {
+					applyConfig(ServerConfig.load(configFile));
+					System.out.println("Reloaded configuration from " + configFile);
+				}
+				catch (IOException e) {
+					System.out.println("Configuration not reloaded: " + e.getMessage());
+				}
+			}
+		}, "Config watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs when the JVM is shutting down.  The listening sockets are closed,
+	 * connections that are waiting for a request are closed, and connections
+	 * that are in the middle of a request are allowed to finish it, for up to
+	 * the configured shutdown timeout.
+	 */
+	private static void shutDown() {
+		ServerConfig currentConfig;
+		synchronized (listeners) {
+			shuttingDown = true;
+			for (Listener listener : listeners.values())
+				listener.close();
+			listeners.clear();
+			if (httpsListener != null)
+				httpsListener.close();
+			currentConfig = config;
 		}
-		System.out.println("Listening on port " + LISTENING_PORT);
+		ChangeEventHandler.closeAll();
+		System.out.println("Shutting down, with " + metrics.getActiveConnections() + " connections open.");
+		long deadline = System.nanoTime() + currentConfig.getShutdownTimeout() * 1_000_000;
+		while (metrics.getActiveConnections() > 0 && System.nanoTime() < deadline) {
+			for (HttpExchange exchange : openExchanges) {
+				if (exchange.isIdle()) {
+					try {
+						exchange.getSocket().close();
+					}
+					catch (IOException e) {
+					}
+				}
+			}
+			try {
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+		}
+		if (metrics.getActiveConnections() > 0)
+			System.out.println(metrics.getActiveConnections() + " connections were cut off.");
+		accessLog.flush();
+	}
+
+	/**
+	 * Accepts connections on a listening socket, starting a thread to handle
+	 * each one, until the socket fails or is closed.
+	 */
+	private static void acceptConnections(ServerSocket serverSocket, Listener listener) {
 		try {
 			while (true) {
 				Socket connection = serverSocket.accept();
-				System.out.println("\nConnection from " 
-						+ connection.getRemoteSocketAddress());
-				ConnectionThread thread = new ConnectionThread(connection);
-				thread.start();
+				if (metrics.getActiveConnections() >= MAX_CONNECTIONS) {
+					metrics.requestRejected("connections");
+					rejectConnection(connection, 503, 1);
+				}
+				else if (rateLimiter.isLimited(clientAddress(connection))) {
+					// Don't start a thread for a client that couldn't make a request anyway.
+					metrics.requestRejected("rate");
+					rejectConnection(connection, 429, rateLimiter.secondsUntilAvailable(clientAddress(connection)));
+				}
+				else {
+					ConnectionThread thread = new ConnectionThread(connection, listener);
+					thread.start();
+				}
 			}
 		}
 		catch (Exception e) {
-			System.out.println("Server socket shut down unexpectedly!");
+			if (listener.closed)
+				return;  // closed on purpose, by a reload or a shutdown
+			System.out.println("Server socket on port " + listener.port + " shut down unexpectedly!");
 			System.out.println("Error: " + e);
-			System.out.println("Exiting.");
 		}
 	}
 
+	/**
+	 * Returns the address of the client at the other end of a connection,
+	 * without the port, which is different for every connection.
+	 */
+	private static InetAddress clientAddress(Socket connection) {
+		return ((InetSocketAddress) connection.getRemoteSocketAddress()).getAddress();
+	}
+
+	/**
+	 * Answers a connection that is not admitted with a short error response,
+	 * using one of the few threads of rejectionPool, and closes it.  The
+	 * request is read first (with a short timeout), since closing a socket
+	 * with unread data can make the client lose the response.  If the pool
+	 * is backed up, the connection is just closed.
+	 *
+	 * @param connection The connection.
+	 * @param errorCode  429 or 503.
+	 * @param retryAfter The number of seconds after which the client can try again.
+	 */
+	private static void rejectConnection(Socket connection, int errorCode, int retryAfter) {
+		try {
+			rejectionPool.execute(() -> {
+				String remote = clientAddress(connection).getHostAddress();
+				String requestLine = "-";
+				long startTime = System.nanoTime();
+				try (connection) {
+					connection.setSoTimeout(REJECTION_TIMEOUT);
+					HttpRequestParser parser = new HttpRequestParser(connection.getInputStream());
+					HttpRequest request = new HttpRequest();
+					if (!parser.parse(request))
+						return;
+					requestLine = request.toString();
+					ResponseOutputStream out = new ResponseOutputStream(connection.getOutputStream());
+					sendErrorResponse(errorCode, out, request.getVersion(),
+							"Connection: close\r\nRetry-After: " + retryAfter + "\r\n");
+					logRequest(remote, requestLine, "rejected", out, startTime);
+				}
+				catch (Exception e) {
+					// The client is not worth any more effort.
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			try {
+				connection.close();
+			}
+			catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Creates the HTTPS listening socket and starts a thread that accepts
+	 * connections on it.  Connections are then handled exactly like plain
+	 * ones, since an SSLSocket has ordinary input and output streams.
+	 *
+	 * @param keystore The keystore file holding the server's key and certificate.
+	 * @param password The keystore password.
+	 */
+	private static void startHttpsListener(String keystore, String password) {
+		SSLServerSocket serverSocket;
+		try {
+			SSLContext context = TlsSupport.createServerContext(keystore, password.toCharArray());
+			serverSocket = TlsSupport.createServerSocket(context, HTTPS_PORT);
+		}
+		catch (Exception e) {
+			System.out.println("Failed to create HTTPS listening socket: " + e);
+			return;
+		}
+		System.out.println("Listening for HTTPS on port " + HTTPS_PORT);
+		Listener listener;
+		int acceptThreads;
+		synchronized (listeners) {
+			String root = config.getRoot(HTTPS_PORT);
+			listener = new Listener(HTTPS_PORT, root, buildRouter(root, config));
+			acceptThreads = config.getAcceptThreads();
+			httpsListener = listener;
+		}
+		listener.sockets.add(serverSocket);
+		try {
+			listener.start(acceptThreads);
+		}
+		catch (IOException impossible) {
+			// The socket is already bound.
+		}
+	}
+
+	/**
+	 * Opens the access log, falling back to standard output if the log file
+	 * cannot be opened.
+	 */
+	private static AccessLog openAccessLog(String fileName) {
+		try {
+			return new AccessLog(fileName);
+		}
+		catch (IOException e) {
+			System.out.println("Cannot open access log " + fileName + ": " + e);
+			try {
+				return new AccessLog(null);
+			}
+			catch (IOException impossible) {
+				throw new IllegalStateException(impossible);
+			}
+		}
+	}
+
+	/**
+	 * Writes a message, such as the description of an error, to the access log.
+	 */
+	static void logMessage(String message) {
+		accessLog.message(message);
+	}
+
 	/**
 	 * Determines the MIME type of a file based on its extension.
 	 *
@@ -104,26 +600,509 @@ public class SimpleWebServer {
 	 * @throws IOException If an I/O error occurs.
 	 */
 	private static void sendFile(File file, OutputStream socketOut) throws IOException {
-		InputStream in = new BufferedInputStream(new FileInputStream(file));
-		OutputStream out = new BufferedOutputStream(socketOut);
-		while (true) {
-			int x = in.read(); // read one byte from file
-			if (x < 0)
-				break; // end of file reached
-			out.write(x);  // write the byte to the socket
+		if (isMapped(file)) {
+			sendMappedRange(file, 0, -1, socketOut);
+			return;
+		}
+		// The file is closed here, since the connection may stay open for more requests.
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			OutputStream out = new BufferedOutputStream(socketOut);
+			while (true) {
+				int x = in.read(); // read one byte from file
+				if (x < 0)
+					break; // end of file reached
+				out.write(x);  // write the byte to the socket
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Formats a time, given in milliseconds, as an HTTP date.
+	 */
+	private static String formatHttpDate(long millis) {
+		return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+	}
+
+	/**
+	 * Parses an HTTP date into milliseconds.
+	 *
+	 * @return The time, or -1 if the date cannot be parsed.
+	 */
+	private static long parseHttpDate(String date) {
+		try {
+			return ZonedDateTime.parse(date.trim(), HTTP_DATE).toInstant().toEpochMilli();
+		}
+		catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Makes an entity tag for a file from its length and modification time.
+	 * The tag changes whenever the file is rewritten, which is all that a
+	 * client needs to validate a cached copy.
+	 */
+	private static String makeETag(File file) {
+		return "\"" + Long.toHexString(file.length()) + "-" 
+				+ Long.toHexString(file.lastModified()) + "\"";
+	}
+
+	/**
+	 * Tests whether an entity tag is listed in the value of an If-None-Match
+	 * header.  The comparison is weak, so W/ prefixes are ignored.
+	 */
+	private static boolean eTagMatches(String headerValue, String eTag) {
+		for (String tag : headerValue.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*"))
+				return true;
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals(eTag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Decides whether a client's cached copy of a file is still good, using
+	 * the If-None-Match and If-Modified-Since request headers.  If-None-Match
+	 * takes precedence when both are present.
+	 *
+	 * @param request The request, with its headers.
+	 * @param file    The requested file.
+	 * @param eTag    The current entity tag for the file.
+	 * @return true if a 304 Not Modified response should be sent.
+	 */
+	private static boolean isNotModified(HttpRequest request, File file, String eTag) {
+		String ifNoneMatch = request.getHeader("if-none-match");
+		if (ifNoneMatch != null)
+			return eTagMatches(ifNoneMatch, eTag);
+		String ifModifiedSince = request.getHeader("if-modified-since");
+		if (ifModifiedSince != null) {
+			long since = parseHttpDate(ifModifiedSince);
+			// HTTP dates only have one-second resolution.
+			return since >= 0 && file.lastModified() / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * Decides whether the Range header of a request should be honored.  If
+	 * the request has an If-Range header that does not match the current
+	 * version of the file, the whole file must be sent instead.
+	 */
+	private static boolean rangeStillValid(HttpRequest request, File file, String eTag) {
+		String ifRange = request.getHeader("if-range");
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(eTag);  // If-Range requires a strong comparison
+		long date = parseHttpDate(ifRange);
+		return date >= 0 && file.lastModified() / 1000 <= date / 1000;
+	}
+
+	/**
+	 * Parses the value of a Range header, such as "bytes=0-499,1000-" or
+	 * "bytes=-500", into a list of byte ranges within a file.  Ranges that
+	 * start past the end of the file are dropped.
+	 *
+	 * @param header The value of the Range header.
+	 * @param length The length of the file.
+	 * @return A list of {first,last} pairs, which is empty if no range can be
+	 *         satisfied, or null if the header is malformed or asks for too
+	 *         many ranges and should be ignored.
+	 */
+	private static List<long[]> parseRanges(String header, long length) {
+		if (!header.startsWith("bytes="))
+			return null;
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		List<long[]> ranges = new ArrayList<>();
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash < 0)
+					return null;
+				String firstText = spec.substring(0, dash).trim();
+				String lastText = spec.substring(dash + 1).trim();
+				long first, last;
+				if (firstText.isEmpty()) {
+					// A suffix range, giving the number of bytes at the end of the file.
+					long suffix = Long.parseLong(lastText);
+					if (suffix <= 0)
+						continue;
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+				}
+				else {
+					first = Long.parseLong(firstText);
+					last = lastText.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastText);
+					if (last < first)
+						return null;  // syntactically invalid, so the header is ignored
+					last = Math.min(last, length - 1);
+				}
+				if (first < length && first <= last)
+					ranges.add(new long[] { first, last });
+			}
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Sends part of a file to an output stream.
+	 *
+	 * @param file   The file containing the data.
+	 * @param first  The position of the first byte to send.
+	 * @param count  The number of bytes to send.
+	 * @param out    The output stream to which the data is written.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	private static void sendFileRange(File file, long first, long count, OutputStream out) throws IOException {
+		if (isMapped(file)) {
+			sendMappedRange(file, first, count, out);
+			return;
+		}
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			in.seek(first);
+			byte[] buffer = new byte[8192];
+			while (count > 0) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+				if (n < 0)
+					throw new IOException("File was truncated while it was being sent.");
+				out.write(buffer, 0, n);
+				count -= n;
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a file is big enough to be sent from a memory mapping.
+	 */
+	private static boolean isMapped(File file) {
+		return MMAP_MIN_SIZE >= 0 && file.length() >= Math.max(MMAP_MIN_SIZE, 1);
+	}
+
+	/**
+	 * Sends part of a file from its memory mapping, which is shared with any
+	 * other requests that are sending the same file.
+	 *
+	 * @param file   The file containing the data.
+	 * @param first  The position of the first byte to send.
+	 * @param count  The number of bytes to send, or -1 for the rest of the file.
+	 * @param out    The output stream to which the data is written.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	private static void sendMappedRange(File file, long first, long count, OutputStream out) throws IOException {
+		MappedFileCache.Mapping mapping = mappedFiles.acquire(file);
+		try {
+			if (count < 0)
+				count = mapping.length() - first;
+			else if (first + count > mapping.length())
+				throw new IOException("File was truncated while it was being sent.");
+			mapping.writeTo(out, first, count);
+			out.flush();
+		}
+		finally {
+			mapping.release();
+		}
+	}
+
+	/**
+	 * Sends a 206 Partial Content response containing the requested ranges of
+	 * a file.  A single range is sent as the body of the response; several
+	 * ranges are sent as a multipart/byteranges body.
+	 *
+	 * @param file     The requested file.
+	 * @param ranges   The ranges to send, as returned by parseRanges.
+	 * @param type     The MIME type of the file.
+	 * @param eTag     The entity tag for the file.
+	 * @param exchange The request that is being answered.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	private static void sendPartialContent(File file, List<long[]> ranges,
+			String type, String eTag, HttpExchange exchange) throws IOException {
+		long length = file.length();
+		OutputStream out = new BufferedOutputStream(exchange.getOutput());
+		StringBuilder head = new StringBuilder();
+		head.append(exchange.getVersion()).append(" 206 Partial Content\r\n");
+		head.append(exchange.connectionHeader());
+		head.append("Accept-Ranges: bytes\r\n");
+		head.append("ETag: ").append(eTag).append("\r\n");
+		head.append("Last-Modified: ").append(formatHttpDate(file.lastModified())).append("\r\n");
+		if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			long count = range[1] - range[0] + 1;
+			head.append("Content-Type: ").append(type).append("\r\n");
+			head.append("Content-Range: bytes ").append(range[0]).append('-')
+					.append(range[1]).append('/').append(length).append("\r\n");
+			head.append("Content-Length: ").append(count).append("\r\n\r\n");
+			out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+			sendFileRange(file, range[0], count, out);
+		}
+		else {
+			String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+			String[] partHeads = new String[ranges.size()];
+			long contentLength = 0;
+			for (int i = 0; i < partHeads.length; i++) {
+				long[] range = ranges.get(i);
+				partHeads[i] = "\r\n--" + boundary + "\r\n" 
+						+ "Content-Type: " + type + "\r\n"
+						+ "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+				contentLength += partHeads[i].length() + range[1] - range[0] + 1;
+			}
+			String tail = "\r\n--" + boundary + "--\r\n";
+			contentLength += tail.length();
+			head.append("Content-Type: multipart/byteranges; boundary=").append(boundary).append("\r\n");
+			head.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+			out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+			for (int i = 0; i < partHeads.length; i++) {
+				long[] range = ranges.get(i);
+				out.write(partHeads[i].getBytes(StandardCharsets.ISO_8859_1));
+				sendFileRange(file, range[0], range[1] - range[0] + 1, out);
+			}
+			out.write(tail.getBytes(StandardCharsets.ISO_8859_1));
 		}
 		out.flush();
 	}
 
 	/**
-	 * Sends an HTTP error response with the specified status code and description.
+	 * Tests whether files of a given MIME type are text that is worth
+	 * compressing.  Images and archives are already compressed.
+	 */
+	private static boolean isCompressible(String type) {
+		return type.startsWith("text/") || type.equals("application/xml") 
+				|| type.equals("application/xhtml+xml");
+	}
+
+	/**
+	 * Chooses a content coding from the value of an Accept-Encoding header.
+	 * Gzip is preferred over deflate when the client accepts both equally.
+	 *
+	 * @param acceptEncoding The header value, or null if there was none.
+	 * @return "gzip", "deflate", or null if the response should not be compressed.
+	 */
+	private static String negotiateEncoding(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return null;
+		double gzipQ = -1, deflateQ = -1, starQ = -1;
+		for (String item : acceptEncoding.split(",")) {
+			String[] parts = item.trim().split(";");
+			String coding = parts[0].trim().toLowerCase();
+			double q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(param.substring(2));
+					}
+					catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if (coding.equals("gzip") || coding.equals("x-gzip"))
+				gzipQ = q;
+			else if (coding.equals("deflate"))
+				deflateQ = q;
+			else if (coding.equals("*"))
+				starQ = q;
+		}
+		if (gzipQ < 0)
+			gzipQ = starQ;
+		if (deflateQ < 0)
+			deflateQ = starQ;
+		if (gzipQ > 0 && gzipQ >= deflateQ)
+			return "gzip";
+		if (deflateQ > 0)
+			return "deflate";
+		return null;
+	}
+
+	/**
+	 * Sends a text file with gzip or deflate content coding.  If a precompressed
+	 * copy of the file, with ".gz" added to its name, exists and is at least
+	 * as new as the file, it is sent as is.  Otherwise, a small file is taken
+	 * from the compression cache and a big file is compressed as it is sent.
+	 *
+	 * @param file     The requested file.
+	 * @param encoding The negotiated encoding, "gzip" or "deflate".
+	 * @param type     The MIME type of the file.
+	 * @param eTag     The entity tag of the uncompressed file.
+	 * @param exchange The request that is being answered.  Its headers are used
+	 *                 for conditional requests.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	private static void sendCompressedFile(File file, String encoding,
+			String type, String eTag, HttpExchange exchange) throws IOException {
+		File precompressed = new File(file.getPath() + ".gz");
+		if (encoding.equals("gzip") && precompressed.isFile() && precompressed.canRead()
+				&& precompressed.lastModified() >= file.lastModified()) {
+			file = precompressed;
+			eTag = makeETag(precompressed);
+		}
+		else {
+			precompressed = null;
+		}
+		// Each encoding of the file is a different representation, so it needs its own tag.
+		String variantTag = eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+		if (isNotModified(exchange.getRequest(), file, variantTag)) {
+			sendNotModified(exchange, variantTag, file);
+			return;
+		}
+		byte[] data = null;
+		if (precompressed == null && file.length() <= MAX_CACHED_COMPRESS_SIZE)
+			data = compressionCache.get(file, encoding);
+		// If the compressed length is not known in advance, an HTTP/1.1 response
+		// is sent in chunks.  For HTTP/1.0, the end of the body is marked by
+		// closing the connection.
+		boolean chunked = (precompressed == null && data == null && exchange.getVersion() == "HTTP/1.1");
+		if (precompressed == null && data == null && !chunked)
+			exchange.closeAfterResponse();
+		OutputStream socketOut = exchange.getOutput();
+		PrintWriter outgoing = new PrintWriter(socketOut);
+		outgoing.print(exchange.getVersion() + " 200 OK\r\n");
+		outgoing.print(exchange.connectionHeader());
+		outgoing.print("Content-type: " + type + "\r\n");
+		outgoing.print("Content-Encoding: " + encoding + "\r\n");
+		outgoing.print("Vary: Accept-Encoding\r\n");
+		if (precompressed != null)
+			outgoing.print("Content-Length: " + precompressed.length() + "\r\n");
+		else if (data != null)
+			outgoing.print("Content-Length: " + data.length + "\r\n");
+		else if (chunked)
+			outgoing.print("Transfer-Encoding: chunked\r\n");
+		outgoing.print("ETag: " + variantTag + "\r\n");
+		outgoing.print("Last-Modified: " + formatHttpDate(file.lastModified()) + "\r\n");
+		outgoing.print("\r\n");
+		outgoing.flush();
+		if (precompressed != null) {
+			sendFile(precompressed, socketOut);
+		}
+		else if (data != null) {
+			socketOut.write(data);
+			socketOut.flush();
+		}
+		else {
+			// Closing the compressing stream closes the chunked stream, which ends
+			// the body but leaves the connection open.
+			OutputStream body = chunked ? new ChunkedOutputStream(socketOut) : new BufferedOutputStream(socketOut);
+			OutputStream out = CompressionCache.compressingStream(body, encoding, compressionCache.getLevel());
+			try (InputStream in = new FileInputStream(file)) {
+				in.transferTo(out);
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Sends the server's metrics in the Prometheus text exposition format.
+	 */
+	private static void sendMetrics(HttpExchange exchange) throws IOException {
+		StringBuilder text = new StringBuilder(metrics.toPrometheusText(accessLog.getDropped()));
+		ServerMetrics.appendMetric(text, "webserver_concurrency_limit", "gauge",
+				"Current limit on requests handled at once.", concurrencyLimiter.getLimit());
+		ServerMetrics.appendMetric(text, "webserver_requests_in_flight", "gauge",
+				"Requests being handled.", concurrencyLimiter.getInFlight());
+		ServerMetrics.appendMetric(text, "webserver_rate_limited_clients", "gauge",
+				"Client addresses tracked by the rate limiter.", rateLimiter.getClientCount());
+		ServerMetrics.appendMetric(text, "webserver_mapped_bytes", "gauge",
+				"Total size of the files that are memory mapped.", mappedFiles.getMappedBytes());
+		ServerMetrics.appendMetric(text, "webserver_event_subscribers", "gauge",
+				"Clients following directory changes.", ChangeEventHandler.getSubscriberCount());
+		byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+		OutputStream socketOut = exchange.getOutput();
+		PrintWriter outgoing = new PrintWriter(socketOut);
+		outgoing.print(exchange.getVersion() + " 200 OK\r\n");
+		outgoing.print(exchange.connectionHeader());
+		outgoing.print("Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n");
+		outgoing.print("Content-Length: " + body.length + "\r\n");
+		outgoing.print("\r\n");
+		outgoing.flush();
+		socketOut.write(body);
+		socketOut.flush();
+	}
+
+	/**
+	 * Sends a 304 Not Modified response, which has headers but no body.
+	 */
+	private static void sendNotModified(HttpExchange exchange, String eTag, File file) {
+		PrintWriter outgoing = new PrintWriter(exchange.getOutput());
+		outgoing.print(exchange.getVersion() + " 304 Not Modified\r\n");
+		outgoing.print(exchange.connectionHeader());
+		outgoing.print("ETag: " + eTag + "\r\n");
+		outgoing.print("Last-Modified: " + formatHttpDate(file.lastModified()) + "\r\n");
+		outgoing.print("\r\n");
+		outgoing.flush();
+	}
+
+	/**
+	 * Sends a 416 Range Not Satisfiable response, for a Range header none of
+	 * whose ranges overlap the file.
+	 */
+	private static void sendRangeNotSatisfiable(HttpExchange exchange, File file) {
+		PrintWriter outgoing = new PrintWriter(exchange.getOutput());
+		outgoing.print(exchange.getVersion() + " 416 Range Not Satisfiable\r\n");
+		outgoing.print(exchange.connectionHeader());
+		outgoing.print("Content-Range: bytes */" + file.length() + "\r\n");
+		outgoing.print("Content-Length: 0\r\n");
+		outgoing.print("\r\n");
+		outgoing.flush();
+	}
+
+	/**
+	 * Sends an HTTP error response with the specified status code and description,
+	 * when there is no request that can be answered, for example because the
+	 * request could not be parsed.  The connection will be closed.
 	 *
 	 * @param errorCode  The HTTP error status code.
 	 * @param socketOut  The output stream to send the error response.
 	 */
 	static void sendErrorResponse(int errorCode, OutputStream socketOut) {
+		sendErrorResponse(errorCode, socketOut, "HTTP/1.1", "Connection: close\r\n");
+	}
+
+	/**
+	 * Sends an HTTP error response as the answer to a request.
+	 *
+	 * @param errorCode  The HTTP error status code.
+	 * @param exchange   The request that is being answered.
+	 */
+	static void sendErrorResponse(int errorCode, HttpExchange exchange) {
+		sendErrorResponse(errorCode, exchange.getOutput(), exchange.getVersion(), exchange.connectionHeader());
+	}
+
+	/**
+	 * Refuses a request because of a rate or concurrency limit.  The
+	 * connection is closed after the response.
+	 *
+	 * @param errorCode  429 or 503.
+	 * @param exchange   The request that is being refused.
+	 * @param retryAfter The number of seconds after which the client can try again.
+	 */
+	private static void sendRejection(int errorCode, HttpExchange exchange, int retryAfter) {
+		exchange.closeAfterResponse();
+		sendErrorResponse(errorCode, exchange.getOutput(), exchange.getVersion(),
+				exchange.connectionHeader() + "Retry-After: " + retryAfter + "\r\n");
+	}
+
+	/**
+	 * Sends an HTTP error response with the specified status code and description.
+	 *
+	 * @param errorCode  The HTTP error status code.
+	 * @param socketOut  The output stream to send the error response.
+	 * @param token      The HTTP version for the status line.
+	 * @param headers    The Connection header line, and any other header lines
+	 *                   for the response, each ending with CRLF.
+	 */
+	private static void sendErrorResponse(int errorCode, OutputStream socketOut, String token, String headers) {
 
-		String token = "HTTP/1.1";
 		String statusCode = "";
 		String statusDescription = "";
 
@@ -140,6 +1119,26 @@ public class SimpleWebServer {
 			statusCode += "404 Not Found";
 			statusDescription += "The resource that you requested does not exist on this server.";
 			break;
+		case 409:
+			statusCode += "409 Conflict";
+			statusDescription += "The file can't be stored there, because that is a directory or its parent is missing.";
+			break;
+		case 413:
+			statusCode += "413 Content Too Large";
+			statusDescription += "The request body is larger than the server is willing to accept.";
+			break;
+		case 414:
+			statusCode += "414 URI Too Long";
+			statusDescription += "The request line is longer than the server is willing to read.";
+			break;
+		case 429:
+			statusCode += "429 Too Many Requests";
+			statusDescription += "You have sent too many requests.  Please try again later.";
+			break;
+		case 431:
+			statusCode += "431 Request Header Fields Too Large";
+			statusDescription += "The request headers are larger than the server is willing to read.";
+			break;
 		case 500:
 			statusCode += "500 Internal Server Error";
 			statusDescription += "There has some unexpected error in handling the connection.";
@@ -148,6 +1147,22 @@ public class SimpleWebServer {
 			statusCode += "501 Not Implemented";
 			statusDescription += "The method has not been implemented yet.";
 			break;
+		case 502:
+			statusCode += "502 Bad Gateway";
+			statusDescription += "The upstream server could not be reached or sent a bad response.";
+			break;
+		case 503:
+			statusCode += "503 Service Unavailable";
+			statusDescription += "The server is too busy to handle the request.  Please try again later.";
+			break;
+		case 504:
+			statusCode += "504 Gateway Timeout";
+			statusDescription += "The upstream server did not respond in time.";
+			break;
+		case 505:
+			statusCode += "505 HTTP Version Not Supported";
+			statusDescription += "Only HTTP/1.1 and HTTP/1.0 are supported.";
+			break;
 		default:
 			statusCode += "500 Internal Server Error";
 			statusDescription += "There has some unexpected error in handling the connection.";
@@ -156,18 +1171,18 @@ public class SimpleWebServer {
 
 		try {
 			PrintWriter out = new PrintWriter(socketOut);
+			String body = "<html><head><title>Error</title></head><body>\r\n"
+					+ "<h2>Error:" + statusCode + "</h2>\r\n"
+					+ "<p>" + statusDescription + "</p>\r\n"
+					+ "</body></html>\r\n";
 
-			out.print(token + statusDescription + "\r\n");
-			out.print("Connection: close\r\n");
+			out.print(token + " " + statusCode + "\r\n");
+			out.print(headers);
 			out.print("Content-Type: text/html\r\n");
+			out.print("Content-Length: " + body.length() + "\r\n");
 			out.print("\r\n");
-			out.print("<html><head><title>Error</title></head><body>\r\n");
-			out.print("<h2>Error:" + statusCode + "</h2>\r\n");
-			out.print("<p>" + statusDescription + "</p>\r\n");
-			out.print("</body></html>\r\n");
+			out.print(body);
 			out.flush();
-
-			out.close();
 		} catch (Exception e) {
 			// Nothing to do if error occurs while attempting to send error message.
 		}		
@@ -176,54 +1191,38 @@ public class SimpleWebServer {
 
 
 	/**
-	 * Lists the contents of a directory and its subdirectories and show them as table.
+	 * Sends a listing of the contents of a directory as an HTML table.  The
+	 * listing is produced, and cached, by the DirectoryListing class.  Since
+	 * the links in the listing are relative, a request for a directory whose
+	 * path does not end with "/" is redirected to the path with a "/" added.
 	 *
 	 * @param dir      The {@code File} object representing the directory to be listed.
-	 * @param outgoing The {@code PrintWriter} for sending the directory listing to the client.
+	 * @param path     The path from the request, without the query string.
+	 * @param query    The query string from the request, or null.
+	 * @param exchange The request that is being answered.
+	 * @throws IOException If the directory can't be read or an I/O error occurs.
 	 */
-	public static void getFileList(File dir, PrintWriter outgoing) {
-		File[] fileList = dir.listFiles();
-
-		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-
-		outgoing.print("HTTP/1.1 200 OK\r\n" + "Content-Type: text/html\r\n" + "\r\n");
-		outgoing.print("<html><head><title>Directory Listing</title></head><body>\r\n");
-		outgoing.print("<h1>Directory Listing</h1><h3>" + dir.getPath() + "</h3>");
-		outgoing.print("<table><tr><td>Filename</td><td>Size</td><td>Last Modified</td></tr>");
-
-		if (dir.getParentFile() != null) {
-			outgoing.print("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>");
-		}
-
-		for (int i = 0; i < fileList.length; i++) {
-			File file = fileList[i];
-
-			String link = (file.isDirectory()) ? file.getPath() + "/" : file.getName();
-			String size = (file.isDirectory()) ? "-" : formatSize(file.length());
-			String lastModified = dateFormat.format(new Date(file.lastModified()));
-
-			outgoing.print("<tr><td><a href=\"" + link + "\" \">" + file.getName() + "</a></td>");
-			outgoing.print("<td align=\"right\">" + size + "</td><td>" + lastModified + "</td></tr>");
+	public static void getFileList(File dir, String path, String query, HttpExchange exchange) throws IOException {
+		OutputStream socketOut = exchange.getOutput();
+		PrintWriter outgoing = new PrintWriter(socketOut);
+		if (!path.endsWith("/")) {
+			outgoing.print(exchange.getVersion() + " 301 Moved Permanently\r\n");
+			outgoing.print(exchange.connectionHeader());
+			outgoing.print("Location: " + Router.encodePath(path) + "/" + (query == null ? "" : "?" + query) + "\r\n");
+			outgoing.print("Content-Length: 0\r\n");
+			outgoing.print("\r\n");
+			outgoing.flush();
+			return;
 		}
-
-		outgoing.print("</table><hr></body></html>\r\n");
+		byte[] page = DirectoryListing.render(dir.toPath(), dir.getPath(), query);
+		outgoing.print(exchange.getVersion() + " 200 OK\r\n");
+		outgoing.print(exchange.connectionHeader());
+		outgoing.print("Content-Type: text/html; charset=utf-8\r\n");
+		outgoing.print("Content-Length: " + page.length + "\r\n");
+		outgoing.print("\r\n");
 		outgoing.flush();
-	}
-
-	/**
-	 * Formats the size of a file in a user-friendly form.
-	 *
-	 * @param bytes The size of the file in bytes.
-	 * @return A formatted string representing the file size.
-	 */
-	private static String formatSize(long bytes) {
-		if (bytes < 1024) {
-			return bytes + " B";
-		} else if (bytes < 1024 * 1024) {
-			return (bytes / 1024) + " KB";
-		} else {
-			return String.format("%.2f MB", (double) bytes / (1024 * 1024));
-		}
+		socketOut.write(page);
+		socketOut.flush();
 	}
 
 	/**
@@ -231,120 +1230,497 @@ public class SimpleWebServer {
 	 */
 	private static class ConnectionThread extends Thread {
 		Socket connection;
-		ConnectionThread(Socket connection) {
+		Listener listener;
+		ConnectionThread(Socket connection, Listener listener) {
 			this.connection = connection;
+			this.listener = listener;
 		}
 		public void run() {
-			handleConnection(connection);
+			handleConnection(connection, listener);
 		}
 	}
 
 	/**
-	 * Handles the communication with the client for a single connection.
+	 * The listening sockets for one port, and the threads that accept
+	 * connections on them.  If there is more than one accept thread and the
+	 * system supports SO_REUSEPORT, each thread gets a socket of its own,
+	 * all bound to the same port, and the kernel spreads new connections
+	 * over them.  Otherwise the threads share one socket.
+	 */
+	private static class Listener {
+		final int port;
+		volatile String root;  // can be changed by a reload
+		volatile Router router;
+		final List<ServerSocket> sockets = new ArrayList<>();
+		volatile boolean closed;
+
+		Listener(int port, String root, Router router) {
+			this.port = port;
+			this.root = root;
+			this.router = router;
+		}
+
+		/**
+		 * Binds the sockets, unless they were supplied, and starts the accept threads.
+		 */
+		void start(int acceptThreads) throws IOException {
+			if (sockets.isEmpty()) {
+				boolean reusePort = acceptThreads > 1
+						&& new ServerSocket().supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+				int count = reusePort ? acceptThreads : 1;
+				try {
+					for (int i = 0; i < count; i++) {
+						ServerSocket socket = new ServerSocket();
+						sockets.add(socket);
+						socket.setReuseAddress(true);
+						if (reusePort)
+							socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+						socket.bind(new InetSocketAddress(port), 200);
+					}
+				}
+				catch (IOException e) {
+					close();
+					throw e;
+				}
+			}
+			for (int i = 0; i < acceptThreads; i++) {
+				ServerSocket socket = sockets.get(i % sockets.size());
+				Thread thread = new Thread(() -> acceptConnections(socket, this), "Listener " + port + "-" + i);
+				thread.start();
+			}
+		}
+
+		/**
+		 * Closes the listening sockets.  Connections that have already been
+		 * accepted are not affected.
+		 */
+		void close() {
+			closed = true;
+			for (ServerSocket socket : sockets) {
+				try {
+					socket.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handles the communication with the client for a single connection.  The
+	 * connection is kept open for further requests as long as the client
+	 * wants it, up to MAX_REQUESTS_PER_CONNECTION requests, and is closed if
+	 * it sits idle for KEEP_ALIVE_TIMEOUT milliseconds.  Requests that the
+	 * client sends without waiting for earlier responses (pipelining) are
+	 * answered in order, since the parser keeps any bytes that it has read
+	 * beyond the end of one request for the next.  When the server is shutting
+	 * down, the connection is closed after the current request.
 	 *
 	 * @param connection The client socket connection.
+	 * @param listener   The listener that accepted the connection.
 	 */
-	private static void handleConnection(Socket connection) {
-
-		// Input and output streams for communication with the client
-		Scanner in;
-		PrintWriter outgoing;
-		OutputStream out;
+	private static void handleConnection(Socket connection, Listener listener) {
 
-		// Variables to store information about the request and response
-		String method;
-		String token;
-		String pathToFile;
-		String type;
-		String status;
+		InetAddress client = clientAddress(connection);
+		String remote = client.getHostAddress();  // as in Common Log Format, without the port
+		HttpExchange exchange = null;
 
+		metrics.connectionOpened();
 		try {
 			// Set up input and output streams for communication with the client
-			in = new Scanner(connection.getInputStream());
-			outgoing = new PrintWriter(connection.getOutputStream());
-			out = connection.getOutputStream();
-
-			// Read the HTTP request method
-			method = in.next();
-
-			// Check if the request method is supported (only supports GET)
-			if (!method.equalsIgnoreCase("GET")) {
-				System.out.print("ERROR! Not supported method.");
-				sendErrorResponse(501, out);
-			} else {
-
-				// Process GET request
-				pathToFile = in.next();
-				token = in.next();
-
-				// Check if the HTTP version is supported
-				if (!token.equalsIgnoreCase("HTTP/1.1") && 
-						!token.equalsIgnoreCase("HTTP/1.0")) {
-					System.out.print("ERROR: Bad request.  Not HTTP/1.1 or HTTP/1.0.");
-					sendErrorResponse(400, out);
-
-				} else {
-
-					// Create a File object for the requested resource
-					File file = new File(ROOT_DIRECTORY + pathToFile);
-
-					// Check if the resource is a directory
-					if (file.isDirectory()) {
-						// If it's a directory, send a directory listing to the client
-						getFileList(file, outgoing);
-					} else if (file.exists() && file.canRead()) {
-						// If it's a file and can be read, send the file content to the client
-						status = token + " 200 OK\r\n";
-						outgoing.print(status);
-						outgoing.print("Connection: close\r\n");
-
-						// Determine the content type of the file
-						type = getMimeType(file.getName());
-						outgoing.print("Content-type: " + type);
-						// Include content length in the response
-						long fileLength = file.length();
-						outgoing.print("Content-Length: " + fileLength + "\r\n");
-						outgoing.print("\r\n");
-						outgoing.flush();
-
-						// Send the file content
-						sendFile(file, out);
-					} else {
-						if (file.exists() && !file.canRead()) {
-							// Handle cases where the file doesn't exist or can't be read
-							System.out.println("ERROR: Permission to read file denied.");
-							sendErrorResponse(403, out);
-						} else if (!file.exists()) {
-							System.out.println("ERROR: File does not exist on this server.");
-							sendErrorResponse(404, out);
-						}
-						outgoing.flush();
+			connection.setTcpNoDelay(true);  // responses are flushed whole, so Nagle only adds delay
+			connection.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			HttpRequestParser parser = new HttpRequestParser(connection.getInputStream());
+			ResponseOutputStream out = new ResponseOutputStream(connection.getOutputStream());
+			HttpRequest request = new HttpRequest();
+			exchange = new HttpExchange(connection, parser, request, out);
+			openExchanges.add(exchange);
+
+			int requestCount = 0;
+			do {
+				// Read the request line, which should contain the method, path and version,
+				// followed by the request headers.  While waiting for it, the connection
+				// is idle, and a shutdown can close it.
+				exchange.setIdle(true);
+				if (shuttingDown)
+					return;
+				try {
+					if (!parser.parse(request))
+						return;  // the client closed the connection without sending another request
+				}
+				catch (SocketTimeoutException e) {
+					return;  // the connection was idle for too long
+				}
+				catch (HttpRequestParser.BadRequestException e) {
+					accessLog.message("ERROR: Bad request from " + remote + ".  " + e.getMessage());
+					out.reset();
+					sendErrorResponse(e.getStatusCode(), out);
+					logRequest(remote, "-", "error", out, System.nanoTime());
+					return;
+				}
+				exchange.setIdle(false);
+				requestCount++;
+				exchange.begin(requestCount < MAX_REQUESTS_PER_CONNECTION && !shuttingDown);
+				exchange.setRouter(listener.router);
+				long startTime = System.nanoTime();  // don't count the time spent waiting for the request
+				String requestLine = request.toString();
+				String route = "error";
+				if (!rateLimiter.tryAcquire(client)) {
+					// The client is over its rate, so it is turned away, and the
+					// connection is closed to free this thread.
+					metrics.requestRejected("rate");
+					sendRejection(429, exchange, rateLimiter.secondsUntilAvailable(client));
+					logRequest(remote, requestLine, "rejected", out, startTime);
+					return;
+				}
+				if (!concurrencyLimiter.tryAcquire()) {
+					metrics.requestRejected("concurrency");
+					sendRejection(503, exchange, 1);
+					logRequest(remote, requestLine, "rejected", out, startTime);
+					return;
+				}
+				try {
+					route = handleRequest(exchange);
+					out.flush();
+				}
+				catch (Exception e) {
+					// Handle exceptions that may occur during communication with the client
+					accessLog.message("Error while communicating with client " + remote + ": " + e);
+					metrics.errorOccurred();
+					exchange.closeAfterResponse();
+					if (out.getCount() == 0) {
+						// Attempt to send an Internal Server Error response to the client,
+						// unless part of some other response has already been sent.
+						sendErrorResponse(500, out);
 					}
 				}
-
-			}
-
+				finally {
+					// Only the time to the first byte of the response says how
+					// busy the server is; the rest depends on the size of the
+					// body and the speed of the client.  A request with a body,
+					// such as an upload, has to be read before the response
+					// starts, and a detached exchange lives on after this, so
+					// those say nothing about the server's load.
+					long firstByteTime = out.getFirstByteTime();
+					if (firstByteTime == 0 || exchange.hasBody() || exchange.isDetached())
+						concurrencyLimiter.release();
+					else
+						concurrencyLimiter.release((firstByteTime - startTime) / 1000);
+				}
+				logRequest(remote, requestLine, route, out, startTime);
+			} while (exchange.isKeepAlive());
 		}
 		catch (Exception e) {
-			// Handle exceptions that may occur during communication with the client
-			System.out.println("Error while communicating with client: " + e);
-			try {
-				// Attempt to send an Internal Server Error response to the client
-				OutputStream newOut = connection.getOutputStream();
-				sendErrorResponse(500, newOut);
-			} catch (Exception error) {
-				System.out.println("Error sending Internal Server Error response.");
+			// Handle exceptions that occur outside of any single request, unless
+			// the connection was closed by a shutdown.
+			if (!shuttingDown) {
+				accessLog.message("Error while communicating with client " + remote + ": " + e);
+				metrics.errorOccurred();
 			}
 		}
 		finally {  
-			// make SURE connection is closed before returning!
+			if (exchange != null)
+				openExchanges.remove(exchange);
+			// make SURE connection is closed before returning, unless a handler
+			// has taken it over!
 			try {
-				connection.close();
+				if (exchange == null || !exchange.isDetached())
+					connection.close();
 			}
 			catch (Exception e) {
 				// Ignore any exceptions that may occur while closing the connection
 			}
-			System.out.println("Connection closed.");
+			metrics.connectionClosed();
+		}
+	}
+
+	/**
+	 * Records a request in the access log and the metrics.
+	 *
+	 * @param remote      The address of the client.
+	 * @param requestLine The request line, or "-" if no request was read.
+	 * @param route       The kind of request, such as "file" or "listing".
+	 * @param out         The stream that the response was sent through.
+	 * @param startTime   The value of System.nanoTime() when the request was read.
+	 */
+	private static void logRequest(String remote, String requestLine, String route,
+			ResponseOutputStream out, long startTime) {
+		long micros = (System.nanoTime() - startTime) / 1000;
+		int statusCode = out.getStatus();
+		long bytes = out.getCount();
+		accessLog.log(remote, requestLine, statusCode, bytes, micros);
+		metrics.requestCompleted(route, statusCode, bytes, micros);
+	}
+
+	/**
+	 * Answers one request, by finding the handler for it with the router of
+	 * the listener that accepted the connection.  The response is written to
+	 * the exchange's output stream, but is not necessarily flushed.
+	 *
+	 * @param exchange The request and the connection that it came on.
+	 * @return The kind of request, for the metrics, as returned by the handler,
+	 *         or "error".
+	 * @throws IOException If an I/O error occurs.
+	 */
+	private static String handleRequest(HttpExchange exchange) throws IOException {
+
+		// Separate any query string from the path.  (The parser has already
+		// checked that the version is HTTP/1.1 or HTTP/1.0.)  Which methods
+		// are supported is up to the handler.
+		HttpRequest request = exchange.getRequest();
+		String target = request.getTarget();
+		String host = request.getHeader("host");
+		if (target.startsWith("http://") || target.startsWith("https://")) {
+			// The absolute form, which takes the place of the Host header.
+			int hostStart = target.indexOf("//") + 2;
+			int slash = target.indexOf('/', hostStart);
+			if (slash < 0)
+				slash = target.length();
+			host = target.substring(hostStart, slash);
+			target = (slash == target.length()) ? "/" : target.substring(slash);
+		}
+		String query = null;
+		int questionMark = target.indexOf('?');
+		if (questionMark >= 0) {
+			query = target.substring(questionMark + 1);
+			target = target.substring(0, questionMark);
+		}
+		String path;
+		try {
+			path = Router.canonicalize(target);
+		}
+		catch (IllegalArgumentException e) {
+			accessLog.message("ERROR: Bad path " + target + ": " + e.getMessage());
+			sendErrorResponse(400, exchange);
+			return "error";
+		}
+		exchange.setPath(path, query);
+
+		Router.Match match = exchange.getRouter().route(Router.hostName(host), path);
+		if (match == null) {
+			sendErrorResponse(404, exchange);
+			return "error";
+		}
+		return match.handler.handle(exchange, match.path);
+	}
+
+	/**
+	 * Builds the router for a listener: the listener's root directory serves
+	 * every path that no other route takes, the routes of the configuration
+	 * come next, and the metrics page is at METRICS_PATH on every host.  A
+	 * handler class that can't be loaded is reported and left out.
+	 */
+	private static Router buildRouter(String root, ServerConfig config) {
+		Router router = new Router();
+		router.addRoute(Router.ANY_HOST, "/", new StaticFileHandler(root));
+		for (ServerConfig.Route route : config.getRoutes()) {
+			RequestHandler handler;
+			try {
+				if (route.getKind().equals(ServerConfig.Route.HANDLER))
+					handler = (RequestHandler) Class.forName(route.getTarget()).getConstructor().newInstance();
+				else if (route.getKind().equals(ServerConfig.Route.PROXY))
+					handler = new ProxyHandler(route.getTarget());
+				else
+					handler = new StaticFileHandler(route.getTarget());
+			}
+			catch (ReflectiveOperationException | ClassCastException | IllegalArgumentException e) {
+				System.out.println("Cannot use route for " + route.getPrefix() + ": " + e);
+				continue;
+			}
+			router.addRoute(route.getHost(), route.getPrefix(), handler);
+		}
+		router.addRoute(Router.ANY_HOST, EVENTS_PATH, new ChangeEventHandler(root));
+		router.addRoute(Router.ANY_HOST, METRICS_PATH, (exchange, path) -> {
+			if (exchange.getRequest().getMethod() != "GET") {
+				sendErrorResponse(501, exchange);
+				return "error";
+			}
+			sendMetrics(exchange);
+			return "metrics";
+		});
+		return router;
+	}
+
+	/**
+	 * Serves the files and directory listings under a root directory.  The
+	 * path has been canonicalized, so it can't climb out of the root with
+	 * "..", but a symbolic link inside the root could still point outside it.
+	 * So the real path of each file is checked against the real path of the
+	 * root, and files outside are refused.
+	 */
+	private static class StaticFileHandler implements RequestHandler {
+		final String root;
+		final Path realRoot;
+
+		StaticFileHandler(String root) {
+			this.root = root;
+			Path rootPath = Paths.get(root.isEmpty() ? "/" : root).toAbsolutePath().normalize();
+			try {
+				rootPath = rootPath.toRealPath();
+			}
+			catch (IOException e) {
+				// The root doesn't exist (yet), so nothing in it will be found anyway.
+			}
+			this.realRoot = rootPath;
+		}
+
+		public String handle(HttpExchange exchange, String path) throws IOException {
+			// Check if the request method is supported (only supports GET, and
+			// PUT and POST if uploads are enabled)
+			String method = exchange.getRequest().getMethod();
+			if (UPLOADS_ENABLED && (method == "PUT" || method == "POST"))
+				return receiveFile(exchange, new File(root + path));
+			if (method != "GET") {
+				accessLog.message("ERROR! Not supported method: " + method);
+				sendErrorResponse(501, exchange);
+				return "error";
+			}
+			return serveFile(exchange, new File(root + path));
+		}
+
+		/**
+		 * Stores the body of a PUT or POST request as a file, creating it or
+		 * replacing it.  The body is streamed to disk by FileUpload, so an
+		 * upload of any size takes the same amount of memory.  A body that is
+		 * declared larger than MAX_UPLOAD_SIZE is refused before any of it is
+		 * read (and before a 100 Continue is sent); a chunked body is refused
+		 * when it passes the limit.  Either way the connection is closed,
+		 * since the rest of the body is not read.
+		 */
+		private String receiveFile(HttpExchange exchange, File file) throws IOException {
+			HttpRequest request = exchange.getRequest();
+			String length = request.getHeader("content-length");
+			if (length != null && request.getHeader("transfer-encoding") == null) {
+				try {
+					if (Long.parseLong(length.trim()) > MAX_UPLOAD_SIZE) {
+						accessLog.message("ERROR: Upload too large: " + file);
+						sendErrorResponse(413, exchange);
+						return "error";
+					}
+				}
+				catch (NumberFormatException e) {
+					sendErrorResponse(400, exchange);
+					return "error";
+				}
+			}
+			File parent = file.getParentFile();
+			if (exchange.getPath().endsWith("/") || file.isDirectory() || parent == null || !parent.isDirectory()) {
+				accessLog.message("ERROR: Can't store an upload at " + file);
+				sendErrorResponse(409, exchange);
+				return "error";
+			}
+			if (!parent.toPath().toRealPath().startsWith(realRoot) || (file.exists() && !file.canWrite())) {
+				accessLog.message("ERROR: Permission to write file denied: " + file);
+				sendErrorResponse(403, exchange);
+				return "error";
+			}
+			boolean existed = file.exists();
+			try {
+				FileUpload.receive(exchange.getBodyStream(), file.toPath(), MAX_UPLOAD_SIZE);
+			}
+			catch (FileUpload.TooLargeException e) {
+				accessLog.message("ERROR: Upload too large: " + file);
+				sendErrorResponse(413, exchange);
+				return "error";
+			}
+			catch (HttpRequestParser.BadRequestException e) {
+				accessLog.message("ERROR: Bad upload body for " + file + ": " + e.getMessage());
+				sendErrorResponse(e.getStatusCode(), exchange);
+				return "error";
+			}
+			PrintWriter outgoing = new PrintWriter(exchange.getOutput());
+			if (existed) {
+				outgoing.print(exchange.getVersion() + " 204 No Content\r\n");
+				outgoing.print(exchange.connectionHeader());
+			}
+			else {
+				outgoing.print(exchange.getVersion() + " 201 Created\r\n");
+				outgoing.print(exchange.connectionHeader());
+				outgoing.print("Location: " + Router.encodePath(exchange.getPath()) + "\r\n");
+				outgoing.print("Content-Length: 0\r\n");
+			}
+			outgoing.print("\r\n");
+			outgoing.flush();
+			return "upload";
+		}
+
+		/**
+		 * Sends a file, or a listing if the file is a directory.
+		 */
+		private String serveFile(HttpExchange exchange, File file) throws IOException {
+			HttpRequest request = exchange.getRequest();
+			if (!file.exists()) {
+				accessLog.message("ERROR: File does not exist on this server: " + file);
+				sendErrorResponse(404, exchange);
+				return "error";
+			}
+			if (!file.toPath().toRealPath().startsWith(realRoot)) {
+				accessLog.message("ERROR: File is outside the root directory: " + file);
+				sendErrorResponse(403, exchange);
+				return "error";
+			}
+			if (file.isDirectory()) {
+				// If it's a directory, send a directory listing to the client
+				getFileList(file, exchange.getPath(), exchange.getQuery(), exchange);
+				return "listing";
+			}
+			if (!file.canRead()) {
+				accessLog.message("ERROR: Permission to read file denied: " + file);
+				sendErrorResponse(403, exchange);
+				return "error";
+			}
+
+			String eTag = makeETag(file);
+			String type = getMimeType(file.getName());
+			String range = request.getHeader("range");
+			// Text is sent compressed if the client accepts it, except for range
+			// requests, which refer to byte positions in the uncompressed file.
+			if (range == null && isCompressible(type) && file.length() >= MIN_COMPRESS_SIZE) {
+				String encoding = negotiateEncoding(request.getHeader("accept-encoding"));
+				if (encoding != null) {
+					sendCompressedFile(file, encoding, type, eTag, exchange);
+					return "file";
+				}
+			}
+			if (isNotModified(request, file, eTag)) {
+				// The client's cached copy is still good, so no body is sent.
+				sendNotModified(exchange, eTag, file);
+				return "file";
+			}
+			if (range != null && rangeStillValid(request, file, eTag)) {
+				List<long[]> ranges = parseRanges(range, file.length());
+				if (ranges != null && ranges.isEmpty()) {
+					sendRangeNotSatisfiable(exchange, file);
+					return "file";
+				}
+				if (ranges != null) {
+					sendPartialContent(file, ranges, type, eTag, exchange);
+					return "file";
+				}
+			}
+
+			// If it's a file and can be read, send the file content to the client
+			PrintWriter outgoing = new PrintWriter(exchange.getOutput());
+			outgoing.print(exchange.getVersion() + " 200 OK\r\n");
+			outgoing.print(exchange.connectionHeader());
+
+			// Determine the content type of the file
+			outgoing.print("Content-type: " + type + "\r\n");
+			// Include content length in the response
+			long fileLength = file.length();
+			outgoing.print("Content-Length: " + fileLength + "\r\n");
+			// Validators and range support let clients revalidate and resume
+			outgoing.print("Accept-Ranges: bytes\r\n");
+			if (isCompressible(type))
+				outgoing.print("Vary: Accept-Encoding\r\n");
+			outgoing.print("ETag: " + eTag + "\r\n");
+			outgoing.print("Last-Modified: " + formatHttpDate(file.lastModified()) + "\r\n");
+			outgoing.print("\r\n");
+			outgoing.flush();
+
+			// Send the file content
+			sendFile(file, exchange.getOutput());
+			return "file";
 		}
 	}
 }
@@ -0,0 +1,111 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Measures the cost of full TLS handshakes and of resumed ones, using the
+ * server setup from TlsSupport.  A server thread in this program accepts
+ * connections on a local port, and the client connects to it over and over,
+ * sending one byte and reading one byte back on each connection.  For full
+ * handshakes, the client forgets each session after using it; for resumed
+ * handshakes, it keeps it.  Both TLS 1.3 and TLS 1.2 are measured.
+ *
+ * <p>Usage: java TlsHandshakeBenchmark keystore password [connections].
+ * See TlsSupport for a keytool command that makes a suitable keystore.</p>
+ */
+public class TlsHandshakeBenchmark {
+
+	private final static int PORT = 50444;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: java TlsHandshakeBenchmark keystore password [connections]");
+			return;
+		}
+		int connections = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		SSLContext serverContext = TlsSupport.createServerContext(args[0], args[1].toCharArray());
+		SSLServerSocket serverSocket = TlsSupport.createServerSocket(serverContext, PORT);
+		Thread server = new Thread(() -> {
+			while (true) {
+				try (Socket connection = serverSocket.accept()) {
+					connection.setTcpNoDelay(true);
+					InputStream in = connection.getInputStream();
+					OutputStream out = connection.getOutputStream();
+					out.write(in.read());
+					out.flush();
+				}
+				catch (Exception e) {
+					if (serverSocket.isClosed())
+						return;
+				}
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+
+		for (String protocol : new String[] { "TLSv1.3", "TLSv1.2" }) {
+			run(protocol, false, connections / 5);  // warmup
+			run(protocol, true, connections / 5);
+			run(protocol, false, connections);
+			run(protocol, true, connections);
+		}
+		serverSocket.close();
+	}
+
+	/**
+	 * Makes a number of connections with a fresh client context and prints
+	 * the average time per connection.
+	 *
+	 * @param protocol The TLS version to use.
+	 * @param resume   If false, each session is invalidated after use, so that
+	 *                 every connection needs a full handshake.
+	 * @param count    The number of connections to make.
+	 */
+	private static void run(String protocol, boolean resume, int count) throws Exception {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new TrustEverything() }, null);
+		int resumed = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long connectTime = System.currentTimeMillis();
+			try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", PORT)) {
+				socket.setEnabledProtocols(new String[] { protocol });
+				socket.setTcpNoDelay(true);  // otherwise delayed ACKs swamp the handshake time
+				socket.getOutputStream().write(1);
+				socket.getOutputStream().flush();
+				socket.getInputStream().read();
+				SSLSession session = socket.getSession();
+				if (session.getCreationTime() < connectTime)
+					resumed++;  // The session was created by an earlier connection.
+				if (!resume)
+					session.invalidate();
+			}
+		}
+		double micros = (System.nanoTime() - start) / 1000.0 / count;
+		System.out.printf("%s %-7s %6d connections  %8.0f us/connection  %5.1f%% resumed%n",
+				protocol, resume ? "resume" : "full", count, micros, 100.0 * resumed / count);
+	}
+
+	/**
+	 * A trust manager that accepts any certificate.  That is only reasonable
+	 * here, where the client connects to a server in the same program that
+	 * uses a self-signed test certificate.
+	 */
+	private static class TrustEverything implements X509TrustManager {
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
@@ -0,0 +1,101 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Sets up TLS for the HTTPS listener of SimpleWebServer.  The server's key
+ * and certificate come from a PKCS12 or JKS keystore.  For testing, one can
+ * be made with
+ *
+ * <pre>
+ * keytool -genkeypair -alias server -keyalg EC -groupname secp256r1 \
+ *         -dname CN=localhost -validity 365 -keystore server.p12 -storepass changeit
+ * </pre>
+ *
+ * <p>A full handshake costs a public-key signature on the server, so the
+ * server is set up to let clients resume earlier sessions instead.  The
+ * session cache is made large and long-lived for TLS 1.2 session IDs, and
+ * stateless session tickets are turned on, which also covers TLS 1.3
+ * pre-shared-key resumption.  ALPN is used to tell clients that the server
+ * speaks http/1.1.</p>
+ */
+public class TlsSupport {
+
+	/**
+	 * The number of sessions that the server remembers for resumption.
+	 */
+	public final static int SESSION_CACHE_SIZE = 20000;
+
+	/**
+	 * How long, in seconds, a session can be resumed after it was created.
+	 */
+	public final static int SESSION_TIMEOUT = 4 * 60 * 60;
+
+	/**
+	 * The application protocols that are offered through ALPN.
+	 */
+	private final static String[] APPLICATION_PROTOCOLS = { "http/1.1" };
+
+	private final static String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+
+	/**
+	 * Creates an SSLContext for a server from a keystore file.  Stateless
+	 * session tickets are enabled unless the system property that controls
+	 * them has already been set.
+	 *
+	 * @param keystoreFile The name of the keystore file.  Its type is taken
+	 *                     from its extension: .jks for JKS, anything else for PKCS12.
+	 * @param password     The password for the keystore and the key.
+	 * @return The context.
+	 * @throws IOException If the keystore can't be read.
+	 * @throws GeneralSecurityException If the keystore or the key can't be used.
+	 */
+	public static SSLContext createServerContext(String keystoreFile, char[] password)
+			throws IOException, GeneralSecurityException {
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		KeyStore keyStore = KeyStore.getInstance(keystoreFile.endsWith(".jks") ? "JKS" : "PKCS12");
+		try (InputStream in = new FileInputStream(keystoreFile)) {
+			keyStore.load(in, password);
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+		sessions.setSessionTimeout(SESSION_TIMEOUT);
+		return context;
+	}
+
+	/**
+	 * Creates a listening socket for HTTPS connections.  The handshake is not
+	 * done when a connection is accepted, but when the connection thread first
+	 * reads from the socket, so a slow client can't hold up the accept loop.
+	 *
+	 * @param context The server's SSLContext.
+	 * @param port    The port to listen on.
+	 * @return The listening socket.
+	 * @throws IOException If the socket can't be created.
+	 */
+	public static SSLServerSocket createServerSocket(SSLContext context, int port) throws IOException {
+		SSLServerSocket serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(port));
+		SSLParameters parameters = serverSocket.getSSLParameters();
+		parameters.setProtocols(PROTOCOLS);
+		parameters.setApplicationProtocols(APPLICATION_PROTOCOLS);
+		parameters.setUseCipherSuitesOrder(true);
+		serverSocket.setSSLParameters(parameters);
+		return serverSocket;
+	}
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small stand-in for a backend server, for trying out ProxyHandler.  It
+ * uses the HTTP server that comes with the JDK, and answers these paths:
+ *
+ * <ul>
+ * <li>/echo -- reads the request body and describes the request.</li>
+ * <li>/bytes?n=N -- sends N bytes, with a Content-Length.</li>
+ * <li>/stream?n=N -- sends N bytes in chunked coding, in small pieces.</li>
+ * <li>/slow?ms=M -- waits M milliseconds before answering.</li>
+ * <li>/health -- answers 200.</li>
+ * </ul>
+ *
+ * <p>Every response has an X-Upstream header with the stub's name, so that
+ * the load balancing can be watched.  For example, with
+ * <code>proxy.*&#47;api = 127.0.0.1:8081, 127.0.0.1:8082</code> in the
+ * server's configuration:</p>
+ *
+ * <pre>
+ * java UpstreamStub 8081 a &amp;
+ * java UpstreamStub 8082 b &amp;
+ * curl -v http://localhost:50505/api/echo -d hello
+ * </pre>
+ *
+ * <p>Usage: java UpstreamStub port [name]</p>
+ */
+public class UpstreamStub {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: java UpstreamStub port [name]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		String name = args.length > 1 ? args[1] : "stub-" + port;
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 100);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			try {
+				exchange.getResponseHeaders().add("X-Upstream", name);
+				handle(exchange);
+			}
+			finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		System.out.println("Upstream stub " + name + " listening on port " + port);
+	}
+
+	private static void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		long n = queryNumber(exchange, "n", 1000);
+		if (path.endsWith("/echo")) {
+			long bodyLength = 0;
+			try (InputStream in = exchange.getRequestBody()) {
+				byte[] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) > 0)
+					bodyLength += count;
+			}
+			StringBuilder text = new StringBuilder();
+			text.append(exchange.getRequestMethod()).append(' ').append(exchange.getRequestURI()).append('\n');
+			for (Map.Entry<String,List<String>> header : exchange.getRequestHeaders().entrySet())
+				text.append(header.getKey()).append(": ").append(String.join(", ", header.getValue())).append('\n');
+			text.append("body bytes: ").append(bodyLength).append('\n');
+			send(exchange, 200, text.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		else if (path.endsWith("/bytes")) {
+			exchange.sendResponseHeaders(200, n);
+			writeBytes(exchange.getResponseBody(), n, false);
+		}
+		else if (path.endsWith("/stream")) {
+			exchange.sendResponseHeaders(200, 0);  // 0 means chunked
+			writeBytes(exchange.getResponseBody(), n, true);
+		}
+		else if (path.endsWith("/slow")) {
+			try {
+				Thread.sleep(queryNumber(exchange, "ms", 1000));
+			}
+			catch (InterruptedException e) {
+			}
+			send(exchange, 200, "done\n".getBytes(StandardCharsets.UTF_8));
+		}
+		else if (path.endsWith("/health")) {
+			send(exchange, 200, "ok\n".getBytes(StandardCharsets.UTF_8));
+		}
+		else {
+			send(exchange, 404, "not found\n".getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	/**
+	 * Writes n bytes of the repeating pattern a..z, flushing after every
+	 * small piece if trickle is true.
+	 */
+	private static void writeBytes(OutputStream out, long n, boolean trickle) throws IOException {
+		byte[] block = new byte[trickle ? 1000 : 65536];
+		for (int i = 0; i < block.length; i++)
+			block[i] = (byte) ('a' + i % 26);
+		while (n > 0) {
+			int count = (int) Math.min(n, block.length);
+			out.write(block, 0, count);
+			if (trickle)
+				out.flush();
+			n -= count;
+		}
+	}
+
+	private static long queryNumber(HttpExchange exchange, String name, long defaultValue) {
+		String query = exchange.getRequestURI().getQuery();
+		if (query == null)
+			return defaultValue;
+		for (String pair : query.split("&")) {
+			if (pair.startsWith(name + "=")) {
+				try {
+					return Long.parseLong(pair.substring(name.length() + 1));
+				}
+				catch (NumberFormatException e) {
+					return defaultValue;
+				}
+			}
+		}
+		return defaultValue;
+	}
+}